@@ -0,0 +1,103 @@
+package project.narrative;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+import project.narrative.config.LlmTransportConfig;
+import project.narrative.model.APIResponse;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a Gemini-shaped request and response against a local stub server,
+ * comparing the default RestTemplate with the pooled LLM transport. Requests
+ * are sent from several threads, as they are by the generation workers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class LlmTransportBenchmark {
+
+    private static final String RESPONSE = """
+            {"candidates": [{"content": {"parts": [{"text": "Once upon a time"}]}}]}
+            """;
+
+    @Param({ "default", "pooled" })
+    public String transport;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private CloseableHttpClient httpClient;
+    private RestTemplate template;
+    private String url;
+    private HttpEntity<Map<String, Object>> request;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(16);
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/v1/models/gemini-pro:generateContent";
+
+        if (transport.equals("pooled")) {
+            LlmTransportConfig config = new LlmTransportConfig();
+            httpClient = config.llmHttpClient(new SimpleMeterRegistry(), 50, 20, 5000, 60000, 5000, 60, 30);
+            template = config.template(httpClient);
+        } else {
+            template = new RestTemplate();
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        Map<String, Object> body = Map.of("contents",
+                new Map[] { Map.of("role", "user", "parts", new Map[] { Map.of("text", "Continue the story") }) });
+        request = new HttpEntity<>(body, headers);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public APIResponse generateContent() {
+        return template.exchange(url, HttpMethod.POST, request, APIResponse.class).getBody();
+    }
+}
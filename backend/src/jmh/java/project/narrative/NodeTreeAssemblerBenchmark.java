@@ -0,0 +1,60 @@
+package project.narrative;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import project.narrative.dto.NodeDTO;
+import project.narrative.model.entities.Node;
+import project.narrative.model.entities.Story;
+import project.narrative.model.entities.User;
+import project.narrative.service.NodeTreeAssembler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a story tree for a linear chain of nodes, the shape
+ * produced by users who keep continuing the same branch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NodeTreeAssemblerBenchmark {
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    public int depth;
+
+    private List<Node> chain;
+
+    @Setup
+    public void setUp() {
+        User user = new User();
+        user.setUsername("bench");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setStoryname("Benchmark Story");
+        story.setUser(user);
+
+        chain = new ArrayList<>(depth);
+        for (long id = 1; id <= depth; id++) {
+            Node node = new Node();
+            node.setNodeId(id);
+            node.setParentId(id == 1 ? null : id - 1);
+            node.setUser(user);
+            node.setStory(story);
+            chain.add(node);
+        }
+    }
+
+    @Benchmark
+    public List<NodeDTO> assembleChain() {
+        return NodeTreeAssembler.assemble(chain);
+    }
+}
@@ -0,0 +1,82 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import project.narrative.service.PromptBuilder;
+import project.narrative.service.PromptBuilder.Trim;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures assembling a continuation prompt with five characters, for plots
+ * well inside the default 3000 token budget and for plots that have to be
+ * trimmed, against plain concatenation of the same parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PromptBuilderBenchmark {
+
+    private static final String INSTRUCTION = """
+            Based on the following provided plot, generate a new story continuation in no more than 500 words.
+            Please ensure the new content is creative, introducing and Guarantee the story style is Fantasy.
+            Only return the new story content, keeping it concise and coherent.
+            ========================================
+
+            """;
+
+    // Approximate plot length in tokens
+    @Param({ "500", "2000", "20000" })
+    public int plotTokens;
+
+    private PromptBuilder promptBuilder;
+    private String plot;
+    private String direction;
+    private String[] backgrounds;
+
+    @Setup
+    public void setUp() {
+        promptBuilder = new PromptBuilder(new SimpleMeterRegistry(), 3000);
+        plot = "The knight rode north through the storm. ".repeat(plotTokens / 10);
+        direction = "The knight finds the hidden gate and meets the stranger again.";
+        backgrounds = new String[5];
+        for (int i = 0; i < backgrounds.length; i++) {
+            backgrounds[i] = "Raised in the mountains, trained as a healer. ".repeat(20);
+        }
+    }
+
+    @Benchmark
+    public String budgeted() {
+        PromptBuilder.Assembly prompt = promptBuilder.newPrompt()
+                .required(INSTRUCTION)
+                .optional("Plot synopsis: \"", plot, "\"\n", Trim.KEEP_END)
+                .optional("Expected direction of the plot: \" ", direction, "\"", Trim.KEEP_START)
+                .required("=====================================\n");
+        for (int i = 0; i < backgrounds.length; i++) {
+            prompt.optional("lastName=Doe" + i + ", firstName=John, background=", backgrounds[i],
+                    "=====================================\n", Trim.KEEP_START);
+        }
+        return prompt.build();
+    }
+
+    @Benchmark
+    public String concatenated() {
+        StringBuilder prompt = new StringBuilder(INSTRUCTION)
+                .append("Plot synopsis: \"").append(plot).append("\"\n")
+                .append("Expected direction of the plot: \" ").append(direction).append("\"")
+                .append("=====================================\n");
+        for (int i = 0; i < backgrounds.length; i++) {
+            prompt.append("lastName=Doe").append(i).append(", firstName=John, background=").append(backgrounds[i])
+                    .append("=====================================\n");
+        }
+        return prompt.toString();
+    }
+}
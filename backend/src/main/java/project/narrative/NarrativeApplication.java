@@ -3,9 +3,7 @@ package project.narrative;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
-import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.web.client.RestTemplate;
 
 /*
 NOTE:
@@ -19,9 +17,4 @@ public class NarrativeApplication {
         // System.out.println("hello");
         SpringApplication.run(NarrativeApplication.class, args);
     }
-    
-    @Bean
-    public RestTemplate template(){
-        return new RestTemplate();
-    }
 }
@@ -0,0 +1,104 @@
+package project.narrative.config;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+
+/**
+ * HTTP transport for the calls to the model. Connections are pooled and kept
+ * alive between calls, so most calls skip the TCP and TLS handshakes, and
+ * every call is bounded by connect, read and pool wait timeouts so a stuck
+ * call cannot hold a thread forever.
+ *
+ * Streaming calls go through a WebClient on its own connection pool, with the
+ * same limits and timeouts. For streams the read timeout applies to the wait
+ * for each chunk, not to the whole response.
+ *
+ * The pool is published as the httpcomponents.httpclient.pool.* meters with
+ * httpclient=llm.
+ */
+@Configuration
+public class LlmTransportConfig {
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient llmHttpClient(MeterRegistry meterRegistry,
+            @Value("${narrative.llm.http.max-connections:50}") int maxConnections,
+            @Value("${narrative.llm.http.max-connections-per-route:20}") int maxConnectionsPerRoute,
+            @Value("${narrative.llm.http.connect-timeout-ms:5000}") long connectTimeoutMs,
+            @Value("${narrative.llm.http.read-timeout-ms:60000}") long readTimeoutMs,
+            @Value("${narrative.llm.http.pool-timeout-ms:5000}") long poolTimeoutMs,
+            @Value("${narrative.llm.http.keep-alive-seconds:60}") long keepAliveSeconds,
+            @Value("${narrative.llm.http.idle-timeout-seconds:30}") long idleTimeoutSeconds) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        // Check connections that sat unused for a while before reusing them
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                        .build())
+                .build();
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "llm").bindTo(meterRegistry);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolTimeoutMs))
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        // Used when the server does not say how long it keeps the connection open
+                        .setConnectionKeepAlive(TimeValue.ofSeconds(keepAliveSeconds))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(idleTimeoutSeconds))
+                .build();
+    }
+
+    @Bean
+    public RestTemplate template(CloseableHttpClient llmHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(llmHttpClient));
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider llmConnectionProvider(
+            @Value("${narrative.llm.http.max-connections-per-route:20}") int maxConnectionsPerRoute,
+            @Value("${narrative.llm.http.pool-timeout-ms:5000}") long poolTimeoutMs,
+            @Value("${narrative.llm.http.idle-timeout-seconds:30}") long idleTimeoutSeconds) {
+        return ConnectionProvider.builder("llm")
+                .maxConnections(maxConnectionsPerRoute)
+                .pendingAcquireTimeout(Duration.ofMillis(poolTimeoutMs))
+                .maxIdleTime(Duration.ofSeconds(idleTimeoutSeconds))
+                .evictInBackground(Duration.ofSeconds(idleTimeoutSeconds))
+                .build();
+    }
+
+    @Bean
+    public WebClient llmWebClient(WebClient.Builder builder, ConnectionProvider llmConnectionProvider,
+            @Value("${narrative.llm.http.connect-timeout-ms:5000}") long connectTimeoutMs,
+            @Value("${narrative.llm.http.read-timeout-ms:60000}") long readTimeoutMs) {
+        HttpClient httpClient = HttpClient.create(llmConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeoutMs)
+                .responseTimeout(Duration.ofMillis(readTimeoutMs));
+        return builder.clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+    }
+}
@@ -0,0 +1,36 @@
+package project.narrative.config;
+
+import jakarta.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import project.narrative.repository.NodeRepo;
+
+/**
+ * Prepares the node ancestry paths on startup: creates the prefix index on
+ * node.path and fills in path/depth for nodes created before they existed.
+ */
+@Component
+public class NodePathInitializer implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(NodePathInitializer.class);
+
+    private final NodeRepo nodeRepo;
+
+    public NodePathInitializer(NodeRepo nodeRepo) {
+        this.nodeRepo = nodeRepo;
+    }
+
+    @Override
+    @Transactional
+    public void run(ApplicationArguments args) {
+        nodeRepo.createPathIndex();
+        int updated = nodeRepo.backfillPaths();
+        if (updated > 0) {
+            log.info("Backfilled ancestry paths for {} nodes", updated);
+        }
+    }
+}
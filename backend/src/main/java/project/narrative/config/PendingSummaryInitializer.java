@@ -0,0 +1,36 @@
+package project.narrative.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import project.narrative.service.NodeService;
+
+/**
+ * Queues on startup the summaries of nodes that were still being summarized
+ * when the application stopped, so they do not stay PENDING.
+ */
+@Component
+public class PendingSummaryInitializer implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(PendingSummaryInitializer.class);
+
+    private final NodeService nodeService;
+    private final String key;
+
+    public PendingSummaryInitializer(NodeService nodeService, @Value("${API_KEY}") String key) {
+        this.nodeService = nodeService;
+        this.key = key;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int queued = nodeService.resummarizePending(key);
+        if (queued > 0) {
+            log.info("Queued summaries again for {} pending nodes", queued);
+        }
+    }
+}
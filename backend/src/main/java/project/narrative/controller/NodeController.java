@@ -2,7 +2,9 @@ package project.narrative.controller;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
@@ -14,23 +16,39 @@ import org.springframework.web.bind.annotation.RestController;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import project.narrative.dto.NodeChangesDTO;
 import project.narrative.dto.StoryDTO;
 import project.narrative.model.APIRequest;
 import project.narrative.service.GeminiService;
+import project.narrative.service.GenerationJobService;
+import project.narrative.service.LeafExpansionService;
 import project.narrative.service.NodeService;
+import reactor.core.publisher.Flux;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("stories/{storiesId}/nodes")
 public class NodeController {
 
+    // Longest time a job status request may wait for the job to finish
+    private static final long MAX_JOB_WAIT_SECONDS = 25;
+
     private final NodeService nodeService;
 
+    private final GenerationJobService generationJobService;
+
+    private final LeafExpansionService leafExpansionService;
+
     private String key;
 
-    public NodeController(NodeService nodeService, @Value("${API_KEY}") String key) {
+    public NodeController(NodeService nodeService, GenerationJobService generationJobService,
+            LeafExpansionService leafExpansionService, @Value("${API_KEY}") String key) {
         this.nodeService = nodeService;
+        this.generationJobService = generationJobService;
+        this.leafExpansionService = leafExpansionService;
         this.key = key;
     }
 
@@ -56,19 +74,146 @@ public class NodeController {
 
     @GetMapping
     public ResponseEntity<?> getGenerated(@PathVariable Long storiesId, @RequestBody Prompt prompt) {
-        return ResponseEntity.ok(nodeService.generateResult(key, storiesId, prompt.parentId, prompt.context, prompt.Characters));
+        return ResponseEntity.ok(nodeService.generateResult(key, storiesId, prompt));
+    }
+
+    /**
+     * Endpoint for generating a story continuation and receiving it while it
+     * is written, as server-sent events: "chunk" events with pieces of the
+     * continuation, then a "summary" event, or an "error" event on failure.
+     * 
+     * @param prompt contains the context, parentId and characters of the
+     *               continuation.
+     * @return the event stream.
+     */
+    @PostMapping(value = "stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> streamGenerated(@PathVariable Long storiesId, @RequestBody Prompt prompt) {
+        return nodeService.streamResult(key, storiesId, prompt.parentId, prompt.context, prompt.Characters);
+    }
+
+    /**
+     * Endpoint for generating a story continuation in the background.
+     * 
+     * @param prompt contains the context, parentId and characters of the
+     *               continuation.
+     * @return the queued job, whose id is used to collect the result.
+     */
+    @PostMapping("jobs")
+    public ResponseEntity<?> submitGeneration(@PathVariable Long storiesId, @RequestBody Prompt prompt) {
+        return ResponseEntity.accepted().body(generationJobService.submit(key, storiesId, prompt));
+    }
+
+    /**
+     * Endpoint for checking on a generation job.
+     * 
+     * @param jobId id returned when the job was submitted.
+     * @param wait  seconds to wait for the job to finish before answering, at
+     *              most 25; the request thread is released while waiting.
+     * @return the job, with its result once it has succeeded.
+     */
+    @GetMapping("jobs/{jobId}")
+    public CompletableFuture<ResponseEntity<?>> getGenerationJob(@PathVariable Long storiesId,
+            @PathVariable String jobId, @RequestParam(value = "wait", defaultValue = "0") long wait) {
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(ResponseEntity.ok(generationJobService.getJob(storiesId, jobId)));
+        }
+        Duration timeout = Duration.ofSeconds(Math.min(wait, MAX_JOB_WAIT_SECONDS));
+        return generationJobService.awaitJob(storiesId, jobId, timeout).<ResponseEntity<?>>thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * Endpoint for continuing every leaf of a story in the background.
+     * 
+     * @param expansion direction and characters used for every leaf.
+     * @return the started job, whose id is used to follow its progress.
+     */
+    @PostMapping("expansions")
+    public ResponseEntity<?> expandLeaves(@PathVariable Long storiesId, @RequestBody Expansion expansion) {
+        return ResponseEntity.accepted()
+                .body(leafExpansionService.submit(key, storiesId, expansion.context, expansion.Characters));
+    }
+
+    /**
+     * Endpoint for following the progress of a leaf expansion.
+     * 
+     * @param jobId id returned when the expansion was started.
+     * @param wait  seconds to wait for the expansion to finish before
+     *              answering, at most 25.
+     * @return the job, with the number of leaves generated, stored and failed.
+     */
+    @GetMapping("expansions/{jobId}")
+    public CompletableFuture<ResponseEntity<?>> getExpansion(@PathVariable Long storiesId,
+            @PathVariable String jobId, @RequestParam(value = "wait", defaultValue = "0") long wait) {
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(ResponseEntity.ok(leafExpansionService.getJob(storiesId, jobId)));
+        }
+        Duration timeout = Duration.ofSeconds(Math.min(wait, MAX_JOB_WAIT_SECONDS));
+        return leafExpansionService.awaitJob(storiesId, jobId, timeout).<ResponseEntity<?>>thenApply(ResponseEntity::ok);
     }
 
     /**
      * Endpoint for deleting a node.
      * 
      * @param nodeId nodeId of the node.
-     * @return details about the deleted node.
+     * @return number of nodes removed, including the descendants of the node.
      */
     @PostMapping("deleteNode")
     public ResponseEntity<?> deleteNode(@RequestBody DeleteData deleteData) {
-        nodeService.deleteNode(deleteData.nodeId);
-        return ResponseEntity.ok("Delete succesfully!");
+        return ResponseEntity.ok(nodeService.deleteNode(deleteData.nodeId));
+    }
+
+    /**
+     * Endpoint for browsing a story tree a few levels at a time.
+     * 
+     * @param rootId node to expand, or empty for the roots of the story.
+     * @param depth  number of levels to return; nodes on the last level are
+     *               collapsed and only carry their number of children.
+     * @param limit  maximum number of top level nodes in the page.
+     * @param after  nextCursor of the previous page.
+     * @return one page of the tree.
+     */
+    @GetMapping("tree")
+    public ResponseEntity<?> getTree(@PathVariable Long storiesId,
+            @RequestParam(value = "rootId", required = false) Long rootId,
+            @RequestParam(value = "depth", defaultValue = "2") int depth,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "after", required = false) Long after) {
+        return ResponseEntity.ok(nodeService.getTreePage(storiesId, rootId, depth, limit, after));
+    }
+
+    /**
+     * Endpoint for listing every node of a story without its text.
+     * 
+     * @return id, parent, name and leaf flag of each node, in depth-first order.
+     */
+    @GetMapping("outline")
+    public ResponseEntity<?> getOutline(@PathVariable Long storiesId) {
+        return ResponseEntity.ok(nodeService.getOutline(storiesId));
+    }
+
+    /**
+     * Endpoint for syncing a story tree incrementally.
+     * 
+     * Deletions are only remembered for the last
+     * narrative.changes.retained-versions versions of a story. A client
+     * further behind gets the whole tree with fullResync set, and must replace
+     * its copy instead of applying the changes.
+     * 
+     * @param since version the client already has, from a previous response or
+     *              from the story, or 0 for a client without a copy.
+     * @return the nodes created, updated or deleted since that version, the
+     *         whole tree for new clients and clients too far behind, or 304 Not
+     *         Modified when the story has not changed.
+     */
+    @GetMapping("changes")
+    public ResponseEntity<?> getChanges(@PathVariable Long storiesId,
+            @RequestParam(value = "since", defaultValue = "0") long since) {
+        NodeChangesDTO changes = nodeService.getChanges(storiesId, since);
+        String eTag = String.valueOf(changes.getVersion());
+        if (since > 0 && changes.getVersion() <= since) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        return ResponseEntity.ok().eTag(eTag).body(changes);
     }
 
     @GetMapping("{nodeId}")
@@ -76,6 +221,30 @@ public class NodeController {
         return ResponseEntity.ok(nodeService.getNode(nodeId, storiesId));
     }
 
+    /**
+     * Endpoint for listing the past generations for a node, so a continuation
+     * can be recovered without generating it again.
+     * 
+     * @return the generations stored on the node or made for its place in the
+     *         tree, newest first.
+     */
+    @GetMapping("{nodeId}/history")
+    public ResponseEntity<?> getHistory(@PathVariable Long storiesId, @PathVariable Long nodeId) {
+        return ResponseEntity.ok(nodeService.getHistory(storiesId, nodeId));
+    }
+
+    /**
+     * Endpoint for putting a past generation back on a node.
+     * 
+     * @param historyId id of a generation listed for the node.
+     * @return the updated node.
+     */
+    @PostMapping("{nodeId}/history/{historyId}/restore")
+    public ResponseEntity<?> restoreGeneration(@PathVariable Long storiesId, @PathVariable Long nodeId,
+            @PathVariable Long historyId) {
+        return ResponseEntity.ok(nodeService.restoreGeneration(key, storiesId, nodeId, historyId));
+    }
+
     @Data
     public static class DeleteData {
         public Long nodeId;
@@ -115,6 +284,19 @@ public class NodeController {
     public static class Prompt {
         public String context;
         public Long parentId;
+        // Node to store the continuation on; its summary is then generated in the background
+        public Long nodeId;
+        public List<CharacterInfo> Characters;
+        // Ask the model again instead of reusing a cached response to the same prompt
+        public Boolean forceFresh;
+        // Number of alternative continuations to generate in one call, at most 8
+        public Integer candidateCount;
+    }
+
+    @Data
+    public static class Expansion {
+        // Expected direction of the plot, used for every leaf
+        public String context;
         public List<CharacterInfo> Characters;
     }
 
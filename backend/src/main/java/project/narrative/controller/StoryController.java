@@ -4,8 +4,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.web.WebProperties.Resources.Chain.Strategy;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import lombok.Data;
 import project.narrative.dto.StoryDTO;
@@ -97,6 +99,29 @@ public class StoryController {
         }
     }
 
+    /**
+     * Endpoint for get all stories with their node tree of a user, written to
+     * the response as the nodes are read from the database
+     */
+    @GetMapping(value = "/{userId}/nodetree/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamStoriesWithNodeHierarchyForUser(@PathVariable String userId) {
+        try {
+            List<Long> storyIds = storyService.findStoryIdsForUser(userId);
+            if (storyIds.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+            }
+            // Only ids cross to the thread writing the body, which loads the stories itself
+            StreamingResponseBody body = out -> storyService.writeStoriesWithNodeHierarchy(storyIds, out);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        } catch (UserInfoException e) {
+            // If there's an issue with finding the user, return a 404 Not Found
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            // If there's any other exception, return 500 Internal Server Error
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     @Data
     public static class StoryInfo {
         public String email;
@@ -6,6 +6,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import project.narrative.dto.UserDTO;
 import project.narrative.model.entities.User;
+import project.narrative.service.TokenUsageService;
 import project.narrative.service.UserService;
 
 import org.springframework.web.bind.annotation.PostMapping;
@@ -36,10 +37,12 @@ public class UserController {
 
     // Injecting UserService to handle business logic
     private final UserService userService;
+    private final TokenUsageService tokenUsageService;
 
     // Constructor to initialize UserService
-    public UserController(UserService userService) {
+    public UserController(UserService userService, TokenUsageService tokenUsageService) {
         this.userService = userService;
+        this.tokenUsageService = tokenUsageService;
     }
 
     /**
@@ -113,6 +116,19 @@ public class UserController {
 //    }
 
 
+    /**
+     * Endpoint for the model tokens a user has used, for applying per-role
+     * token budgets. Usage is stored in batches, so the newest calls may not
+     * be counted yet.
+     *
+     * @param userId username of the user.
+     * @return totals over all the user's stories, and the usage of each story.
+     */
+    @GetMapping("/{userId}/usage")
+    public ResponseEntity<?> getUsage(@PathVariable("userId") String userId) {
+        return ResponseEntity.ok(tokenUsageService.getUserUsage(userId));
+    }
+
     /**
      * Endpoint to delete a user account. Requires username, password, email, and
      * role.
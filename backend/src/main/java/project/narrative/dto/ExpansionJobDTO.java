@@ -0,0 +1,49 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.ExpansionJob;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@JsonInclude(Include.NON_NULL)
+@NoArgsConstructor
+public class ExpansionJobDTO {
+    private String jobId;
+    private Long storyId;
+    private String status;
+    private Instant submittedAt;
+    private Instant finishedAt;
+    private int totalLeaves;
+    private int generated;
+    private int stored;
+    private int failed;
+    // Nodes created so far
+    private List<Long> nodeIds;
+    // First error met, when some leaves failed
+    private String error;
+
+    public ExpansionJobDTO(ExpansionJob job) {
+        this.jobId = job.getJobId();
+        this.storyId = job.getStoryId();
+        this.status = job.getStatus().name();
+        this.submittedAt = job.getSubmittedAt();
+        this.finishedAt = job.getFinishedAt();
+        this.totalLeaves = job.getTotalLeaves();
+        this.generated = job.getGenerated().get();
+        this.failed = job.getFailed().get();
+        synchronized (job.getNodeIds()) {
+            this.nodeIds = new ArrayList<>(job.getNodeIds());
+        }
+        this.stored = nodeIds.size();
+        this.error = job.getError();
+    }
+}
@@ -8,6 +8,8 @@ import lombok.NoArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 @Getter
 @Setter
 @JsonInclude(Include.NON_EMPTY)
@@ -16,4 +18,13 @@ import lombok.Setter;
 public class GeneratedResultDTO {
     private String result;
     private String summary;
+    // Every alternative when several were asked for, the first being result
+    private List<String> candidates;
+    // Nodes the alternatives were stored on, in the same order
+    private List<Long> nodeIds;
+
+    public GeneratedResultDTO(String result, String summary) {
+        this.result = result;
+        this.summary = summary;
+    }
 }
@@ -0,0 +1,43 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.entities.GenerationHistory;
+
+import java.time.Instant;
+
+@Getter
+@Setter
+@JsonInclude(Include.NON_NULL)
+@NoArgsConstructor
+public class GenerationHistoryDTO {
+    private Long id;
+    private Long nodeId;
+    private Long parentId;
+    private String promptHash;
+    private String result;
+    private String summary;
+    private int promptTokens;
+    private int candidatesTokens;
+    private int totalTokens;
+    private long latencyMs;
+    private Instant createdAt;
+
+    public GenerationHistoryDTO(GenerationHistory history) {
+        this.id = history.getId();
+        this.nodeId = history.getNodeId();
+        this.parentId = history.getParentId();
+        this.promptHash = history.getPromptHash();
+        this.result = history.getResult();
+        this.summary = history.getSummary();
+        this.promptTokens = history.getPromptTokens();
+        this.candidatesTokens = history.getCandidatesTokens();
+        this.totalTokens = history.getTotalTokens();
+        this.latencyMs = history.getLatencyMs();
+        this.createdAt = history.getCreatedAt();
+    }
+}
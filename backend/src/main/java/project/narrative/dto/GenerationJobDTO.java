@@ -0,0 +1,37 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.GenerationJob;
+
+import java.time.Instant;
+
+@Getter
+@Setter
+@JsonInclude(Include.NON_EMPTY)
+@NoArgsConstructor
+public class GenerationJobDTO {
+    private String jobId;
+    private Long storyId;
+    private String status;
+    private Instant submittedAt;
+    private Instant finishedAt;
+    // Set once the job has succeeded
+    private GeneratedResultDTO result;
+    // Set once the job has failed
+    private String error;
+
+    public GenerationJobDTO(GenerationJob job) {
+        this.jobId = job.getJobId();
+        this.storyId = job.getStoryId();
+        this.status = job.getStatus().name();
+        this.submittedAt = job.getSubmittedAt();
+        this.finishedAt = job.getFinishedAt();
+        this.result = job.getResult();
+        this.error = job.getError();
+    }
+}
@@ -0,0 +1,38 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Nodes of a story changed since a client's version. Clients apply the
+ * changes and use version as the starting point of their next request. When
+ * fullResync is set, the client was too far behind to be told about every
+ * deletion; changed then holds the whole tree, which replaces the client's.
+ */
+@Getter
+@Setter
+@JsonInclude(Include.NON_EMPTY)
+@AllArgsConstructor
+@NoArgsConstructor
+public class NodeChangesDTO {
+    private Long storyId;
+    // Current version of the story
+    private Long version;
+    // Nodes created or updated since the requested version, parents before children
+    private List<NodeDTO> changed;
+    // Ids of the nodes deleted since the requested version
+    private List<Long> deleted;
+    // Set when changed is the whole tree instead of the changes
+    private Boolean fullResync;
+
+    public NodeChangesDTO(Long storyId, Long version, List<NodeDTO> changed, List<Long> deleted) {
+        this(storyId, version, changed, deleted, null);
+    }
+}
@@ -22,14 +22,21 @@ public class NodeDTO {
     private String storyName;
     private String genre;
     private Long nodeId;
+    private String nodeName;
     private String description;
     private String result;
     private String context;
     private Long parentNode;
     private String summary;
+    // PENDING while the summary is generated in the background
+    private String summaryStatus;
     private List<CharacterInfo> characters;
     // Child nodes (the hierarchy under this node)
     private List<NodeDTO> children;
+    // Number of children, set when the children are not all included
+    private Long childCount;
+    // Story version of the last change to the node
+    private Long version;
 
     public NodeDTO(Node node) {
         this.context = node.getContext();
@@ -39,10 +46,25 @@ public class NodeDTO {
         this.storyId = node.getStory().getStoryid();
         this.result = node.getResult();
         this.nodeId = node.getNodeId();
+        this.nodeName = node.getNodeName();
         this.parentNode = node.getParentId();
         this.genre = node.getStory().getGenre();
         this.characters = node.getCharacters();
         this.summary = node.getSummary();
-        System.out.println(parentNode + " " + genre);
+        this.summaryStatus = node.getSummaryStatus() == null ? null : node.getSummaryStatus().name();
+        this.version = node.getVersion();
+    }
+
+    /**
+     * Lightweight variant for a collapsed node in a tree listing, without any
+     * of the node's text.
+     */
+    public static NodeDTO collapsed(Long nodeId, Long parentNode, String nodeName, long childCount) {
+        NodeDTO nodeDTO = new NodeDTO();
+        nodeDTO.setNodeId(nodeId);
+        nodeDTO.setParentNode(parentNode);
+        nodeDTO.setNodeName(nodeName);
+        nodeDTO.setChildCount(childCount);
+        return nodeDTO;
     }
 }
@@ -0,0 +1,33 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.NodeSummary;
+
+/**
+ * Compact node for tree navigation. The full content of a node is available
+ * from GET /stories/{id}/nodes/{nodeId}.
+ */
+@Getter
+@Setter
+@JsonInclude(Include.NON_EMPTY)
+@AllArgsConstructor
+@NoArgsConstructor
+public class NodeSummaryDTO {
+    private Long nodeId;
+    private Long parentNode;
+    private String nodeName;
+    private boolean leaf;
+
+    public NodeSummaryDTO(NodeSummary node, boolean leaf) {
+        this.nodeId = node.getNodeId();
+        this.parentNode = node.getParentId();
+        this.nodeName = node.getNodeName();
+        this.leaf = leaf;
+    }
+}
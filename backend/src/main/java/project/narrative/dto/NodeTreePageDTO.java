@@ -0,0 +1,28 @@
+package project.narrative.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * One page of a story tree, expanded down to a limited depth.
+ */
+@Getter
+@Setter
+@JsonInclude(Include.NON_EMPTY)
+@AllArgsConstructor
+@NoArgsConstructor
+public class NodeTreePageDTO {
+    private Long storyId;
+    // Node the page was expanded from, empty for the roots of the story
+    private Long rootId;
+    private List<NodeDTO> nodes;
+    // Pass as "after" to get the next page of siblings, empty on the last page
+    private Long nextCursor;
+}
@@ -33,6 +33,8 @@ public class StoryDTO {
     private String description;
     private List<CharacterDTO> characters;
     private String image;
+    // Version to pass to the node changes endpoint
+    private Long version;
 
     public StoryDTO(Story story) {
         this.storyId = story.getStoryid();
@@ -42,6 +44,7 @@ public class StoryDTO {
         this.lastUpdate = story.getLastUpdate();
         this.genre = story.getGenre();
         this.description = story.getDescription();
+        this.version = story.getVersion();
     }
 
     public void setImage(String image) {
@@ -0,0 +1,28 @@
+package project.narrative.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.entities.TokenUsage;
+
+/**
+ * Tokens used by the model calls of one story.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class TokenUsageDTO {
+    private Long storyId;
+    private long promptTokens;
+    private long candidatesTokens;
+    private long totalTokens;
+    private long calls;
+
+    public TokenUsageDTO(TokenUsage usage) {
+        this.storyId = usage.getStoryid();
+        this.promptTokens = usage.getPromptTokens();
+        this.candidatesTokens = usage.getCandidatesTokens();
+        this.totalTokens = usage.getTotalTokens();
+        this.calls = usage.getCalls();
+    }
+}
@@ -0,0 +1,37 @@
+package project.narrative.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import project.narrative.model.entities.User;
+
+import java.util.List;
+
+/**
+ * Tokens used by all model calls of a user, with the role that decides the
+ * user's budget and the usage of each story.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class UserUsageDTO {
+    private String username;
+    private String role;
+    private long promptTokens;
+    private long candidatesTokens;
+    private long totalTokens;
+    private long calls;
+    private List<TokenUsageDTO> stories;
+
+    public UserUsageDTO(User user, List<TokenUsageDTO> stories) {
+        this.username = user.getUsername();
+        this.role = user.getRole();
+        this.stories = stories;
+        for (TokenUsageDTO story : stories) {
+            this.promptTokens += story.getPromptTokens();
+            this.candidatesTokens += story.getCandidatesTokens();
+            this.totalTokens += story.getTotalTokens();
+            this.calls += story.getCalls();
+        }
+    }
+}
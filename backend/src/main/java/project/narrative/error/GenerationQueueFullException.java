@@ -0,0 +1,16 @@
+package project.narrative.error;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception thrown when a generation job is submitted while the generation
+ * queue is full.
+ * 
+ * HTTP Status: 503 SERVICE UNAVAILABLE - Indicates that the server cannot
+ * take the request right now and the client should retry later.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "Too many generations in progress, try again later.")
+public class GenerationQueueFullException extends RuntimeException {
+
+}
@@ -0,0 +1,16 @@
+package project.narrative.error;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception thrown instead of calling the model while too many recent calls
+ * to it failed.
+ * 
+ * HTTP Status: 503 SERVICE UNAVAILABLE - Indicates that the model is
+ * unavailable and the client should retry later.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "The story generator is unavailable, try again later.")
+public class LlmUnavailableException extends RuntimeException {
+
+}
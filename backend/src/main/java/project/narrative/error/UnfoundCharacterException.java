@@ -0,0 +1,32 @@
+package project.narrative.error;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.util.List;
+
+/**
+ * Exception thrown when a generation asks for characters that do not exist
+ * in its story. The message names every missing character.
+ * 
+ * HTTP Status: 400 BAD REQUEST - Indicates that the request refers to
+ * characters the story does not have.
+ */
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class UnfoundCharacterException extends RuntimeException {
+
+    // Full names of the missing characters, in the order they were asked for
+    private final List<String> missing;
+
+    public UnfoundCharacterException(List<String> missing, String storyname) {
+        super(missing.size() == 1
+                ? String.format("There is no character in database called %s of story %s", missing.get(0), storyname)
+                : String.format("There are no characters in database called %s of story %s",
+                        String.join(", ", missing), storyname));
+        this.missing = List.copyOf(missing);
+    }
+
+    public List<String> getMissing() {
+        return missing;
+    }
+}
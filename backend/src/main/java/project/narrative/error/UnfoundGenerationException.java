@@ -0,0 +1,16 @@
+package project.narrative.error;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception thrown when a past generation does not exist or was not made for
+ * the node it is restored onto.
+ * 
+ * HTTP Status: 404 NOT FOUND - Indicates that the requested resource could
+ * not be found.
+ */
+@ResponseStatus(value = HttpStatus.NOT_FOUND, reason = "Unfound generation for this node")
+public class UnfoundGenerationException extends RuntimeException {
+
+}
@@ -0,0 +1,16 @@
+package project.narrative.error;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception thrown when a generation job does not exist, has expired, or
+ * belongs to another story.
+ * 
+ * HTTP Status: 404 NOT FOUND - Indicates that the requested resource could
+ * not be found.
+ */
+@ResponseStatus(value = HttpStatus.NOT_FOUND, reason = "Unfound generation job")
+public class UnfoundJobException extends RuntimeException {
+
+}
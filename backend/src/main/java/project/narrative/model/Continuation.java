@@ -0,0 +1,14 @@
+package project.narrative.model;
+
+/**
+ * Continuation generated for a node but not stored yet, with what its
+ * history entry and summary need: the prompt and response of the model call,
+ * the time it took, and the prompt for its summary.
+ */
+public record Continuation(Long parentId, String context, String prompt, LlmResponse response, long latencyMs,
+        String summaryPrompt) {
+
+    public String result() {
+        return response.text();
+    }
+}
@@ -0,0 +1,54 @@
+package project.narrative.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * State of a job continuing every leaf of a story in the background. The
+ * counters are updated as leaves are generated and stored, so the job can be
+ * polled for progress; the completion future finishes with the job.
+ */
+@Getter
+@Setter
+public class ExpansionJob {
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String jobId;
+    private final Long storyId;
+    private final Instant submittedAt;
+    private final int totalLeaves;
+    private final CompletableFuture<ExpansionJob> completion = new CompletableFuture<>();
+
+    // Leaves whose continuation was generated, stored or not
+    private final AtomicInteger generated = new AtomicInteger();
+    // Leaves whose continuation could not be generated or stored
+    private final AtomicInteger failed = new AtomicInteger();
+    // Nodes created so far, in the order they were stored
+    private final List<Long> nodeIds = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant finishedAt;
+    // First error met, when some leaves failed
+    private volatile String error;
+
+    public ExpansionJob(String jobId, Long storyId, Instant submittedAt, int totalLeaves) {
+        this.jobId = jobId;
+        this.storyId = storyId;
+        this.submittedAt = submittedAt;
+        this.totalLeaves = totalLeaves;
+    }
+
+    public boolean isFinished() {
+        return status == Status.SUCCEEDED || status == Status.FAILED;
+    }
+}
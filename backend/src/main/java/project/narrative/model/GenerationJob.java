@@ -0,0 +1,42 @@
+package project.narrative.model;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import lombok.Getter;
+import lombok.Setter;
+import project.narrative.dto.GeneratedResultDTO;
+
+/**
+ * State of a story continuation generated in the background. The completion
+ * future finishes when the job succeeds or fails, so callers can wait on it
+ * without polling.
+ */
+@Getter
+@Setter
+public class GenerationJob {
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String jobId;
+    private final Long storyId;
+    private final Instant submittedAt;
+    private final CompletableFuture<GenerationJob> completion = new CompletableFuture<>();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant finishedAt;
+    private volatile GeneratedResultDTO result;
+    private volatile String error;
+
+    public GenerationJob(String jobId, Long storyId, Instant submittedAt) {
+        this.jobId = jobId;
+        this.storyId = storyId;
+        this.submittedAt = submittedAt;
+    }
+
+    public boolean isFinished() {
+        return status == Status.SUCCEEDED || status == Status.FAILED;
+    }
+}
@@ -0,0 +1,29 @@
+package project.narrative.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Text produced by a model call, with the number of tokens the model reported
+ * for it. The counts are zero when the model did not report usage. A call
+ * asking for several candidates has all of them in candidates, the first
+ * being text.
+ */
+public record LlmResponse(String text, int promptTokens, int candidatesTokens, int totalTokens,
+        List<String> candidates) {
+
+    public LlmResponse(String text, int promptTokens, int candidatesTokens, int totalTokens) {
+        this(text, promptTokens, candidatesTokens, totalTokens, Collections.singletonList(text));
+    }
+
+    /**
+     * Response without usage information.
+     */
+    public static LlmResponse of(String text) {
+        return new LlmResponse(text, 0, 0, 0);
+    }
+
+    public boolean hasUsage() {
+        return promptTokens > 0 || candidatesTokens > 0 || totalTokens > 0;
+    }
+}
@@ -0,0 +1,40 @@
+package project.narrative.model;
+
+import project.narrative.model.entities.Node;
+
+/**
+ * Columns of a node needed to navigate a tree, without any of its text.
+ * Used as a Spring Data projection so listings skip the Lob columns.
+ */
+public interface NodeSummary {
+    Long getNodeId();
+
+    Long getParentId();
+
+    String getNodeName();
+
+    String getPath();
+
+    /**
+     * Summary view of a node that is already loaded.
+     */
+    static NodeSummary of(Node node) {
+        return new NodeSummary() {
+            public Long getNodeId() {
+                return node.getNodeId();
+            }
+
+            public Long getParentId() {
+                return node.getParentId();
+            }
+
+            public String getNodeName() {
+                return node.getNodeName();
+            }
+
+            public String getPath() {
+                return node.getPath();
+            }
+        };
+    }
+}
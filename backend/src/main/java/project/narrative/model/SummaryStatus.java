@@ -0,0 +1,14 @@
+package project.narrative.model;
+
+/**
+ * State of the rolling summary of a node, which is generated in the
+ * background after the node's continuation.
+ */
+public enum SummaryStatus {
+    // The summary is being generated
+    PENDING,
+    // The summary is stored on the node
+    READY,
+    // Generating the summary failed, the node has no summary
+    FAILED
+}
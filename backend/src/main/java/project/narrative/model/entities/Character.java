@@ -11,7 +11,9 @@ import lombok.ToString;
 @Setter
 @ToString
 @NoArgsConstructor
-@Table(name = "character")
+@Table(name = "character", indexes = {
+        @Index(name = "idx_character_story_name", columnList = "storyid, first_name, last_name")
+})
 public class Character {
 
     @Id
@@ -0,0 +1,60 @@
+package project.narrative.model.entities;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.Instant;
+
+/**
+ * A continuation returned by the model, kept so it can be shown again or
+ * restored onto its node without paying for another model call. Rows are
+ * written in batches with JDBC, so the ids are generated by the database.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(name = "generation_history", indexes = {
+        @Index(name = "idx_generation_history_node", columnList = "node_id, created_at"),
+        @Index(name = "idx_generation_history_parent", columnList = "storyid, parent_id, created_at")
+})
+public class GenerationHistory {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private Long storyid;
+
+    // Node the continuation was stored on, or null if it was only returned
+    @Column(name = "node_id")
+    private Long nodeId;
+
+    // Node the continuation continues, or null for the start of a story
+    @Column(name = "parent_id")
+    private Long parentId;
+
+    // SHA-256 of the prompt, in hex
+    @Column(length = 64)
+    private String promptHash;
+
+    @Column(columnDefinition = "TEXT")
+    private String result;
+
+    // Null when the summary was generated in the background
+    @Column(columnDefinition = "TEXT")
+    private String summary;
+
+    private int promptTokens;
+
+    private int candidatesTokens;
+
+    private int totalTokens;
+
+    private long latencyMs;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+}
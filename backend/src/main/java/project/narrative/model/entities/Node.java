@@ -10,12 +10,16 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
 import project.narrative.controller.NodeController.CharacterInfo;
+import project.narrative.model.SummaryStatus;
 
 @Entity
 @Getter
 @Setter
 @NoArgsConstructor
-@Table(name = "node")
+@Table(name = "node", indexes = {
+        @Index(name = "idx_node_parent_id", columnList = "parent_id"),
+        @Index(name = "idx_node_storyid", columnList = "storyid")
+})
 public class Node {
 
     @Getter
@@ -26,6 +30,16 @@ public class Node {
     @Getter
     private Long parentId;
 
+    // Ancestry of the node as "/rootId/.../nodeId/", used for subtree and lineage queries
+    @Column(columnDefinition = "TEXT")
+    private String path;
+
+    // Number of ancestors, 0 for a root node
+    private Integer depth;
+
+    // Story version of the last change to the node
+    private Long version;
+
     @Lob
     private String context; // prompt
 
@@ -38,6 +52,10 @@ public class Node {
     @Lob
     private String summary;
 
+    // Whether summary and context have been filled in, null for nodes summarized before this existed
+    @Enumerated(EnumType.STRING)
+    private SummaryStatus summaryStatus;
+
     private String nodeName;
 
     private String genre;
@@ -0,0 +1,37 @@
+package project.narrative.model.entities;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Record of a deleted node, kept so clients syncing by story version can
+ * learn about deletions.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(name = "node_tombstone", indexes = {
+        @Index(name = "idx_node_tombstone_story_version", columnList = "storyid, version")
+})
+public class NodeTombstone {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    private Long storyid;
+
+    private Long nodeId;
+
+    // Story version in which the node was deleted
+    private Long version;
+
+    public NodeTombstone(Long storyid, Long nodeId, Long version) {
+        this.storyid = storyid;
+        this.nodeId = nodeId;
+        this.version = version;
+    }
+}
@@ -46,6 +46,10 @@ public class Story {
 
     private String description;
 
+    // Incremented on every node change, only ever written by StoryRepo.incrementVersion
+    @Column(insertable = false, updatable = false, columnDefinition = "BIGINT DEFAULT 0")
+    private Long version;
+
     public Story(String storyname, User user, String genre, LocalDate creationDate, LocalDate lastUpdate) {
         this.storyname = storyname;
         this.user = user;
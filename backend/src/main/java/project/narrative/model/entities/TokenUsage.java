@@ -0,0 +1,36 @@
+package project.narrative.model.entities;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Tokens used by the model calls of a story. The owner of the story is kept
+ * with the totals, so usage still counts for the user after the story is
+ * deleted.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(name = "token_usage", indexes = {
+        @Index(name = "idx_token_usage_user", columnList = "user_id")
+})
+public class TokenUsage {
+
+    @Id
+    private Long storyid;
+
+    @Column(name = "user_id")
+    private Long userId;
+
+    private long promptTokens;
+
+    private long candidatesTokens;
+
+    private long totalTokens;
+
+    // Number of model calls counted
+    private long calls;
+}
@@ -1,5 +1,6 @@
 package project.narrative.repository;
 
+import java.util.Collection;
 import java.util.Optional;
 import java.util.List;
 
@@ -18,6 +19,8 @@ public interface CharacterRepo extends JpaRepository<Character, Long> {
 
     Optional<Character> findByFirstName(String name);
 
-    Optional<Character> findByFirstNameAndLastName(String firstName, String lastName);
+    // Get the characters of a story whose first and last names are among the given ones
+    List<Character> findByStoryStoryidAndFirstNameInAndLastNameIn(Long storyid, Collection<String> firstNames,
+            Collection<String> lastNames);
 
 }
@@ -0,0 +1,27 @@
+package project.narrative.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import project.narrative.model.entities.GenerationHistory;
+
+import java.util.List;
+
+@Repository
+public interface GenerationHistoryRepo extends JpaRepository<GenerationHistory, Long> {
+
+    // Generations stored on a node, and those returned without a node for the same parent, newest first.
+    // A null parent matches the generations for the start of the story
+    @Query("""
+            SELECT h FROM GenerationHistory h
+            WHERE h.storyid = :storyId
+            AND (h.nodeId = :nodeId OR (h.nodeId IS NULL
+                AND ((:parentId IS NULL AND h.parentId IS NULL) OR h.parentId = :parentId)))
+            ORDER BY h.createdAt DESC, h.id DESC
+            """)
+    List<GenerationHistory> findForNode(@Param("storyId") Long storyId, @Param("nodeId") Long nodeId,
+            @Param("parentId") Long parentId, Pageable pageable);
+}
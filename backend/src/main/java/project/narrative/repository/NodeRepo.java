@@ -1,12 +1,21 @@
 package project.narrative.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import jakarta.persistence.QueryHint;
+import project.narrative.model.NodeSummary;
 import project.narrative.model.entities.Node;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface NodeRepo extends JpaRepository<Node, Long>{
@@ -16,6 +25,151 @@ public interface NodeRepo extends JpaRepository<Node, Long>{
     // Get all child nodes for a specific parent node
     Optional<List<Node>> findByParentId(Long parentId);
 
+    // Get the ids of the nodes of a story that have no children, oldest first
+    @Query("""
+            SELECT n.nodeId FROM Node n
+            WHERE n.story.storyid = :storyId
+            AND NOT EXISTS (SELECT c.nodeId FROM Node c WHERE c.parentId = n.nodeId)
+            ORDER BY n.nodeId
+            """)
+    List<Long> findLeafIdsByStoryid(@Param("storyId") Long storyId);
+
     // Get all nodes for a specific story
     Optional<List<Node>> findByStoryStoryid(Long storyId);
+
+    // Get all nodes for a set of stories in one query
+    Optional<List<Node>> findByStoryStoryidInOrderByNodeIdAsc(Collection<Long> storyIds);
+
+    // Stream the nodes of a set of stories from a database cursor. Each story's nodes without a path come
+    // first, then the others in depth-first order with siblings by id; the path is compared as an array of
+    // ids, since text collations may ignore the '/' separators
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "256"))
+    @Query(value = """
+            SELECT n.* FROM node n
+            WHERE n.storyid IN (:storyIds)
+            ORDER BY n.storyid, n.path IS NOT NULL,
+                CAST(string_to_array(trim(both '/' from n.path), '/') AS bigint[])
+            """, nativeQuery = true)
+    Stream<Node> streamByStoryIds(@Param("storyIds") Collection<Long> storyIds);
+
+    // Delete a node and its whole subtree in one statement, returns the number of nodes removed
+    @Modifying
+    @Query(value = """
+            WITH RECURSIVE subtree AS (
+                SELECT node_id FROM node WHERE node_id = :nodeId
+                UNION ALL
+                SELECT n.node_id FROM node n JOIN subtree s ON n.parent_id = s.node_id
+            )
+            DELETE FROM node WHERE node_id IN (SELECT node_id FROM subtree)
+            """, nativeQuery = true)
+    int deleteSubtree(@Param("nodeId") Long nodeId);
+
+    // Delete every node whose path starts with the given prefix, returns the number of nodes removed
+    @Modifying
+    @Query(value = "DELETE FROM node WHERE path LIKE :pathPrefix", nativeQuery = true)
+    int deleteByPathLike(@Param("pathPrefix") String pathPrefix);
+
+    // Get the ids of every node whose path starts with the given prefix
+    @Query("SELECT n.nodeId FROM Node n WHERE n.path LIKE :pathPrefix")
+    List<Long> findNodeIdsByPathLike(@Param("pathPrefix") String pathPrefix);
+
+    // Get the ids of a node and its whole subtree by walking parent ids
+    @Query(value = """
+            WITH RECURSIVE subtree AS (
+                SELECT node_id FROM node WHERE node_id = :nodeId
+                UNION ALL
+                SELECT n.node_id FROM node n JOIN subtree s ON n.parent_id = s.node_id
+            )
+            SELECT node_id FROM subtree
+            """, nativeQuery = true)
+    List<Long> findSubtreeIds(@Param("nodeId") Long nodeId);
+
+    // Get every node of a story, parents before children and siblings by id, then the nodes without a path;
+    // the path is compared as an array of ids, since text collations may ignore the '/' separators
+    @Query(value = """
+            SELECT n.* FROM node n
+            WHERE n.storyid = :storyId
+            ORDER BY CAST(string_to_array(trim(both '/' from n.path), '/') AS bigint[]), n.node_id
+            """, nativeQuery = true)
+    List<Node> findTreeByStoryid(@Param("storyId") Long storyId);
+
+    // Get the nodes whose summary is marked as being generated, parents before children
+    @Query(value = """
+            SELECT n.* FROM node n
+            WHERE n.summary_status = 'PENDING'
+            ORDER BY CAST(string_to_array(trim(both '/' from n.path), '/') AS bigint[]), n.node_id
+            """, nativeQuery = true)
+    List<Node> findPendingSummaries();
+
+    // Get the nodes of a story changed after a given version, parents before children and siblings by id
+    @Query(value = """
+            SELECT n.* FROM node n
+            WHERE n.storyid = :storyId AND n.version > :version
+            ORDER BY CAST(string_to_array(trim(both '/' from n.path), '/') AS bigint[]), n.node_id
+            """, nativeQuery = true)
+    List<Node> findChangedByStoryid(@Param("storyId") Long storyId, @Param("version") Long version);
+
+    // Get a node and all of its descendants, parents before children
+    List<Node> findByPathStartingWithOrderByPathAsc(String path);
+
+    // Get the ancestors of a node from the root down, looked up by the ids stored in its path
+    @Query(value = """
+            SELECT a.* FROM node a
+            WHERE a.node_id IN (
+                SELECT CAST(unnest(string_to_array(trim(both '/' from d.path), '/')) AS bigint)
+                FROM node d WHERE d.node_id = :nodeId
+            )
+            AND a.node_id <> :nodeId
+            ORDER BY a.depth
+            """, nativeQuery = true)
+    List<Node> findAncestors(@Param("nodeId") Long nodeId);
+
+    // Pages of root nodes or of the children of a node, keyed by nodeId
+    List<Node> findByStoryStoryidAndParentIdIsNullAndNodeIdGreaterThanOrderByNodeIdAsc(Long storyId, Long after,
+            Pageable pageable);
+
+    List<Node> findByParentIdAndNodeIdGreaterThanOrderByNodeIdAsc(Long parentId, Long after, Pageable pageable);
+
+    // Children of a set of nodes, siblings by id
+    List<Node> findByParentIdInOrderByNodeIdAsc(Collection<Long> parentIds);
+
+    // Summary columns of a story's nodes in depth-first order with siblings by id, without the Lob columns;
+    // the aliases are quoted so the projection finds them under their property names
+    @Query(value = """
+            SELECT n.node_id AS "nodeId", n.parent_id AS "parentId", n.node_name AS "nodeName", n.path AS "path"
+            FROM node n
+            WHERE n.storyid = :storyId
+            ORDER BY CAST(string_to_array(trim(both '/' from n.path), '/') AS bigint[]), n.node_id
+            """, nativeQuery = true)
+    List<NodeSummary> findOutlineByStoryid(@Param("storyId") Long storyId);
+
+    // Summary columns of the children of a set of nodes
+    List<NodeSummary> findSummariesByParentIdInOrderByNodeIdAsc(Collection<Long> parentIds);
+
+    // Number of children of each node, as [parentId, count] rows
+    @Query("SELECT n.parentId, COUNT(n) FROM Node n WHERE n.parentId IN :parentIds GROUP BY n.parentId")
+    List<Object[]> countChildrenByParentIds(@Param("parentIds") Collection<Long> parentIds);
+
+    @Query("SELECT n.depth FROM Node n WHERE n.nodeId = :nodeId")
+    Optional<Integer> findDepthByNodeId(@Param("nodeId") Long nodeId);
+
+    // Fill in path and depth for nodes created before they were maintained
+    @Modifying
+    @Query(value = """
+            WITH RECURSIVE tree AS (
+                SELECT node_id, '/' || node_id || '/' AS path, 0 AS depth
+                FROM node WHERE parent_id IS NULL
+                UNION ALL
+                SELECT n.node_id, t.path || n.node_id || '/', t.depth + 1
+                FROM node n JOIN tree t ON n.parent_id = t.node_id
+            )
+            UPDATE node SET path = tree.path, depth = tree.depth
+            FROM tree WHERE node.node_id = tree.node_id AND node.path IS NULL
+            """, nativeQuery = true)
+    int backfillPaths();
+
+    // Prefix searches on path need a pattern index, which the JPA index annotations cannot express
+    @Modifying
+    @Query(value = "CREATE INDEX IF NOT EXISTS idx_node_path ON node (path text_pattern_ops)", nativeQuery = true)
+    void createPathIndex();
 }
@@ -0,0 +1,30 @@
+package project.narrative.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import project.narrative.model.entities.NodeTombstone;
+
+import java.util.List;
+
+@Repository
+public interface NodeTombstoneRepo extends JpaRepository<NodeTombstone, Long> {
+
+    // Get the nodes of a story deleted after a given version
+    List<NodeTombstone> findByStoryidAndVersionGreaterThan(Long storyid, Long version);
+
+    // Delete the tombstones older than the last retainedVersions versions of their story, and those of deleted
+    // stories, returns the number of tombstones removed
+    @Modifying
+    @Query(value = """
+            DELETE FROM node_tombstone t
+            WHERE NOT EXISTS (
+                SELECT 1 FROM story s
+                WHERE s.storyid = t.storyid AND t.version > COALESCE(s.version, 0) - :retainedVersions
+            )
+            """, nativeQuery = true)
+    int deleteOlderThanRetained(@Param("retainedVersions") long retainedVersions);
+}
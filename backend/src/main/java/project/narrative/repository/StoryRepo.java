@@ -5,6 +5,9 @@ import java.util.List;
 import java.util.Optional;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import project.narrative.model.entities.Story;
@@ -21,6 +24,10 @@ public interface StoryRepo extends JpaRepository<Story, Long> {
     // Find all stories by username, wrapped in Optional if needed
     Optional<List<Story>> findByUserUsername(String username);
 
+    // Find the ids of a user's stories in ascending order
+    @Query("SELECT s.storyid FROM Story s WHERE s.user.username = :username ORDER BY s.storyid")
+    List<Long> findStoryidsByUserUsername(@Param("username") String username);
+
     // Find stories where the storyname contains the specified substring, wrapped in Optional
     Optional<List<Story>> findByStorynameContainingAndUserUsername(String storyname, String username);
 
@@ -48,4 +55,13 @@ public interface StoryRepo extends JpaRepository<Story, Long> {
 
     // Find stories by username and genre
     Optional<List<Story>> findByUserUsernameAndGenre(String username, String genre);
-}
\ No newline at end of file
+
+    // Advance the version of a story; also locks the story row, so node changes to a story are serialized
+    @Modifying
+    @Query(value = "UPDATE story SET version = COALESCE(version, 0) + 1 WHERE storyid = :storyId", nativeQuery = true)
+    int incrementVersion(@Param("storyId") Long storyId);
+
+    // Get the current version of a story
+    @Query("SELECT COALESCE(s.version, 0) FROM Story s WHERE s.storyid = :storyId")
+    Optional<Long> findVersionByStoryid(@Param("storyId") Long storyId);
+}
@@ -0,0 +1,15 @@
+package project.narrative.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import project.narrative.model.entities.TokenUsage;
+
+import java.util.List;
+
+@Repository
+public interface TokenUsageRepo extends JpaRepository<TokenUsage, Long> {
+
+    // Get the usage of every story of a user, including deleted stories
+    List<TokenUsage> findByUserId(Long userId);
+}
@@ -0,0 +1,142 @@
+package project.narrative.service;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Count-based circuit breaker. While CLOSED it tracks the outcome of the last
+ * calls and opens once enough of them failed. While OPEN every call is refused
+ * until the open period is over; then a single trial call is let through in
+ * HALF_OPEN, and its outcome closes or reopens the breaker.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final boolean[] failures;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openNanos;
+    // Called with the previous and the new state on every transition
+    private final BiConsumer<State, State> onTransition;
+
+    private State state = State.CLOSED;
+    // Ring buffer of the latest outcomes while closed
+    private int recorded = 0;
+    private int next = 0;
+    private int failed = 0;
+    private long openedAt;
+    private boolean trialInFlight = false;
+
+    /**
+     * @param windowSize           number of latest calls the failure rate is
+     *                             computed over.
+     * @param minimumCalls         calls needed in the window before the breaker
+     *                             can open.
+     * @param failureRateThreshold failure rate, between 0 and 1, that opens the
+     *                             breaker.
+     * @param openNanos            how long the breaker stays open before a trial.
+     * @param onTransition         listener for state changes.
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openNanos,
+            BiConsumer<State, State> onTransition) {
+        this.failures = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, failures.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openNanos;
+        this.onTransition = onTransition;
+    }
+
+    /**
+     * Ask to make a call. Every permitted call must be followed by onSuccess,
+     * onFailure or onIgnored.
+     *
+     * @return whether the call may go ahead.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            transition(State.HALF_OPEN);
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            reset();
+            transition(State.CLOSED);
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minimumCalls && (double) failed / recorded >= failureRateThreshold) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * End a permitted call without counting it, such as a cancelled stream.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (recorded == failures.length) {
+            if (failures[next]) {
+                failed--;
+            }
+        } else {
+            recorded++;
+        }
+        failures[next] = failure;
+        if (failure) {
+            failed++;
+        }
+        next = (next + 1) % failures.length;
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        reset();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        recorded = 0;
+        next = 0;
+        failed = 0;
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        onTransition.accept(from, to);
+    }
+}
@@ -0,0 +1,172 @@
+package project.narrative.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import project.narrative.model.APIResponse;
+import project.narrative.model.LlmResponse;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Google Gemini, the default provider.
+ */
+@Component
+@ConditionalOnProperty(name = "narrative.llm.provider", havingValue = "gemini", matchIfMissing = true)
+public class GeminiProvider implements LlmProvider {
+
+    private static final String MODEL = "gemini-pro";
+    private static final String MODEL_URL = "https://generativelanguage.googleapis.com/v1/models/" + MODEL;
+
+    private final RestTemplate template;
+    private final WebClient webClient;
+
+    public GeminiProvider(RestTemplate template, WebClient webClient) {
+        this.template = template;
+        this.webClient = webClient;
+    }
+
+    @Override
+    public String model() {
+        return MODEL;
+    }
+
+    /**
+     * Alternatives are requested with generationConfig.candidateCount;
+     * candidates without text, such as blocked ones, are skipped.
+     */
+    @Override
+    public LlmResponse generate(String key, String prompt, int candidateCount) {
+        String url = MODEL_URL + ":generateContent?key=" + key;
+
+        /*
+         * NOTE:
+         * - Set the headers in the HTTP request.
+         */
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        Map<String, Object> body = buildRequestBody(prompt);
+        if (candidateCount > 1) {
+            body.put("generationConfig", Map.of("candidateCount", candidateCount));
+        }
+
+        /*
+         * NOTE:
+         * - Create the request entity with headers and body. Just a container for
+         * the crap to send to Gemini.
+         */
+        HttpEntity<Map<String, Object>> request = new HttpEntity<>(body, headers);
+
+        /*
+         * NOTE:
+         * - Make the request to the server and creating a response entity to encap-
+         * sulate all the information.
+         */
+        ResponseEntity<APIResponse> response = template.exchange(
+                url,
+                HttpMethod.POST,
+                request,
+                APIResponse.class);
+
+        /*
+         * NOTE:
+         * - Return the text of the candidates and the tokens Gemini counted.
+         */
+        APIResponse responseBody = response.getBody();
+        List<String> candidates = new ArrayList<>();
+        for (APIResponse.Candidate candidate : responseBody.getCandidates()) {
+            String text = textOf(candidate);
+            if (!text.isEmpty()) {
+                candidates.add(text);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("Gemini returned no text");
+        }
+        LlmResponse usage = withUsage(candidates.get(0), responseBody);
+        return new LlmResponse(usage.text(), usage.promptTokens(), usage.candidatesTokens(), usage.totalTokens(),
+                candidates);
+    }
+
+    /**
+     * Uses streamGenerateContent with server-sent events.
+     */
+    @Override
+    public Flux<LlmResponse> stream(String key, String prompt) {
+        return webClient.post()
+                .uri(MODEL_URL + ":streamGenerateContent?alt=sse&key=" + key)
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(buildRequestBody(prompt))
+                .retrieve()
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<APIResponse>>() {
+                })
+                .mapNotNull(event -> event.data() == null ? null : withUsage(textOf(event.data()), event.data()))
+                .filter(chunk -> !chunk.text().isEmpty() || chunk.hasUsage());
+    }
+
+    /*
+     * NOTE:
+     * - Create the request body of the HTTP request. Structure of the Gemini
+     * JSON request is available in the documentation. Check out the the curl
+     * command to see what the HTTP request consists of.
+     */
+    private static Map<String, Object> buildRequestBody(String prompt) {
+        Map<String, Object> body = new HashMap<>();
+        Map<String, Object> user = new HashMap<>();
+        user.put("role", "user");
+        Map<String, String> text = new HashMap<>();
+        text.put("text", prompt);
+        user.put("parts", new Map[] { text });
+        body.put("contents", new Map[] { user });
+        return body;
+    }
+
+    /**
+     * Text of the first candidate of a streamed chunk, or an empty string for
+     * chunks that carry no text, such as the final one with only the finish
+     * reason.
+     */
+    private static String textOf(APIResponse response) {
+        if (response.getCandidates() == null || response.getCandidates().isEmpty()) {
+            return "";
+        }
+        return textOf(response.getCandidates().get(0));
+    }
+
+    private static String textOf(APIResponse.Candidate candidate) {
+        APIResponse.Candidate.Content content = candidate.getContent();
+        if (content == null || content.getParts() == null || content.getParts().isEmpty()) {
+            return "";
+        }
+        String text = content.getParts().get(0).getText();
+        return text == null ? "" : text;
+    }
+
+    /**
+     * Attach the usageMetadata of a response to its text. Streamed chunks
+     * report the tokens used so far.
+     */
+    private static LlmResponse withUsage(String text, APIResponse response) {
+        APIResponse.UsageMetadata usage = response.getUsageMetadata();
+        if (usage == null) {
+            return LlmResponse.of(text);
+        }
+        return new LlmResponse(text, usage.getPromptTokenCount(), usage.getCandidatesTokenCount(),
+                usage.getTotalTokenCount());
+    }
+}
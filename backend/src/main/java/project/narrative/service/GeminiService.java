@@ -1,86 +1,189 @@
 package project.narrative.service;
 
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
 import project.narrative.dto.CharacterDTO;
-import project.narrative.model.APIRequest;
-import project.narrative.model.APIResponse;
+import project.narrative.model.LlmResponse;
 import project.narrative.model.entities.Story;
 import project.narrative.repository.StoryRepo;
+import reactor.core.publisher.Flux;
 
-import java.util.HashMap;
 import java.util.Map;
-
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Entry point for model calls. Responses come from the configured LlmProvider
+ * and are cached by prompt; concurrent identical prompts share one call, and
+ * calls go through LlmCallExecutor for hedging and circuit breaking. The
+ * tokens used by each call are counted by TokenUsageService.
+ */
 @Service
 public class GeminiService {
 
-    private final RestTemplate template;
+    private final LlmProvider llmProvider;
     private final StoryRepo storyRepo;
+    private final LlmResponseCache responseCache;
+    private final GenerationRateLimiter rateLimiter;
+    private final LlmCallExecutor callExecutor;
+    private final TokenUsageService tokenUsageService;
+
+    // Upstream calls in progress, by content address of the prompt
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
 
-    public GeminiService(RestTemplate template, StoryRepo storyRepo) {
-        this.template = template;
+    public GeminiService(LlmProvider llmProvider, StoryRepo storyRepo, LlmResponseCache responseCache,
+            GenerationRateLimiter rateLimiter, LlmCallExecutor callExecutor, TokenUsageService tokenUsageService) {
+        this.llmProvider = llmProvider;
         this.storyRepo = storyRepo;
+        this.responseCache = responseCache;
+        this.rateLimiter = rateLimiter;
+        this.callExecutor = callExecutor;
+        this.tokenUsageService = tokenUsageService;
     }
 
     public String sendAndReceiveRequest(String key, String prompt) {
-        String url = "https://generativelanguage.googleapis.com/v1/models/" +
-                "gemini-pro:generateContent?key=" + key;
-
-        /*
-         * NOTE:
-         * - Set the headers in the HTTP request.
-         */
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-
-        /*
-         * NOTE:
-         * - Create the request body of the HTTP request. Structure of the Gemini
-         * JSON request is available in the documentation. Check out the the curl
-         * command to see what the HTTP request consists of.
-         */
-        Map<String, Object> body = new HashMap<>();
-        Map<String, Object> user = new HashMap<>();
-        user.put("role", "user");
-        Map<String, String> text = new HashMap<>();
-        text.put("text", prompt);
-        user.put("parts", new Map[] { text });
-        body.put("contents", new Map[] { user });
-
-        /*
-         * NOTE:
-         * - Create the request entity with headers and body. Just a container for
-         * the crap to send to Gemini.
-         */
-        HttpEntity<Map<String, Object>> request = new HttpEntity<>(body, headers);
-
-        /*
-         * NOTE:
-         * - Make the request to the server and creating a response entity to encap-
-         * sulate all the information.
-         */
-        ResponseEntity<APIResponse> response = template.exchange(
-                url,
-                HttpMethod.POST,
-                request,
-                APIResponse.class);
-
-        /*
-         * NOTE:
-         * - Return the response body.
-         */
-        return response.getBody().getCandidates().get(0).getContent().getParts().get(0).getText();
+        return sendAndReceiveRequest(key, prompt, false, null);
+    }
+
+    /**
+     * Send a prompt to the model, answering from the response cache when the same
+     * prompt was sent before. Concurrent calls with the same prompt share one
+     * upstream call and receive its response or its exception.
+     *
+     * @param forceFresh skip the cache lookup and ask the model again; the new
+     *                   response replaces the cached one.
+     * @param storyId    story the tokens are charged to, or null; answers from
+     *                   the cache or another caller's call use no tokens.
+     * @return the text of the first candidate.
+     */
+    public String sendAndReceiveRequest(String key, String prompt, boolean forceFresh, Long storyId) {
+        return sendAndReceive(key, prompt, forceFresh, storyId).text();
+    }
+
+    /**
+     * Send a prompt to the model like sendAndReceiveRequest, also returning
+     * the tokens used.
+     *
+     * @return the response; answers from the cache or another caller's call
+     *         report no usage, as they cost nothing.
+     */
+    public LlmResponse sendAndReceive(String key, String prompt, boolean forceFresh, Long storyId) {
+        if (!forceFresh) {
+            Optional<String> cached = responseCache.get(llmProvider.model(), prompt);
+            if (cached.isPresent()) {
+                return LlmResponse.of(cached.get());
+            }
+        }
+
+        String flightKey = LlmResponseCache.key(llmProvider.model(), prompt);
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(flightKey, call);
+        if (existing != null) {
+            return LlmResponse.of(awaitCall(existing));
+        }
+        try {
+            // A call for the same prompt may have cached its response and left
+            // between the cache lookup above and joining the flight
+            if (!forceFresh) {
+                Optional<String> cached = responseCache.get(llmProvider.model(), prompt);
+                if (cached.isPresent()) {
+                    call.complete(cached.get());
+                    return LlmResponse.of(cached.get());
+                }
+            }
+            long start = System.nanoTime();
+            LlmResponse response = callExecutor.call(() -> llmProvider.generate(key, prompt),
+                    discarded -> tokenUsageService.record(llmProvider.model(), storyId, discarded));
+            tokenUsageService.record(llmProvider.model(), storyId, response);
+            String text = response.text();
+            // Cache before leaving the flight, so later callers find the response
+            responseCache.put(llmProvider.model(), prompt, text, System.nanoTime() - start);
+            call.complete(text);
+            return response;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, call);
+        }
+    }
+
+    /**
+     * Ask the model for several alternative responses to a prompt in one call.
+     * Alternatives are wanted to differ from earlier ones, so they are neither
+     * cached nor shared with concurrent callers.
+     *
+     * @param candidateCount number of alternatives wanted; the model may return
+     *                       fewer.
+     * @param storyId        story the tokens are charged to, or null.
+     * @return the response, with the text of each alternative in order in
+     *         candidates.
+     */
+    public LlmResponse sendAndReceiveCandidates(String key, String prompt, int candidateCount, Long storyId) {
+        LlmResponse response = callExecutor.call(() -> llmProvider.generate(key, prompt, candidateCount),
+                discarded -> tokenUsageService.record(llmProvider.model(), storyId, discarded));
+        tokenUsageService.record(llmProvider.model(), storyId, response);
+        return response;
+    }
+
+    /**
+     * Wait for a call started by another thread, rethrowing its exception.
+     */
+    private static String awaitCall(CompletableFuture<String> call) {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Send a prompt to the model and receive the completion in pieces as the
+     * model produces it. Streamed responses are not cached.
+     *
+     * @return the text of each streamed chunk, in order.
+     */
+    public Flux<String> streamRequest(String key, String prompt) {
+        return streamRequest(key, prompt, null);
+    }
+
+    /**
+     * Stream a response, charging its tokens to a story. Chunks report the
+     * usage so far, so only the latest usage is recorded, once the stream
+     * ends or is cancelled.
+     */
+    public Flux<String> streamRequest(String key, String prompt, Long storyId) {
+        return Flux.defer(() -> {
+            AtomicReference<LlmResponse> usage = new AtomicReference<>();
+            return callExecutor.stream(() -> llmProvider.stream(key, prompt))
+                    .doOnNext(chunk -> {
+                        if (chunk.hasUsage()) {
+                            usage.set(chunk);
+                        }
+                    })
+                    .doFinally(signal -> {
+                        if (usage.get() != null) {
+                            tokenUsageService.record(llmProvider.model(), storyId, usage.get());
+                        }
+                    })
+                    .map(LlmResponse::text)
+                    .filter(text -> !text.isEmpty());
+        });
     }
 
     public CharacterDTO characterGenerated(String key, String firstName, String lastName, String context,
             Long storyId) {
         Story story = storyRepo.findById(storyId).orElseThrow(() -> new RuntimeException("Story not found"));
+        rateLimiter.acquire(story.getUser().getUsername(), story.getUser().getRole());
         StringBuilder sb = new StringBuilder();
 
         // Generate New Result from AI
@@ -91,7 +194,7 @@ public class GeminiService {
                 ========================================
 
                     """, firstName, lastName, story.getGenre()));
-        String background = sendAndReceiveRequest(key, sb.toString());
+        String background = sendAndReceiveRequest(key, sb.toString(), false, storyId);
         // String background = "This is the background";
 
         CharacterDTO characterDTO = new CharacterDTO();
@@ -0,0 +1,187 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.entities.GenerationHistory;
+import project.narrative.repository.GenerationHistoryRepo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the continuations returned by the model. Recording only adds the
+ * generation to an in-memory buffer, so it costs the request nothing; the
+ * buffer is written to generation_history with JDBC batch inserts every
+ * narrative.history.flush-interval-ms, so stored history lags behind by up to
+ * that interval. When writes fall behind and the buffer holds
+ * narrative.history.buffer-capacity generations, new ones are dropped.
+ *
+ * The buffer size is published as narrative.history.pending and dropped
+ * generations are counted as narrative.history.dropped.
+ */
+@Service
+public class GenerationHistoryService {
+
+    private static final String INSERT = """
+            INSERT INTO generation_history (storyid, node_id, parent_id, prompt_hash, result, summary,
+                prompt_tokens, candidates_tokens, total_tokens, latency_ms, created_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private final GenerationHistoryRepo generationHistoryRepo;
+    private final JdbcTemplate jdbcTemplate;
+    private final int capacity;
+    private final int batchSize;
+
+    // Generations not yet written, oldest first
+    private final Queue<GenerationHistory> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Counter droppedCounter;
+
+    public GenerationHistoryService(GenerationHistoryRepo generationHistoryRepo, JdbcTemplate jdbcTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${narrative.history.buffer-capacity:10000}") int capacity,
+            @Value("${narrative.history.batch-size:100}") int batchSize) {
+        this.generationHistoryRepo = generationHistoryRepo;
+        this.jdbcTemplate = jdbcTemplate;
+        this.capacity = capacity;
+        this.batchSize = Math.max(1, batchSize);
+        Gauge.builder("narrative.history.pending", pendingCount, AtomicInteger::get)
+                .description("Generations waiting to be written to the history")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("narrative.history.dropped")
+                .description("Generations left out of the history because the write buffer was full")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Add a generation to the history.
+     *
+     * @param storyId   story of the generation.
+     * @param nodeId    node the continuation was stored on, or null.
+     * @param parentId  node the continuation continues, or null.
+     * @param prompt    prompt sent to the model.
+     * @param response  the continuation, with the tokens the call used.
+     * @param summary   summary of the continuation, or null if it is generated
+     *                  in the background.
+     * @param latencyMs time the model took to answer.
+     */
+    public void record(Long storyId, Long nodeId, Long parentId, String prompt, LlmResponse response,
+            String summary, long latencyMs) {
+        GenerationHistory history = new GenerationHistory();
+        history.setStoryid(storyId);
+        history.setNodeId(nodeId);
+        history.setParentId(parentId);
+        history.setPromptHash(hash(prompt));
+        history.setResult(response.text());
+        history.setSummary(summary);
+        history.setPromptTokens(response.promptTokens());
+        history.setCandidatesTokens(response.candidatesTokens());
+        history.setTotalTokens(response.totalTokens());
+        history.setLatencyMs(latencyMs);
+        history.setCreatedAt(Instant.now());
+        offer(history);
+    }
+
+    /**
+     * Write the buffered generations in batches. If a batch fails it is put
+     * back in the buffer for the next flush.
+     */
+    @Scheduled(fixedDelayString = "${narrative.history.flush-interval-ms:2000}")
+    public void flush() {
+        while (true) {
+            List<GenerationHistory> batch = new ArrayList<>(batchSize);
+            GenerationHistory history;
+            while (batch.size() < batchSize && (history = pending.poll()) != null) {
+                batch.add(history);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            pendingCount.addAndGet(-batch.size());
+            try {
+                jdbcTemplate.batchUpdate(INSERT, batch, batchSize, GenerationHistoryService::bind);
+            } catch (RuntimeException e) {
+                batch.forEach(this::offer);
+                throw e;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Stored generations for a node: those stored on it, and those returned
+     * without a node for the same parent.
+     *
+     * @param limit maximum number of generations.
+     * @return the generations, newest first.
+     */
+    public List<GenerationHistory> findForNode(Long storyId, Long nodeId, Long parentId, int limit) {
+        return generationHistoryRepo.findForNode(storyId, nodeId, parentId, PageRequest.of(0, limit));
+    }
+
+    public Optional<GenerationHistory> findById(Long historyId) {
+        return generationHistoryRepo.findById(historyId);
+    }
+
+    /**
+     * SHA-256 of a prompt, in hex.
+     */
+    public static String hash(String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(prompt.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void offer(GenerationHistory history) {
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            droppedCounter.increment();
+            return;
+        }
+        pending.add(history);
+    }
+
+    private static void bind(PreparedStatement statement, GenerationHistory history) throws SQLException {
+        statement.setLong(1, history.getStoryid());
+        statement.setObject(2, history.getNodeId(), Types.BIGINT);
+        statement.setObject(3, history.getParentId(), Types.BIGINT);
+        statement.setString(4, history.getPromptHash());
+        statement.setString(5, history.getResult());
+        statement.setString(6, history.getSummary());
+        statement.setInt(7, history.getPromptTokens());
+        statement.setInt(8, history.getCandidatesTokens());
+        statement.setInt(9, history.getTotalTokens());
+        statement.setLong(10, history.getLatencyMs());
+        statement.setTimestamp(11, Timestamp.from(history.getCreatedAt()));
+    }
+}
@@ -0,0 +1,183 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import project.narrative.controller.NodeController.Prompt;
+import project.narrative.dto.GenerationJobDTO;
+import project.narrative.error.GenerationQueueFullException;
+import project.narrative.error.UnfoundJobException;
+import project.narrative.model.GenerationJob;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs NodeService.generateResult on a bounded pool of worker threads, so
+ * request threads only submit a job and return. Jobs are kept in memory for a
+ * while after they finish so clients can collect the result.
+ *
+ * The pool is published as the executor.* meters with name=generation;
+ * queue wait and total latency as narrative.generation.job.wait and
+ * narrative.generation.job.latency; rejected submissions as
+ * narrative.generation.jobs.rejected.
+ */
+@Service
+public class GenerationJobService {
+
+    private final NodeService nodeService;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, GenerationJob> jobs = new ConcurrentHashMap<>();
+    private final Duration retention;
+
+    private final Timer waitTimer;
+    private final Counter rejectedCounter;
+    private final MeterRegistry meterRegistry;
+
+    public GenerationJobService(NodeService nodeService, MeterRegistry meterRegistry,
+            @Value("${narrative.generation.threads:4}") int threads,
+            @Value("${narrative.generation.queue-capacity:50}") int queueCapacity,
+            @Value("${narrative.generation.retention-minutes:10}") long retentionMinutes) {
+        this.nodeService = nodeService;
+        this.meterRegistry = meterRegistry;
+        this.retention = Duration.ofMinutes(retentionMinutes);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("generation-"),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        new ExecutorServiceMetrics(executor, "generation", Tags.empty()).bindTo(meterRegistry);
+        this.waitTimer = Timer.builder("narrative.generation.job.wait")
+                .description("Time generation jobs spend queued before a worker picks them up")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("narrative.generation.jobs.rejected")
+                .description("Generation jobs refused because the queue was full")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue the generation of a story continuation.
+     *
+     * @param key     API key for the model.
+     * @param storyId story to continue.
+     * @param prompt  parent, direction and characters of the continuation.
+     * @return the queued job.
+     * @throws GenerationQueueFullException if the queue has no room left.
+     */
+    public GenerationJobDTO submit(String key, Long storyId, Prompt prompt) {
+        GenerationJob job = new GenerationJob(UUID.randomUUID().toString(), storyId, Instant.now());
+        jobs.put(job.getJobId(), job);
+        try {
+            executor.execute(() -> run(job, key, prompt));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getJobId());
+            rejectedCounter.increment();
+            throw new GenerationQueueFullException();
+        }
+        return new GenerationJobDTO(job);
+    }
+
+    /**
+     * Get the current state of a job.
+     *
+     * @param storyId story the job was submitted for.
+     * @param jobId   id of the job.
+     * @return the job.
+     * @throws UnfoundJobException if the job is unknown or belongs to another story.
+     */
+    public GenerationJobDTO getJob(Long storyId, String jobId) {
+        return new GenerationJobDTO(findJob(storyId, jobId));
+    }
+
+    /**
+     * Wait for a job to finish without holding a thread.
+     *
+     * @param storyId story the job was submitted for.
+     * @param jobId   id of the job.
+     * @param timeout longest time to wait.
+     * @return a future with the job once it finished, or with its state at the
+     *         end of the timeout.
+     * @throws UnfoundJobException if the job is unknown or belongs to another story.
+     */
+    public CompletableFuture<GenerationJobDTO> awaitJob(Long storyId, String jobId, Duration timeout) {
+        GenerationJob job = findJob(storyId, jobId);
+        // Time out a copy, so the job's own future only completes when the job does
+        return job.getCompletion().copy()
+                .completeOnTimeout(job, timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(GenerationJobDTO::new);
+    }
+
+    /**
+     * Forget jobs that finished longer ago than the retention period.
+     */
+    @Scheduled(fixedDelayString = "${narrative.generation.cleanup-interval-ms:60000}")
+    public void removeExpiredJobs() {
+        Instant cutoff = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && !job.getFinishedAt().isAfter(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(GenerationJob job, String key, Prompt prompt) {
+        waitTimer.record(Duration.between(job.getSubmittedAt(), Instant.now()));
+        job.setStatus(GenerationJob.Status.RUNNING);
+        try {
+            job.setResult(nodeService.generateResult(key, job.getStoryId(), prompt));
+            job.setStatus(GenerationJob.Status.SUCCEEDED);
+        } catch (RuntimeException e) {
+            job.setError(describe(e));
+            job.setStatus(GenerationJob.Status.FAILED);
+        } finally {
+            job.setFinishedAt(Instant.now());
+            Timer.builder("narrative.generation.job.latency")
+                    .description("Time from submitting a generation job to its completion")
+                    .tag("status", job.getStatus().name())
+                    .register(meterRegistry)
+                    .record(Duration.between(job.getSubmittedAt(), job.getFinishedAt()));
+            job.getCompletion().complete(job);
+        }
+    }
+
+    private GenerationJob findJob(Long storyId, String jobId) {
+        GenerationJob job = jobs.get(jobId);
+        if (job == null || !job.getStoryId().equals(storyId)) {
+            throw new UnfoundJobException();
+        }
+        return job;
+    }
+
+    /**
+     * Message for a failed job, using the reason of exceptions mapped to an
+     * HTTP status when there is no message.
+     */
+    static String describe(RuntimeException e) {
+        if (e instanceof ResponseStatusException statusException) {
+            return statusException.getReason();
+        }
+        if (e.getMessage() != null) {
+            return e.getMessage();
+        }
+        ResponseStatus status = e.getClass().getAnnotation(ResponseStatus.class);
+        return status != null && !status.reason().isEmpty() ? status.reason() : e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,146 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import project.narrative.error.RateLimitExceededException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast users can request generations. Every request takes a token
+ * from the user's own bucket and from the bucket shared by all users of the
+ * same tier, so one user cannot use up the budget of the others. Premium and
+ * admin users are in the premium tier, everyone else in the standard tier.
+ *
+ * A request without tokens waits for them if they come within
+ * narrative.rate-limit.max-wait-ms, and is refused with 429 otherwise.
+ *
+ * Outcomes are published as narrative.ratelimit.requests with the tier and
+ * outcome=allowed|queued|rejected, and waits as narrative.ratelimit.wait.
+ */
+@Component
+public class GenerationRateLimiter {
+
+    private final Tier standard;
+    private final Tier premium;
+    private final long maxWaitNanos;
+    private final MeterRegistry meterRegistry;
+
+    // Bucket of each user, by tier and username
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    public GenerationRateLimiter(MeterRegistry meterRegistry,
+            @Value("${narrative.rate-limit.standard.user-per-minute:10}") double standardUserPerMinute,
+            @Value("${narrative.rate-limit.standard.user-burst:3}") int standardUserBurst,
+            @Value("${narrative.rate-limit.standard.tier-per-minute:120}") double standardTierPerMinute,
+            @Value("${narrative.rate-limit.standard.tier-burst:20}") int standardTierBurst,
+            @Value("${narrative.rate-limit.premium.user-per-minute:30}") double premiumUserPerMinute,
+            @Value("${narrative.rate-limit.premium.user-burst:10}") int premiumUserBurst,
+            @Value("${narrative.rate-limit.premium.tier-per-minute:300}") double premiumTierPerMinute,
+            @Value("${narrative.rate-limit.premium.tier-burst:50}") int premiumTierBurst,
+            @Value("${narrative.rate-limit.max-wait-ms:10000}") long maxWaitMs) {
+        long now = System.nanoTime();
+        this.standard = new Tier("standard", standardUserPerMinute, standardUserBurst,
+                new TokenBucket(standardTierPerMinute, standardTierBurst, now));
+        this.premium = new Tier("premium", premiumUserPerMinute, premiumUserBurst,
+                new TokenBucket(premiumTierPerMinute, premiumTierBurst, now));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Take a generation slot for a user, waiting for it if necessary.
+     *
+     * @param username user asking for the generation.
+     * @param role     role of the user.
+     * @throws RateLimitExceededException if no slot is free within the longest
+     *                                    allowed wait.
+     */
+    public void acquire(String username, String role) {
+        Tier tier = tierOf(role);
+        long now = System.nanoTime();
+        TokenBucket userBucket = userBuckets.computeIfAbsent(tier.name + ":" + username,
+                k -> new TokenBucket(tier.userPerMinute, tier.userBurst, now));
+
+        TokenBucket.Reservation user = userBucket.reserve(now, maxWaitNanos);
+        if (!user.granted()) {
+            throw reject(tier, user.waitNanos());
+        }
+        TokenBucket.Reservation shared = tier.bucket.reserve(now, maxWaitNanos);
+        if (!shared.granted()) {
+            userBucket.cancel();
+            throw reject(tier, shared.waitNanos());
+        }
+
+        long waitNanos = Math.max(user.waitNanos(), shared.waitNanos());
+        count(tier, waitNanos > 0 ? "queued" : "allowed");
+        Timer.builder("narrative.ratelimit.wait")
+                .description("Time generation requests wait for a rate limit slot")
+                .tag("tier", tier.name)
+                .register(meterRegistry)
+                .record(waitNanos, TimeUnit.NANOSECONDS);
+        if (waitNanos > 0) {
+            sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Forget the buckets of users who have not sent requests for long enough
+     * that their buckets filled up again.
+     */
+    @Scheduled(fixedDelayString = "${narrative.rate-limit.cleanup-interval-ms:60000}")
+    public void removeIdleBuckets() {
+        long now = System.nanoTime();
+        userBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    private Tier tierOf(String role) {
+        return "premium".equalsIgnoreCase(role) || "admin".equalsIgnoreCase(role) ? premium : standard;
+    }
+
+    private RateLimitExceededException reject(Tier tier, long waitNanos) {
+        count(tier, "rejected");
+        // Round up, so a client retrying after the given time finds a token
+        return new RateLimitExceededException(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L)));
+    }
+
+    private void count(Tier tier, String outcome) {
+        Counter.builder("narrative.ratelimit.requests")
+                .description("Generation requests by rate limit outcome")
+                .tag("tier", tier.name)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a generation slot", e);
+        }
+    }
+
+    private static final class Tier {
+        private final String name;
+        private final double userPerMinute;
+        private final int userBurst;
+        // Shared by all users of the tier
+        private final TokenBucket bucket;
+
+        private Tier(String name, double userPerMinute, int userBurst, TokenBucket bucket) {
+            this.name = name;
+            this.userPerMinute = userPerMinute;
+            this.userBurst = userBurst;
+            this.bucket = bucket;
+        }
+    }
+}
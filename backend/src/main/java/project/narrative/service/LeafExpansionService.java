@@ -0,0 +1,321 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import project.narrative.controller.NodeController.CharacterInfo;
+import project.narrative.dto.ExpansionJobDTO;
+import project.narrative.error.GenerationQueueFullException;
+import project.narrative.error.RateLimitExceededException;
+import project.narrative.error.UnfoundJobException;
+import project.narrative.model.Continuation;
+import project.narrative.model.ExpansionJob;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Continues every leaf of a story in the background. A job's leaves are shared
+ * by at most narrative.expansion.parallelism workers, which take generations
+ * from the job's own budget of narrative.expansion.leaves-per-minute on top of
+ * the user's rate limit, so one large story cannot starve other requests.
+ * Continuations are stored in batches of narrative.expansion.batch-size nodes.
+ *
+ * The workers run on one pool shared by all jobs, published as the executor.*
+ * meters with name=expansion; leaves are counted as narrative.expansion.leaves
+ * with outcome=stored|failed.
+ */
+@Service
+public class LeafExpansionService {
+
+    private final NodeService nodeService;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, ExpansionJob> jobs = new ConcurrentHashMap<>();
+    private final int parallelism;
+    private final double leavesPerMinute;
+    private final int batchSize;
+    private final int maxLeaves;
+    private final Duration retention;
+
+    private final Counter storedCounter;
+    private final Counter failedCounter;
+
+    public LeafExpansionService(NodeService nodeService, MeterRegistry meterRegistry,
+            @Value("${narrative.expansion.threads:8}") int threads,
+            @Value("${narrative.expansion.queue-capacity:50}") int queueCapacity,
+            @Value("${narrative.expansion.parallelism:4}") int parallelism,
+            @Value("${narrative.expansion.leaves-per-minute:30}") double leavesPerMinute,
+            @Value("${narrative.expansion.batch-size:20}") int batchSize,
+            @Value("${narrative.expansion.max-leaves:200}") int maxLeaves,
+            @Value("${narrative.expansion.retention-minutes:10}") long retentionMinutes) {
+        this.nodeService = nodeService;
+        this.parallelism = Math.max(1, parallelism);
+        this.leavesPerMinute = leavesPerMinute;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLeaves = maxLeaves;
+        this.retention = Duration.ofMinutes(retentionMinutes);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("expansion-"),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        new ExecutorServiceMetrics(executor, "expansion", Tags.empty()).bindTo(meterRegistry);
+        this.storedCounter = Counter.builder("narrative.expansion.leaves")
+                .description("Leaves continued by expansion jobs, by outcome")
+                .tag("outcome", "stored")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("narrative.expansion.leaves")
+                .description("Leaves continued by expansion jobs, by outcome")
+                .tag("outcome", "failed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start continuing every current leaf of a story, oldest leaves first and
+     * at most narrative.expansion.max-leaves of them.
+     *
+     * @param key            API key for the model.
+     * @param storyId        story to expand.
+     * @param context        expected direction of the plot for every leaf, or
+     *                       null.
+     * @param charactersName characters of the continuations.
+     * @return the started job.
+     * @throws GenerationQueueFullException if no worker can be queued.
+     */
+    public ExpansionJobDTO submit(String key, Long storyId, String context, List<CharacterInfo> charactersName) {
+        List<Long> leafIds = nodeService.findLeafIds(storyId, charactersName);
+        if (leafIds.size() > maxLeaves) {
+            leafIds = leafIds.subList(0, maxLeaves);
+        }
+        ExpansionJob job = new ExpansionJob(UUID.randomUUID().toString(), storyId, Instant.now(), leafIds.size());
+        jobs.put(job.getJobId(), job);
+        if (leafIds.isEmpty()) {
+            finish(job);
+            return new ExpansionJobDTO(job);
+        }
+
+        Run run = new Run(job, key, context, charactersName, new ConcurrentLinkedQueue<>(leafIds),
+                new TokenBucket(leavesPerMinute, parallelism, System.nanoTime()));
+        int workers = Math.min(parallelism, leafIds.size());
+        run.activeWorkers.set(workers);
+        job.setStatus(ExpansionJob.Status.RUNNING);
+        int started = 0;
+        try {
+            for (; started < workers; started++) {
+                executor.execute(() -> work(run));
+            }
+        } catch (RejectedExecutionException e) {
+            if (started == 0) {
+                jobs.remove(job.getJobId());
+                throw new GenerationQueueFullException();
+            }
+            // The workers already queued share the leaves between them
+            if (run.activeWorkers.addAndGet(started - workers) == 0) {
+                complete(run);
+            }
+        }
+        return new ExpansionJobDTO(job);
+    }
+
+    /**
+     * Get the progress of a job.
+     *
+     * @throws UnfoundJobException if the job is unknown or belongs to another story.
+     */
+    public ExpansionJobDTO getJob(Long storyId, String jobId) {
+        return new ExpansionJobDTO(findJob(storyId, jobId));
+    }
+
+    /**
+     * Wait for a job to finish without holding a thread.
+     *
+     * @return a future with the job once it finished, or with its progress at
+     *         the end of the timeout.
+     * @throws UnfoundJobException if the job is unknown or belongs to another story.
+     */
+    public CompletableFuture<ExpansionJobDTO> awaitJob(Long storyId, String jobId, Duration timeout) {
+        ExpansionJob job = findJob(storyId, jobId);
+        return job.getCompletion().copy()
+                .completeOnTimeout(job, timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(ExpansionJobDTO::new);
+    }
+
+    /**
+     * Forget jobs that finished longer ago than the retention period.
+     */
+    @Scheduled(fixedDelayString = "${narrative.expansion.cleanup-interval-ms:60000}")
+    public void removeExpiredJobs() {
+        Instant cutoff = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && !job.getFinishedAt().isAfter(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Take leaves from the job until none are left; the last worker to stop
+     * stores what is left and finishes the job.
+     */
+    private void work(Run run) {
+        try {
+            Long leafId;
+            while ((leafId = run.leaves.poll()) != null) {
+                if (!pace(run.bucket.reserve(System.nanoTime(), Long.MAX_VALUE).waitNanos())) {
+                    run.leaves.add(leafId);
+                    return;
+                }
+                try {
+                    Continuation continuation = nodeService.generateContinuation(run.key, run.job.getStoryId(),
+                            leafId, run.context, run.charactersName);
+                    run.job.getGenerated().incrementAndGet();
+                    run.pending.add(continuation);
+                    if (run.pendingCount.incrementAndGet() >= batchSize) {
+                        store(run, batchSize);
+                    }
+                } catch (RateLimitExceededException e) {
+                    // The user is out of generations for now, so try the leaf again once they are back
+                    run.leaves.add(leafId);
+                    if (!pace(TimeUnit.SECONDS.toNanos(e.getRetryAfterSeconds()))) {
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    fail(run.job, 1, e);
+                }
+            }
+        } finally {
+            if (run.activeWorkers.decrementAndGet() == 0) {
+                complete(run);
+            }
+        }
+    }
+
+    /**
+     * Store pending continuations in batches of the given size, or all of them
+     * when the size is 1.
+     */
+    private void store(Run run, int minBatch) {
+        while (run.pendingCount.get() >= minBatch) {
+            List<Continuation> batch = new ArrayList<>(batchSize);
+            Continuation continuation;
+            while (batch.size() < batchSize && (continuation = run.pending.poll()) != null) {
+                batch.add(continuation);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            run.pendingCount.addAndGet(-batch.size());
+            try {
+                List<Long> nodeIds = nodeService.saveContinuations(run.key, run.job.getStoryId(), batch);
+                run.job.getNodeIds().addAll(nodeIds);
+                storedCounter.increment(nodeIds.size());
+                if (nodeIds.size() < batch.size()) {
+                    run.job.getFailed().addAndGet(batch.size() - nodeIds.size());
+                    failedCounter.increment(batch.size() - nodeIds.size());
+                }
+            } catch (RuntimeException e) {
+                fail(run.job, batch.size(), e);
+            }
+        }
+    }
+
+    private void complete(Run run) {
+        store(run, 1);
+        // Leaves left over when the workers were interrupted were never continued
+        int skipped = run.leaves.size();
+        if (skipped > 0) {
+            run.leaves.clear();
+            run.job.getFailed().addAndGet(skipped);
+            failedCounter.increment(skipped);
+            if (run.job.getError() == null) {
+                run.job.setError("Expansion was interrupted");
+            }
+        }
+        finish(run.job);
+    }
+
+    private void finish(ExpansionJob job) {
+        job.setStatus(job.getFailed().get() == 0 ? ExpansionJob.Status.SUCCEEDED : ExpansionJob.Status.FAILED);
+        job.setFinishedAt(Instant.now());
+        job.getCompletion().complete(job);
+    }
+
+    private void fail(ExpansionJob job, int leaves, RuntimeException e) {
+        job.getFailed().addAndGet(leaves);
+        failedCounter.increment(leaves);
+        if (job.getError() == null) {
+            job.setError(GenerationJobService.describe(e));
+        }
+    }
+
+    /**
+     * Sleep for the given time.
+     *
+     * @return false if the thread was interrupted.
+     */
+    private static boolean pace(long waitNanos) {
+        if (waitNanos <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private ExpansionJob findJob(Long storyId, String jobId) {
+        ExpansionJob job = jobs.get(jobId);
+        if (job == null || !job.getStoryId().equals(storyId)) {
+            throw new UnfoundJobException();
+        }
+        return job;
+    }
+
+    /**
+     * Work shared by the workers of one job.
+     */
+    private static final class Run {
+        private final ExpansionJob job;
+        private final String key;
+        private final String context;
+        private final List<CharacterInfo> charactersName;
+        private final Queue<Long> leaves;
+        private final TokenBucket bucket;
+        private final Queue<Continuation> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+
+        private Run(ExpansionJob job, String key, String context, List<CharacterInfo> charactersName,
+                Queue<Long> leaves, TokenBucket bucket) {
+            this.job = job;
+            this.key = key;
+            this.context = context;
+            this.charactersName = charactersName;
+            this.leaves = leaves;
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import project.narrative.error.LlmUnavailableException;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs calls to the model behind a circuit breaker, and hedges slow calls.
+ *
+ * When narrative.llm.hedge.delay-ms is above zero, a call that has not
+ * answered after that delay is sent a second time and the first response
+ * wins. At most narrative.llm.hedge.max-in-flight hedges run at once, so a
+ * model that is slow for everyone does not get twice the load. The request
+ * that loses is cancelled; if it still returns, its response is passed to the
+ * caller's discard handler so the tokens it used can be counted.
+ *
+ * Hedged requests run on at most narrative.llm.call-threads threads. When all
+ * are busy, calls run on the caller's thread without a hedge.
+ *
+ * The breaker opens when at least narrative.llm.circuit.failure-rate of the
+ * last narrative.llm.circuit.window calls failed; calls are then refused with
+ * LlmUnavailableException for narrative.llm.circuit.open-ms. Client errors
+ * other than 429 do not count as failures.
+ *
+ * Hedges are published as narrative.llm.hedges.fired and
+ * narrative.llm.hedges.won, breaker changes as
+ * narrative.llm.circuit.transitions with from and to, refused calls as
+ * narrative.llm.circuit.rejected, and the state as narrative.llm.circuit.state
+ * (0 closed, 1 half open, 2 open).
+ */
+@Component
+public class LlmCallExecutor {
+
+    private final long hedgeDelayMs;
+    private final int maxHedgesInFlight;
+    private final AtomicInteger hedgesInFlight = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+    private final CircuitBreaker circuitBreaker;
+
+    private final MeterRegistry meterRegistry;
+    private final Counter hedgesFired;
+    private final Counter hedgesWon;
+    private final Counter rejected;
+
+    public LlmCallExecutor(MeterRegistry meterRegistry,
+            @Value("${narrative.llm.hedge.delay-ms:0}") long hedgeDelayMs,
+            @Value("${narrative.llm.hedge.max-in-flight:10}") int maxHedgesInFlight,
+            @Value("${narrative.llm.call-threads:32}") int threads,
+            @Value("${narrative.llm.circuit.window:20}") int window,
+            @Value("${narrative.llm.circuit.minimum-calls:10}") int minimumCalls,
+            @Value("${narrative.llm.circuit.failure-rate:0.5}") double failureRate,
+            @Value("${narrative.llm.circuit.open-ms:30000}") long openMs) {
+        this.hedgeDelayMs = hedgeDelayMs;
+        this.maxHedgesInFlight = maxHedgesInFlight;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new CustomizableThreadFactory("llm-call-"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.meterRegistry = meterRegistry;
+        this.circuitBreaker = new CircuitBreaker(window, minimumCalls, failureRate,
+                TimeUnit.MILLISECONDS.toNanos(openMs), this::recordTransition);
+
+        this.hedgesFired = Counter.builder("narrative.llm.hedges.fired")
+                .description("Model calls sent a second time because the first was slow")
+                .register(meterRegistry);
+        this.hedgesWon = Counter.builder("narrative.llm.hedges.won")
+                .description("Hedged model calls answered first by the second request")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("narrative.llm.circuit.rejected")
+                .description("Model calls refused because the circuit breaker was open")
+                .register(meterRegistry);
+        Gauge.builder("narrative.llm.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .description("State of the model circuit breaker: 0 closed, 1 half open, 2 open")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Make a blocking call to the model.
+     *
+     * @param call the call; it may run more than once when hedged.
+     * @return the first successful response.
+     * @throws LlmUnavailableException if the circuit breaker is open.
+     */
+    public <T> T call(Supplier<T> call) {
+        return call(call, response -> {
+        });
+    }
+
+    /**
+     * Make a blocking call to the model.
+     *
+     * @param call      the call; it may run more than once when hedged.
+     * @param discarded receives the responses of hedged requests that
+     *                  returned after the winner, on a call thread.
+     * @return the first successful response.
+     * @throws LlmUnavailableException if the circuit breaker is open.
+     */
+    public <T> T call(Supplier<T> call, Consumer<? super T> discarded) {
+        if (!circuitBreaker.tryAcquire()) {
+            rejected.increment();
+            throw new LlmUnavailableException();
+        }
+        try {
+            // Only hedge while healthy; a half-open breaker allows a single call
+            T response = hedgeDelayMs > 0 && circuitBreaker.getState() == CircuitBreaker.State.CLOSED
+                    ? hedged(call, discarded)
+                    : call.get();
+            circuitBreaker.onSuccess();
+            return response;
+        } catch (RuntimeException | Error e) {
+            if (isFailure(e)) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Make a streaming call to the model. Streams are not hedged, as the
+     * client already receives the first one.
+     *
+     * @param call the call.
+     * @return the stream, refused with LlmUnavailableException on subscription
+     *         if the circuit breaker is open.
+     */
+    public <T> Flux<T> stream(Supplier<Flux<T>> call) {
+        return Flux.defer(() -> {
+            if (!circuitBreaker.tryAcquire()) {
+                rejected.increment();
+                return Flux.error(new LlmUnavailableException());
+            }
+            return call.get()
+                    .doOnComplete(circuitBreaker::onSuccess)
+                    .doOnError(e -> {
+                        if (isFailure(e)) {
+                            circuitBreaker.onFailure();
+                        } else {
+                            circuitBreaker.onSuccess();
+                        }
+                    })
+                    .doOnCancel(circuitBreaker::onIgnored);
+        });
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> T hedged(Supplier<T> call, Consumer<? super T> discarded) {
+        CompletableFuture<T> primary = new CompletableFuture<>();
+        Future<?> primaryTask = trySubmit(call, primary);
+        if (primaryTask == null) {
+            // Every call thread is busy
+            return call.get();
+        }
+        try {
+            return primary.get(hedgeDelayMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Slow; hedge below
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primaryTask.cancel(true);
+            throw new IllegalStateException("Interrupted while waiting for the model", e);
+        }
+
+        if (hedgesInFlight.incrementAndGet() > maxHedgesInFlight) {
+            hedgesInFlight.decrementAndGet();
+            return await(primary);
+        }
+        CompletableFuture<T> hedge = new CompletableFuture<>();
+        Future<?> hedgeTask = trySubmit(call, hedge);
+        if (hedgeTask == null) {
+            hedgesInFlight.decrementAndGet();
+            return await(primary);
+        }
+        hedgesFired.increment();
+        hedge.whenComplete((response, e) -> hedgesInFlight.decrementAndGet());
+
+        // The first success wins and cancels the other request; a failure
+        // only counts once both requests failed. The winner is settled before
+        // the caller is woken, so it sees the hedge counted.
+        CompletableFuture<T> first = new CompletableFuture<>();
+        AtomicBoolean settled = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        primary.whenComplete((response, e) -> {
+            if (e == null) {
+                if (settled.compareAndSet(false, true)) {
+                    hedgeTask.cancel(true);
+                    first.complete(response);
+                } else {
+                    discarded.accept(response);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(e);
+            }
+        });
+        hedge.whenComplete((response, e) -> {
+            if (e == null) {
+                if (settled.compareAndSet(false, true)) {
+                    hedgesWon.increment();
+                    primaryTask.cancel(true);
+                    first.complete(response);
+                } else {
+                    discarded.accept(response);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(e);
+            }
+        });
+        return await(first);
+    }
+
+    /**
+     * Start a call on a call thread, completing the given future with its
+     * outcome.
+     *
+     * @return the running task, or null if every call thread is busy.
+     */
+    private <T> Future<?> trySubmit(Supplier<T> call, CompletableFuture<T> result) {
+        try {
+            return executor.submit(() -> {
+                try {
+                    result.complete(call.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    /**
+     * Whether an exception says the model is unhealthy, as opposed to a
+     * problem with the request itself.
+     */
+    private static boolean isFailure(Throwable e) {
+        return !(e instanceof HttpClientErrorException clientError) || clientError.getStatusCode().value() == 429;
+    }
+
+    private void recordTransition(CircuitBreaker.State from, CircuitBreaker.State to) {
+        Counter.builder("narrative.llm.circuit.transitions")
+                .description("State changes of the model circuit breaker")
+                .tag("from", from.name())
+                .tag("to", to.name())
+                .register(meterRegistry)
+                .increment();
+    }
+}
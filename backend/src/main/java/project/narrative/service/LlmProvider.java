@@ -0,0 +1,51 @@
+package project.narrative.service;
+
+import project.narrative.model.LlmResponse;
+import reactor.core.publisher.Flux;
+
+/**
+ * A model that writes text for a prompt. GeminiService adds caching and
+ * request coalescing on top of whichever provider is configured with
+ * narrative.llm.provider.
+ */
+public interface LlmProvider {
+
+    /**
+     * Name of the model, used to tell responses of different models apart in
+     * the response cache.
+     */
+    String model();
+
+    /**
+     * Send a prompt and wait for the whole response.
+     *
+     * @param key    API key for the model.
+     * @param prompt prompt to send.
+     * @return the generated text, with the tokens used.
+     */
+    default LlmResponse generate(String key, String prompt) {
+        return generate(key, prompt, 1);
+    }
+
+    /**
+     * Send a prompt and wait for several alternative responses, generated in
+     * one call.
+     *
+     * @param key            API key for the model.
+     * @param prompt         prompt to send.
+     * @param candidateCount number of alternatives wanted; the model may
+     *                       return fewer.
+     * @return the alternatives, with the tokens used by all of them.
+     */
+    LlmResponse generate(String key, String prompt, int candidateCount);
+
+    /**
+     * Send a prompt and receive the response in pieces as it is produced.
+     *
+     * @param key    API key for the model.
+     * @param prompt prompt to send.
+     * @return the text of each piece, in order. Pieces may carry the tokens
+     *         used so far, and may have no text when they only report usage.
+     */
+    Flux<LlmResponse> stream(String key, String prompt);
+}
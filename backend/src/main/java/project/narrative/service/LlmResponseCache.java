@@ -0,0 +1,270 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of model responses keyed by the SHA-256 of the model name and the
+ * exact prompt. Recent responses are kept in memory with LRU eviction. When
+ * narrative.llm-cache.disk-path is set, responses are also appended to a
+ * memory-mapped file, so they survive restarts; the file starts over once it
+ * is full.
+ *
+ * Hits and misses are published as cache.gets, evictions as cache.evictions
+ * and entries as cache.size, all with cache=llmResponses. The model time
+ * saved by hits, based on the latency of the original call, is published as
+ * narrative.llm.cache.saved.
+ */
+@Component
+public class LlmResponseCache {
+
+    private static final String CACHE_NAME = "llmResponses";
+
+    // File layout: magic, end of the last record, then records of
+    // [32 byte key][8 byte latency in nanoseconds][4 byte length][UTF-8 response]
+    private static final int MAGIC = 0x4c4c4d31;
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = KEY_SIZE + 8 + 4;
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+
+    private final FileChannel diskChannel;
+    private final MappedByteBuffer disk;
+    // Offset of each record in the file, by key
+    private final Map<String, Integer> diskIndex = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Counter savedSeconds;
+
+    public LlmResponseCache(MeterRegistry meterRegistry,
+            @Value("${narrative.llm-cache.max-entries:1000}") int maxEntries,
+            @Value("${narrative.llm-cache.disk-path:}") String diskPath,
+            @Value("${narrative.llm-cache.disk-size-mb:64}") int diskSizeMb) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > LlmResponseCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (diskPath == null || diskPath.isBlank()) {
+            this.diskChannel = null;
+            this.disk = null;
+        } else {
+            try {
+                Path path = Path.of(diskPath);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                this.diskChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                this.disk = diskChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) diskSizeMb * 1024 * 1024);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open LLM response cache file " + diskPath, e);
+            }
+            loadDiskIndex();
+        }
+
+        FunctionCounter.builder("cache.gets", hits, AtomicLong::get)
+                .tag("cache", CACHE_NAME).tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.gets", misses, AtomicLong::get)
+                .tag("cache", CACHE_NAME).tag("result", "miss")
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.evictions", evictions, AtomicLong::get)
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+        Gauge.builder("cache.size", this, LlmResponseCache::size)
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+        this.savedSeconds = Counter.builder("narrative.llm.cache.saved")
+                .description("Model latency avoided by serving responses from the cache")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Content address of a prompt sent to a model.
+     */
+    public static String key(String model, String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(prompt.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Look up the response to a prompt, first in memory and then on disk.
+     *
+     * @return the cached response, or empty if the prompt was not seen.
+     */
+    public synchronized Optional<String> get(String model, String prompt) {
+        String key = key(model, prompt);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        savedSeconds.increment(entry.latencyNanos / 1e9);
+        return Optional.of(entry.response);
+    }
+
+    /**
+     * Store the response to a prompt.
+     *
+     * @param latencyNanos how long the model took to answer, credited as saved
+     *                     time on later hits.
+     */
+    public synchronized void put(String model, String prompt, String response, long latencyNanos) {
+        String key = key(model, prompt);
+        Entry entry = new Entry(response, latencyNanos);
+        entries.put(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    /**
+     * Number of responses held in memory.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (disk != null) {
+            disk.force();
+            diskChannel.close();
+        }
+    }
+
+    /**
+     * Rebuild the offsets of the records already in the file, or initialize an
+     * empty file. A file whose records do not fit together, because it was
+     * damaged or written with a larger disk-size-mb, is started over.
+     */
+    private void loadDiskIndex() {
+        if (disk.getInt(0) != MAGIC) {
+            resetDisk();
+            return;
+        }
+        int end = disk.getInt(4);
+        if (end < HEADER_SIZE || end > disk.capacity()) {
+            resetDisk();
+            return;
+        }
+        int position = HEADER_SIZE;
+        byte[] keyBytes = new byte[KEY_SIZE];
+        while (position < end) {
+            if (position + RECORD_HEADER_SIZE > end) {
+                resetDisk();
+                return;
+            }
+            disk.get(position, keyBytes);
+            int length = disk.getInt(position + KEY_SIZE + 8);
+            if (length < 0 || (long) position + RECORD_HEADER_SIZE + length > end) {
+                resetDisk();
+                return;
+            }
+            diskIndex.put(HexFormat.of().formatHex(keyBytes), position);
+            position += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private void resetDisk() {
+        diskIndex.clear();
+        disk.putInt(0, MAGIC);
+        disk.putInt(4, HEADER_SIZE);
+    }
+
+    private Entry readFromDisk(String key) {
+        if (disk == null) {
+            return null;
+        }
+        Integer position = diskIndex.get(key);
+        if (position == null) {
+            return null;
+        }
+        long latencyNanos = disk.getLong(position + KEY_SIZE);
+        int length = disk.getInt(position + KEY_SIZE + 8);
+        byte[] response = new byte[length];
+        disk.get(position + RECORD_HEADER_SIZE, response);
+        return new Entry(new String(response, StandardCharsets.UTF_8), latencyNanos);
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (disk == null) {
+            return;
+        }
+        byte[] response = entry.response.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + response.length;
+        if (HEADER_SIZE + recordSize > disk.capacity()) {
+            return;
+        }
+        int position = disk.getInt(4);
+        if (position + recordSize > disk.capacity()) {
+            resetDisk();
+            position = HEADER_SIZE;
+        }
+        disk.put(position, HexFormat.of().parseHex(key));
+        disk.putLong(position + KEY_SIZE, entry.latencyNanos);
+        disk.putInt(position + KEY_SIZE + 8, response.length);
+        disk.put(position + RECORD_HEADER_SIZE, response);
+        // Publish the record only once it is complete
+        disk.putInt(4, position + recordSize);
+        diskIndex.put(key, position);
+    }
+
+    private static final class Entry {
+        private final String response;
+        private final long latencyNanos;
+
+        private Entry(String response, long latencyNanos) {
+            this.response = response;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+}
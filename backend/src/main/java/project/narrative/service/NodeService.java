@@ -1,29 +1,57 @@
 package project.narrative.service;
 
-import jakarta.transaction.Transactional;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import project.narrative.controller.NodeController.CharacterInfo;
+import project.narrative.controller.NodeController.Prompt;
 import project.narrative.dto.CharacterDTO;
 import project.narrative.dto.GeneratedResultDTO;
+import project.narrative.dto.GenerationHistoryDTO;
+import project.narrative.dto.NodeChangesDTO;
 import project.narrative.dto.NodeDTO;
+import project.narrative.dto.NodeTreePageDTO;
+import project.narrative.dto.NodeSummaryDTO;
 import project.narrative.dto.StoryDTO;
+import project.narrative.error.UnfoundCharacterException;
+import project.narrative.error.UnfoundGenerationException;
 import project.narrative.error.UnfoundStoryException;
 import project.narrative.error.UserInfoException;
 import project.narrative.error.EditNonLeafNodeException;
+import project.narrative.model.Continuation;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.NodeSummary;
+import project.narrative.model.SummaryStatus;
 import project.narrative.model.entities.Node;
+import project.narrative.model.entities.NodeTombstone;
 import project.narrative.model.entities.Story;
 import project.narrative.model.entities.User;
 import project.narrative.repository.*;
 import project.narrative.model.entities.Character;
+import project.narrative.model.entities.GenerationHistory;
 import project.narrative.dto.GeneratedResultDTO;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.RuntimeException;
 
 @Service
@@ -33,14 +61,42 @@ public class NodeService {
     private final NodeRepo nodeRepo;
     private final GeminiService geminiService;
     private final CharacterRepo characterRepo;
+    private final StoryTreeCache storyTreeCache;
+    private final NodeTombstoneRepo nodeTombstoneRepo;
+    private final NodeSummaryWorker nodeSummaryWorker;
+    private final GenerationRateLimiter rateLimiter;
+    private final PromptBuilder promptBuilder;
+    private final GenerationHistoryService generationHistory;
+    private final TransactionTemplate transactionTemplate;
+    private final NodeTombstoneCompactor tombstoneCompactor;
+
+    // Bounds for a single page of getTreePage
+    private static final int MAX_TREE_DEPTH = 50;
+    private static final int MAX_TREE_PAGE_SIZE = 200;
+    private static final int MAX_CANDIDATES = 8;
+    private static final int MAX_HISTORY = 50;
+
+    // Longest time a generation waits for the summary of its parent
+    private static final Duration SUMMARY_WAIT = Duration.ofSeconds(60);
 
     public NodeService(UserRepo userRepo, StoryRepo storyRepo, NodeRepo nodeRepo, GeminiService geminiService,
-            CharacterRepo characterRepo) {
+            CharacterRepo characterRepo, StoryTreeCache storyTreeCache, NodeTombstoneRepo nodeTombstoneRepo,
+            NodeSummaryWorker nodeSummaryWorker, GenerationRateLimiter rateLimiter, PromptBuilder promptBuilder,
+            GenerationHistoryService generationHistory, PlatformTransactionManager transactionManager,
+            NodeTombstoneCompactor tombstoneCompactor) {
         this.nodeRepo = nodeRepo;
         this.userRepo = userRepo;
         this.storyRepo = storyRepo;
         this.geminiService = geminiService;
         this.characterRepo = characterRepo;
+        this.storyTreeCache = storyTreeCache;
+        this.nodeTombstoneRepo = nodeTombstoneRepo;
+        this.nodeSummaryWorker = nodeSummaryWorker;
+        this.rateLimiter = rateLimiter;
+        this.promptBuilder = promptBuilder;
+        this.generationHistory = generationHistory;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.tombstoneCompactor = tombstoneCompactor;
     }
 
     @Transactional
@@ -52,12 +108,32 @@ public class NodeService {
             throw new UnfoundStoryException();
         }
 
+        // The new node extends the ancestry path of its parent
+        String parentPath = "/";
+        Integer depth = 0;
+        if (parentId != null) {
+            Node parent = nodeRepo.findById(parentId).orElseThrow(() -> new UnfoundStoryException());
+            if (!parent.getStory().getStoryid().equals(storyid)) {
+                throw new UnfoundStoryException();
+            }
+            // A parent without a path yet leaves the new node to the startup backfill
+            parentPath = parent.getPath();
+            depth = parentPath == null ? null : parent.getDepth() + 1;
+        }
+
         Node node = new Node();
         node.setStory(story);
         node.setParentId(parentId);
         node.setUser(user);
+        node.setDepth(depth);
+        node.setVersion(nextVersion(storyid));
 
+        // The id is assigned on save, so the path can only be completed afterwards
         nodeRepo.save(node);
+        if (parentPath != null) {
+            node.setPath(parentPath + node.getNodeId() + "/");
+        }
+        storyTreeCache.invalidate(storyid);
         return new NodeDTO(node);
     }
 
@@ -78,11 +154,13 @@ public class NodeService {
         node.setNodeName(nodeName);
         node.setSummary(summary);
         node.setCharacters(Characters);
+        node.setVersion(nextVersion(storyid));
         nodeRepo.save(node);
+        storyTreeCache.invalidate(storyid);
         return new NodeDTO(node);
     }
 
-    @Transactional
+    @Transactional(readOnly = true)
     public NodeDTO getNode(Long nodeId, Long storyId) {
 
         Story story = storyRepo.findById(storyId).orElseThrow(() -> new UnfoundStoryException());
@@ -99,23 +177,649 @@ public class NodeService {
 
     }
 
-    @Transactional
+    /**
+     * Get one page of a story tree, expanded down to a limited depth. Nodes on
+     * the last level are collapsed and only carry their number of children, so
+     * they can be expanded later by passing their id as rootId.
+     *
+     * @param storyId story of the tree.
+     * @param rootId  node whose children form the top level, or null for the
+     *                roots of the story.
+     * @param depth   number of levels to return, counting the top level.
+     * @param limit   maximum number of top level nodes.
+     * @param after   cursor from the previous page, or null for the first page.
+     * @return the page of the tree.
+     */
+    @Transactional(readOnly = true)
+    public NodeTreePageDTO getTreePage(Long storyId, Long rootId, int depth, int limit, Long after) {
+        storyRepo.findById(storyId).orElseThrow(() -> new UnfoundStoryException());
+        depth = Math.max(1, Math.min(depth, MAX_TREE_DEPTH));
+        limit = Math.max(1, Math.min(limit, MAX_TREE_PAGE_SIZE));
+        long cursor = after == null ? 0L : after;
+
+        // One extra node tells whether there is a next page
+        PageRequest page = PageRequest.of(0, limit + 1);
+        List<Node> topNodes;
+        if (rootId == null) {
+            topNodes = nodeRepo.findByStoryStoryidAndParentIdIsNullAndNodeIdGreaterThanOrderByNodeIdAsc(storyId,
+                    cursor, page);
+        } else {
+            Node root = nodeRepo.findById(rootId).orElseThrow(() -> new UnfoundStoryException());
+            if (!root.getStory().getStoryid().equals(storyId)) {
+                throw new UnfoundStoryException();
+            }
+            topNodes = nodeRepo.findByParentIdAndNodeIdGreaterThanOrderByNodeIdAsc(rootId, cursor, page);
+        }
+
+        Long nextCursor = null;
+        if (topNodes.size() > limit) {
+            topNodes = topNodes.subList(0, limit);
+            nextCursor = topNodes.get(limit - 1).getNodeId();
+        }
+        if (topNodes.isEmpty()) {
+            return new NodeTreePageDTO(storyId, rootId, new ArrayList<>(), null);
+        }
+
+        // Each level is loaded by the parent ids of the level above, so only
+        // the nodes under this page are read, whether or not they have a path
+        Map<Long, NodeDTO> nodeDTOs = new HashMap<>();
+        List<NodeDTO> topNodeDTOs = new ArrayList<>();
+        List<Long> parentIds = new ArrayList<>();
+        List<NodeSummary> collapsedNodes = new ArrayList<>();
+        if (depth == 1) {
+            for (Node topNode : topNodes) {
+                collapsedNodes.add(NodeSummary.of(topNode));
+            }
+        } else {
+            for (Node topNode : topNodes) {
+                NodeDTO nodeDTO = fullNode(topNode, nodeDTOs);
+                topNodeDTOs.add(nodeDTO);
+                parentIds.add(topNode.getNodeId());
+            }
+            // Levels between the top and the collapsed level are loaded in full
+            for (int level = 1; level < depth - 1 && !parentIds.isEmpty(); level++) {
+                List<Long> levelIds = new ArrayList<>();
+                for (Node node : nodeRepo.findByParentIdInOrderByNodeIdAsc(parentIds)) {
+                    nodeDTOs.get(node.getParentId()).getChildren().add(fullNode(node, nodeDTOs));
+                    levelIds.add(node.getNodeId());
+                }
+                parentIds = levelIds;
+            }
+            // The collapsed level only needs the summary columns
+            if (!parentIds.isEmpty()) {
+                collapsedNodes.addAll(nodeRepo.findSummariesByParentIdInOrderByNodeIdAsc(parentIds));
+            }
+        }
+
+        // Collapsed nodes carry their number of children
+        List<Long> collapsedIds = new ArrayList<>();
+        for (NodeSummary node : collapsedNodes) {
+            collapsedIds.add(node.getNodeId());
+        }
+        Map<Long, Long> childCounts = new HashMap<>();
+        if (!collapsedIds.isEmpty()) {
+            for (Object[] row : nodeRepo.countChildrenByParentIds(collapsedIds)) {
+                childCounts.put((Long) row[0], (Long) row[1]);
+            }
+        }
+        for (NodeSummary node : collapsedNodes) {
+            NodeDTO nodeDTO = NodeDTO.collapsed(node.getNodeId(), node.getParentId(), node.getNodeName(),
+                    childCounts.getOrDefault(node.getNodeId(), 0L));
+            if (depth == 1) {
+                topNodeDTOs.add(nodeDTO);
+            } else {
+                nodeDTOs.get(node.getParentId()).getChildren().add(nodeDTO);
+            }
+        }
+        for (NodeDTO nodeDTO : nodeDTOs.values()) {
+            nodeDTO.setChildCount((long) nodeDTO.getChildren().size());
+        }
+
+        return new NodeTreePageDTO(storyId, rootId, topNodeDTOs, nextCursor);
+    }
+
+    /**
+     * Get every node of a story for an outline view, without loading the text
+     * of the nodes. Nodes are in depth-first order.
+     *
+     * @param storyId story of the nodes.
+     * @return the summaries of the nodes.
+     */
+    @Transactional(readOnly = true)
+    public List<NodeSummaryDTO> getOutline(Long storyId) {
+        storyRepo.findById(storyId).orElseThrow(() -> new UnfoundStoryException());
+        List<NodeSummary> nodes = nodeRepo.findOutlineByStoryid(storyId);
+
+        Set<Long> parentIds = new HashSet<>();
+        for (NodeSummary node : nodes) {
+            if (node.getParentId() != null) {
+                parentIds.add(node.getParentId());
+            }
+        }
+        List<NodeSummaryDTO> outline = new ArrayList<>(nodes.size());
+        for (NodeSummary node : nodes) {
+            outline.add(new NodeSummaryDTO(node, !parentIds.contains(node.getNodeId())));
+        }
+        return outline;
+    }
+
+    /**
+     * Expanded view of a node for getTreePage, registered by id so its
+     * children can be linked to it.
+     */
+    private static NodeDTO fullNode(Node node, Map<Long, NodeDTO> nodeDTOs) {
+        NodeDTO nodeDTO = new NodeDTO(node);
+        nodeDTO.setChildren(new ArrayList<>());
+        nodeDTOs.put(node.getNodeId(), nodeDTO);
+        return nodeDTO;
+    }
+
     public GeneratedResultDTO generateResult(String key, Long storyid, Long parentId,
             String context, List<CharacterInfo> charactersName) throws UserInfoException, UnfoundStoryException {
-        // confirm is this the node root node, cuz root has no context
-        Boolean root = false;
+        Prompt prompt = new Prompt();
+        prompt.parentId = parentId;
+        prompt.context = context;
+        prompt.Characters = charactersName;
+        return generateResult(key, storyid, prompt);
+    }
+
+    /**
+     * Generate a story continuation. When the node the continuation is for is
+     * given, the continuation is stored on it and returned right away, and the
+     * node's summary is generated in the background; the node is PENDING until
+     * then. Otherwise the summary is generated before returning.
+     *
+     * When several candidates are asked for, they come from one model call
+     * and are never cached. With a node, the first candidate is stored on it
+     * and each other one on a new sibling node; without a node, no summary is
+     * generated and the candidates are only returned.
+     *
+     * @param prompt parent, direction and characters of the continuation, the
+     *               node receiving it, whether to bypass the response cache,
+     *               and the number of candidates.
+     * @return the continuation, and the summary when no node is given.
+     */
+    public GeneratedResultDTO generateResult(String key, Long storyid, Prompt prompt)
+            throws UserInfoException, UnfoundStoryException {
+        acquireSlot(storyid, prompt.Characters);
+        return generate(key, storyid, prompt);
+    }
 
+    /**
+     * Waiting for the parent's summary and the model calls happen outside of
+     * any transaction, so they hold no database connection; only storing the
+     * continuation on its node runs in one.
+     */
+    private GeneratedResultDTO generate(String key, Long storyid, Prompt prompt) {
+        Long nodeId = prompt.nodeId;
         Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        if (nodeId != null) {
+            Node node = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+            if (!node.getStory().getStoryid().equals(storyid)) {
+                throw new UnfoundStoryException();
+            }
+        }
+        List<Character> characters = findCharacters(story, prompt.Characters);
+        // The root node has no parent, so there is no earlier plot to build on
+        ParentPlot parent = findParent(prompt.parentId);
+        String continuationPrompt = buildContinuationPrompt(story, parent, prompt.context, characters);
+        int candidateCount = prompt.candidateCount == null ? 1
+                : Math.max(1, Math.min(prompt.candidateCount, MAX_CANDIDATES));
+        if (candidateCount > 1) {
+            return generateCandidates(key, storyid, nodeId, prompt.parentId, parent, continuationPrompt,
+                    candidateCount);
+        }
 
         // Generate New Result from AI
+        long start = System.nanoTime();
+        LlmResponse response = geminiService.sendAndReceive(key, continuationPrompt,
+                Boolean.TRUE.equals(prompt.forceFresh), storyid);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        String result = response.text();
+        // String result = "This is a test result";
 
-        StringBuilder sb = new StringBuilder();
-        if (parentId == null || !nodeRepo.findById(parentId).isPresent()) {
-            root = true;
+        // Collect all context form history
+        String summaryPrompt = buildSummaryPrompt(parent, result);
+        if (nodeId == null) {
+            String summary = geminiService.sendAndReceiveRequest(key, summaryPrompt, false, storyid);
+            // String summary = "This is the summary";
+            generationHistory.record(storyid, null, prompt.parentId, continuationPrompt, response, summary,
+                    latencyMs);
+            return new GeneratedResultDTO(result, summary);
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            Node node = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+            node.setResult(result);
+            node.setSummaryStatus(SummaryStatus.PENDING);
+            node.setVersion(nextVersion(storyid));
+            nodeRepo.save(node);
+            storyTreeCache.invalidate(storyid);
+            nodeSummaryWorker.submit(key, nodeId, storyid, summaryPrompt);
+        });
+        generationHistory.record(storyid, nodeId, prompt.parentId, continuationPrompt, response, null, latencyMs);
+        return new GeneratedResultDTO(result, null);
+    }
+
+    /**
+     * Get the past generations for a node: continuations stored on it, and
+     * continuations of its parent that were returned without a node. Recent
+     * generations may take a few seconds to appear.
+     *
+     * @return the generations, newest first.
+     */
+    @Transactional(readOnly = true)
+    public List<GenerationHistoryDTO> getHistory(Long storyId, Long nodeId) throws UnfoundStoryException {
+        Node node = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+        if (!node.getStory().getStoryid().equals(storyId)) {
+            throw new UnfoundStoryException();
+        }
+        return generationHistory.findForNode(storyId, nodeId, node.getParentId(), MAX_HISTORY).stream()
+                .map(GenerationHistoryDTO::new)
+                .toList();
+    }
+
+    /**
+     * Put a past generation back on a node without calling the model. The
+     * stored summary is restored with it; generations whose summary was made
+     * in the background are summarized again.
+     *
+     * @param historyId generation listed by getHistory for the node.
+     * @return the updated node.
+     */
+    public NodeDTO restoreGeneration(String key, Long storyId, Long nodeId, Long historyId)
+            throws UnfoundStoryException, EditNonLeafNodeException, UnfoundGenerationException {
+        Node node = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+        if (!node.getStory().getStoryid().equals(storyId)) {
+            throw new UnfoundStoryException();
+        }
+        if (!nodeRepo.findByParentId(nodeId).get().isEmpty()) {
+            throw new EditNonLeafNodeException();
+        }
+        GenerationHistory history = generationHistory.findById(historyId)
+                .filter(h -> h.getStoryid().equals(storyId))
+                .filter(h -> nodeId.equals(h.getNodeId())
+                        || (h.getNodeId() == null && Objects.equals(h.getParentId(), node.getParentId())))
+                .orElseThrow(() -> new UnfoundGenerationException());
+        // Built before the transaction, as it may wait for the parent's summary
+        String summaryPrompt = history.getSummary() != null ? null
+                : buildSummaryPrompt(findParent(node.getParentId()), history.getResult());
+
+        return transactionTemplate.execute(status -> {
+            Node restored = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+            restored.setResult(history.getResult());
+            restored.setVersion(nextVersion(storyId));
+            if (summaryPrompt == null) {
+                // Children build on the context, which holds the summary as NodeSummaryWorker stores it
+                restored.setSummary(history.getSummary());
+                restored.setContext(history.getSummary());
+                restored.setSummaryStatus(SummaryStatus.READY);
+                nodeRepo.save(restored);
+            } else {
+                restored.setSummaryStatus(SummaryStatus.PENDING);
+                nodeRepo.save(restored);
+                nodeSummaryWorker.submit(key, nodeId, storyId, summaryPrompt);
+            }
+            storyTreeCache.invalidate(storyId);
+            return new NodeDTO(restored);
+        });
+    }
+
+    /**
+     * Generate several continuations with one model call. The first is stored
+     * on the node and the others on new siblings of it, all saved in one batch
+     * and summarized in the background. Only saving runs in a transaction.
+     */
+    private GeneratedResultDTO generateCandidates(String key, Long storyid, Long nodeId, Long parentId,
+            ParentPlot parent, String prompt, int candidateCount) {
+        long start = System.nanoTime();
+        LlmResponse response = geminiService.sendAndReceiveCandidates(key, prompt, candidateCount, storyid);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        List<String> candidates = response.candidates();
+        GeneratedResultDTO resultDTO = new GeneratedResultDTO(candidates.get(0), null);
+        resultDTO.setCandidates(candidates);
+        if (nodeId == null) {
+            recordCandidates(storyid, null, parentId, prompt, response, latencyMs);
+            return resultDTO;
+        }
+
+        List<Long> nodeIds = transactionTemplate.execute(status -> storeCandidates(key, storyid, nodeId, parent,
+                candidates));
+        recordCandidates(storyid, nodeIds, parentId, prompt, response, latencyMs);
+        resultDTO.setNodeIds(nodeIds);
+        return resultDTO;
+    }
+
+    /**
+     * Store the first candidate on the node and each other one on a new
+     * sibling, and queue their summaries.
+     *
+     * @return the ids of the nodes, in the order of the candidates.
+     */
+    private List<Long> storeCandidates(String key, Long storyid, Long nodeId, ParentPlot parent,
+            List<String> candidates) {
+        Node node = nodeRepo.findById(nodeId).orElseThrow(() -> new UnfoundStoryException());
+        Long version = nextVersion(storyid);
+        List<Node> nodes = new ArrayList<>(candidates.size());
+        node.setResult(candidates.get(0));
+        node.setSummaryStatus(SummaryStatus.PENDING);
+        node.setVersion(version);
+        nodes.add(node);
+        for (String candidate : candidates.subList(1, candidates.size())) {
+            Node sibling = new Node();
+            sibling.setStory(node.getStory());
+            sibling.setParentId(node.getParentId());
+            sibling.setUser(node.getUser());
+            sibling.setDepth(node.getDepth());
+            sibling.setNodeName(node.getNodeName());
+            sibling.setResult(candidate);
+            sibling.setSummaryStatus(SummaryStatus.PENDING);
+            sibling.setVersion(version);
+            nodes.add(sibling);
+        }
+        nodeRepo.saveAll(nodes);
+
+        // Siblings share the node's path up to the last id, which is only known after saving
+        String path = node.getPath();
+        String parentPath = path == null ? null : path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+        List<Long> nodeIds = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            Node candidateNode = nodes.get(i);
+            if (i > 0 && parentPath != null) {
+                candidateNode.setPath(parentPath + candidateNode.getNodeId() + "/");
+            }
+            nodeIds.add(candidateNode.getNodeId());
+        }
+        storyTreeCache.invalidate(storyid);
+        for (Node candidateNode : nodes) {
+            nodeSummaryWorker.submit(key, candidateNode.getNodeId(), storyid,
+                    buildSummaryPrompt(parent, candidateNode.getResult()));
+        }
+        return nodeIds;
+    }
+
+    /**
+     * Add each candidate of one model call to the history. The call's tokens
+     * are recorded with the first candidate, so the history adds up to what
+     * was used.
+     *
+     * @param nodeIds node each candidate was stored on, or null if they were
+     *                only returned.
+     */
+    private void recordCandidates(Long storyid, List<Long> nodeIds, Long parentId, String prompt,
+            LlmResponse response, long latencyMs) {
+        List<String> candidates = response.candidates();
+        for (int i = 0; i < candidates.size(); i++) {
+            LlmResponse candidate = i == 0 ? response : LlmResponse.of(candidates.get(i));
+            generationHistory.record(storyid, nodeIds == null ? null : nodeIds.get(i), parentId, prompt, candidate,
+                    null, latencyMs);
+        }
+    }
+
+    /**
+     * Find the nodes of a story that have no children yet.
+     *
+     * @param charactersName characters the continuations of the leaves will
+     *                       use; checked here so an expansion naming unknown
+     *                       characters fails before it starts.
+     * @return the ids of the leaves, oldest first.
+     */
+    @Transactional
+    public List<Long> findLeafIds(Long storyid, List<CharacterInfo> charactersName)
+            throws UnfoundStoryException, UnfoundCharacterException {
+        Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        findCharacters(story, charactersName);
+        return nodeRepo.findLeafIdsByStoryid(storyid);
+    }
+
+    /**
+     * Generate a continuation of a node without storing it, so several can be
+     * stored together with saveContinuations. No transaction is held during the
+     * model call.
+     *
+     * @param parentId node to continue.
+     * @param context  expected direction of the plot, or null.
+     * @return the continuation, with what its history entry and summary need.
+     */
+    public Continuation generateContinuation(String key, Long storyid, Long parentId, String context,
+            List<CharacterInfo> charactersName) throws UnfoundStoryException, UnfoundCharacterException {
+        Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        List<Character> characters = findCharacters(story, charactersName);
+        rateLimiter.acquire(story.getUser().getUsername(), story.getUser().getRole());
+        ParentPlot parent = findParent(parentId);
+
+        String prompt = buildContinuationPrompt(story, parent, context, characters);
+        long start = System.nanoTime();
+        LlmResponse response = geminiService.sendAndReceive(key, prompt, false, storyid);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Continuation(parentId, context, prompt, response, latencyMs,
+                buildSummaryPrompt(parent, response.text()));
+    }
+
+    /**
+     * Store generated continuations as new children of the nodes they continue,
+     * with one batch of inserts, add them to the history and summarize them in
+     * the background. Continuations of nodes deleted in the meantime are
+     * dropped.
+     *
+     * @return the ids of the new nodes, in the order of the continuations
+     *         that were stored.
+     */
+    @Transactional
+    public List<Long> saveContinuations(String key, Long storyid, List<Continuation> continuations)
+            throws UnfoundStoryException {
+        Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        List<Long> parentIds = new ArrayList<>(continuations.size());
+        for (Continuation continuation : continuations) {
+            parentIds.add(continuation.parentId());
+        }
+        Map<Long, Node> parents = new HashMap<>();
+        for (Node parent : nodeRepo.findAllById(parentIds)) {
+            if (parent.getStory().getStoryid().equals(storyid)) {
+                parents.put(parent.getNodeId(), parent);
+            }
+        }
+
+        long version = nextVersion(storyid);
+        List<Node> nodes = new ArrayList<>(continuations.size());
+        List<Continuation> stored = new ArrayList<>(continuations.size());
+        for (Continuation continuation : continuations) {
+            Node parent = parents.get(continuation.parentId());
+            if (parent == null) {
+                continue;
+            }
+            Node node = new Node();
+            node.setStory(story);
+            node.setParentId(parent.getNodeId());
+            node.setUser(story.getUser());
+            node.setDepth(parent.getPath() == null ? null : parent.getDepth() + 1);
+            node.setContext(continuation.context());
+            node.setResult(continuation.result());
+            node.setSummaryStatus(SummaryStatus.PENDING);
+            node.setVersion(version);
+            nodes.add(node);
+            stored.add(continuation);
+        }
+        if (nodes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        nodeRepo.saveAll(nodes);
+
+        // The ids are assigned on save, so the paths can only be completed afterwards
+        List<Long> nodeIds = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            String parentPath = parents.get(node.getParentId()).getPath();
+            if (parentPath != null) {
+                node.setPath(parentPath + node.getNodeId() + "/");
+            }
+            nodeIds.add(node.getNodeId());
+            Continuation continuation = stored.get(i);
+            nodeSummaryWorker.submit(key, node.getNodeId(), storyid, continuation.summaryPrompt());
+            generationHistory.record(storyid, node.getNodeId(), node.getParentId(), continuation.prompt(),
+                    continuation.response(), null, continuation.latencyMs());
+        }
+        storyTreeCache.invalidate(storyid);
+        return nodeIds;
+    }
+
+    /**
+     * Summarize again the nodes left PENDING when the application stopped,
+     * parents first. Prompts are built on the summary threads, so a node whose
+     * parent is pending too is summarized on the parent's new summary.
+     *
+     * @return the number of nodes queued.
+     */
+    public int resummarizePending(String key) {
+        List<Node> nodes = nodeRepo.findPendingSummaries();
+        for (Node node : nodes) {
+            Long parentId = node.getParentId();
+            String result = node.getResult();
+            nodeSummaryWorker.resubmit(key, node.getNodeId(), node.getStory().getStoryid(),
+                    () -> buildSummaryPrompt(findParent(parentId), result));
         }
+        return nodes.size();
+    }
+
+    /**
+     * Generate a story continuation and send it as it is produced. The
+     * continuation arrives as "chunk" events, followed by one "summary" event
+     * once it is complete, or an "error" event if generation fails.
+     *
+     * @return the events; the prompt is built before this method returns.
+     */
+    public Flux<ServerSentEvent<String>> streamResult(String key, Long storyid, Long parentId,
+            String context, List<CharacterInfo> charactersName) throws UserInfoException, UnfoundStoryException {
+        acquireSlot(storyid, charactersName);
+        // Nothing is stored, so no transaction is held while waiting for the parent's summary
+        return stream(key, storyid, parentId, context, charactersName);
+    }
+
+    private Flux<ServerSentEvent<String>> stream(String key, Long storyid, Long parentId, String context,
+            List<CharacterInfo> charactersName) {
+        Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        List<Character> characters = findCharacters(story, charactersName);
+        ParentPlot parent = findParent(parentId);
+        String prompt = buildContinuationPrompt(story, parent, context, characters);
+
+        StringBuilder result = new StringBuilder();
+        AtomicLong start = new AtomicLong();
+        Flux<ServerSentEvent<String>> chunks = geminiService.streamRequest(key, prompt, storyid)
+                .doOnSubscribe(subscription -> start.set(System.nanoTime()))
+                .doOnNext(result::append)
+                .map(chunk -> ServerSentEvent.builder(chunk).event("chunk").build());
+        Mono<ServerSentEvent<String>> summary = Mono
+                .fromCallable(() -> {
+                    long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start.get());
+                    String text = geminiService.sendAndReceiveRequest(key,
+                            buildSummaryPrompt(parent, result.toString()), false, storyid);
+                    // Streamed chunks carry no usage for the history; TokenUsageService counts it
+                    generationHistory.record(storyid, null, parentId, prompt, LlmResponse.of(result.toString()),
+                            text, latencyMs);
+                    return text;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(text -> ServerSentEvent.builder(text).event("summary").build());
+
+        return chunks.concatWith(summary)
+                .onErrorResume(e -> Flux.just(ServerSentEvent.builder(String.valueOf(e.getMessage()))
+                        .event("error").build()));
+    }
+
+    /**
+     * Take a generation slot for the owner of a story. This runs before the
+     * generation's transaction starts, so a request waiting for its slot holds
+     * no database connection. The story and characters are checked first, so
+     * invalid requests use no slot.
+     */
+    private void acquireSlot(Long storyid, List<CharacterInfo> charactersName) {
+        Story story = storyRepo.findById(storyid).orElseThrow(() -> new UnfoundStoryException());
+        findCharacters(story, charactersName);
+        rateLimiter.acquire(story.getUser().getUsername(), story.getUser().getRole());
+    }
 
+    /**
+     * What a continuation needs from its parent node.
+     */
+    private record ParentPlot(String summary, String context) {
+    }
+
+    /**
+     * Read the plot so far from the parent node, waiting for its summary if it
+     * is still being generated.
+     *
+     * @return the parent's plot, or null if there is no parent.
+     */
+    private ParentPlot findParent(Long parentId) {
+        if (parentId == null) {
+            return null;
+        }
+        Node parent = nodeRepo.findById(parentId).orElse(null);
+        if (parent == null) {
+            return null;
+        }
+        if (parent.getSummaryStatus() == SummaryStatus.PENDING) {
+            Optional<String> summary = nodeSummaryWorker.awaitSummary(parentId, SUMMARY_WAIT);
+            if (summary.isPresent()) {
+                return new ParentPlot(summary.get(), summary.get());
+            }
+        }
+        return new ParentPlot(parent.getSummary(), parent.getContext());
+    }
+
+    /**
+     * Load the characters a continuation asks for with one query, looking only
+     * at the characters of its story.
+     *
+     * @return the characters, in the order they were asked for.
+     * @throws UnfoundCharacterException naming every character the story does
+     *                                   not have.
+     */
+    private List<Character> findCharacters(Story story, List<CharacterInfo> names) {
+        if (names == null || names.isEmpty()) {
+            return List.of();
+        }
+        Set<String> firstNames = new HashSet<>();
+        Set<String> lastNames = new HashSet<>();
+        for (CharacterInfo name : names) {
+            firstNames.add(name.getFirstName());
+            lastNames.add(name.getLastName());
+        }
+        // The query can also return other combinations of the names, so match
+        // full names here
+        Map<List<String>, Character> byName = new HashMap<>();
+        for (Character character : characterRepo.findByStoryStoryidAndFirstNameInAndLastNameIn(story.getStoryid(),
+                firstNames, lastNames)) {
+            byName.putIfAbsent(Arrays.asList(character.getFirstName(), character.getLastName()), character);
+        }
+
+        List<Character> characters = new ArrayList<>(names.size());
+        List<String> missing = new ArrayList<>();
+        for (CharacterInfo name : names) {
+            Character character = byName.get(Arrays.asList(name.getFirstName(), name.getLastName()));
+            if (character == null) {
+                missing.add(name.getFirstName() + " " + name.getLastName());
+            } else {
+                characters.add(character);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new UnfoundCharacterException(missing, story.getStoryname());
+        }
+        return characters;
+    }
+
+    /**
+     * Prompt asking for a continuation of the plot summarized in the parent node.
+     * Within the prompt token budget the instruction comes first, then the plot
+     * so far, the expected direction and the characters; the plot keeps its
+     * most recent part when it has to be shortened.
+     */
+    private String buildContinuationPrompt(Story story, ParentPlot parent, String context,
+            List<Character> characters) {
+        PromptBuilder.Assembly prompt = promptBuilder.newPrompt();
         if("premium".equalsIgnoreCase(story.getUser().getRole())){
-            sb.append(String.format("""
+            prompt.required(String.format("""
                 Based on the following provided plot, generate a new story continuation.
                 Please ensure the new content is creative, introducing and Guarantee the story style is %s.
                 Only return the new story content, keeping it concise and coherent.
@@ -123,7 +827,7 @@ public class NodeService {
 
                     """, story.getGenre()));
         } else{
-            sb.append(String.format("""
+            prompt.required(String.format("""
                 Based on the following provided plot, generate a new story continuation in no more than 500 words.
                 Please ensure the new content is creative, introducing and Guarantee the story style is %s.
                 Only return the new story content, keeping it concise and coherent.
@@ -133,45 +837,38 @@ public class NodeService {
         }
 
 
-        if (root) {
-            sb.append("""
+        if (parent == null) {
+            prompt.required("""
                     Plot synopsis: None
                     ====================================
 
                         """);
         } else {
-            sb.append("Plot synopsis: ");
-            sb.append("\"" + nodeRepo.findById(parentId).get().getSummary() + "\"");
-            sb.append("""
+            prompt.optional("Plot synopsis: \"", String.valueOf(parent.summary()), "\"" + """
                         ====================================
 
-                    """);
+                    """, PromptBuilder.Trim.KEEP_END);
         }
 
-        sb.append("Expected direction of the plot: ");
-        sb.append("\" " + context + "\"");
+        prompt.optional("Expected direction of the plot: \" ", String.valueOf(context), "\"",
+                PromptBuilder.Trim.KEEP_START);
 
-        sb.append("=====================================\n");
-        sb.append(
-                "Here are some important tasks to help you get to know their names again, as well as various background information: \n");
+        prompt.required("=====================================\n"
+                + "Here are some important tasks to help you get to know their names again, as well as various background information: \n");
 
-        for (CharacterInfo name : charactersName) {
-            Character character = characterRepo.findByFirstNameAndLastName(name.getFirstName(), name.getLastName())
-                    .orElseThrow(() -> new RuntimeException(String
-                            .format("There is no character in database called %s %s of story %s", name.getFirstName(),
-                                    name.getLastName(),
-                                    story.getStoryname())));
-            sb.append(String.format("lastName=%s, firstName=%s, background=%s", character.getLastName(),
-                    character.getLastName(), character.getBackground()));
-            sb.append("=====================================\n");
-            // System.out.println(character.toString());
+        for (Character character : characters) {
+            prompt.optional(String.format("lastName=%s, firstName=%s, background=", character.getLastName(),
+                    character.getFirstName()), String.valueOf(character.getBackground()),
+                    "=====================================\n", PromptBuilder.Trim.KEEP_START);
         }
+        return prompt.build();
+    }
 
-        String result = geminiService.sendAndReceiveRequest(key, sb.toString());
-        // String result = "This is a test result";
-
-        // Collect all context form history
-        sb = new StringBuilder();
+    /**
+     * Prompt asking to merge the story so far with the newly generated part.
+     */
+    private static String buildSummaryPrompt(ParentPlot parent, String result) {
+        StringBuilder sb = new StringBuilder();
         sb.append(
                 """
                         Please combine the following two parts into a coherent and concise story outline. Ensure that no important details are lost, and the resulting story serves as a complete background for future story development.
@@ -185,7 +882,7 @@ public class NodeService {
 
                             """);
 
-        if (root) {
+        if (parent == null) {
             sb.append("""
                         Part 1: Summary of everything that has happened so far
                         "This is begin of whole story"
@@ -194,7 +891,7 @@ public class NodeService {
             sb.append("""
                         Part 1: Summary of everything that has happened so far
                     """);
-            sb.append("\"" + nodeRepo.findById(parentId).get().getContext() + "\"");
+            sb.append("\"" + parent.context() + "\"");
             sb.append("""
                         ====================================
 
@@ -202,14 +899,12 @@ public class NodeService {
         }
         sb.append("Part 2: New record");
         sb.append("\"" + result + "\"");
-        String summary = geminiService.sendAndReceiveRequest(key, sb.toString());
-        // String summary = "This is the summary";
-
-        return new GeneratedResultDTO(result, summary);
+        return sb.toString();
     }
 
     /**
-     * Recursive method to build the node hierarchy
+     * Build the node hierarchy under a node. All nodes of the story are loaded
+     * with one query and linked in memory.
      */
     public static NodeDTO buildNodeHierarchy(Node parentNode, NodeRepo nodeRepo) {
 
@@ -218,55 +913,97 @@ public class NodeService {
             return null;
         }
 
-        // Create a NodeDTO for the current parent node
-        NodeDTO nodeDTO = new NodeDTO(parentNode);
-        nodeDTO.setNodeId(parentNode.getNodeId());
-        nodeDTO.setDescription(parentNode.getDescription());
-        nodeDTO.setContext(parentNode.getContext());
-
-        // Find all child nodes of the current node using Optional
-        Optional<List<Node>> optionalChildNodes = nodeRepo.findByParentId(parentNode.getNodeId());
-        List<NodeDTO> childNodeDTOs = new ArrayList<>();
-
-        // Check if child nodes are present and populate the list of NodeDTOs
-        if (optionalChildNodes.isPresent()) {
-            List<Node> childNodes = optionalChildNodes.get();
-            for (Node childNode : childNodes) {
-                NodeDTO childNodeDTO = buildNodeHierarchy(childNode, nodeRepo); // Recursively build the hierarchy
-                childNodeDTOs.add(childNodeDTO);
-            }
-        }
-
-        // Set the child nodes in the parent NodeDTO
-        nodeDTO.setChildren(childNodeDTOs);
-
-        return nodeDTO;
+        List<Node> storyNodes = nodeRepo.findByStoryStoryid(parentNode.getStory().getStoryid())
+                .orElse(Collections.emptyList());
+        return NodeTreeAssembler.assemble(parentNode, storyNodes);
     }
 
 
     /**
-     * Deleting a node.
+     * Deleting a node and all of its descendants.
      * 
      * @param nodeId nodeId of the node.
-     * @return deleted node.
+     * @return number of nodes removed.
      */
     @Transactional
-    public void deleteNode(Long nodeId) {
-        Queue<Long> toBeDeletedNodes = new LinkedList<>();
-        toBeDeletedNodes.add(nodeId);
-
-        while (!toBeDeletedNodes.isEmpty()) {
-            Long currentNode = toBeDeletedNodes.poll();
-            nodeRepo.deleteById(currentNode);
-
-            // If the current node has children, add them to the queue to remove them
-            List<Node> children = nodeRepo.findByParentId(currentNode).orElse(Collections.emptyList());
-            if (!children.isEmpty()) {
-                for (Node n : children) {
-                    toBeDeletedNodes.add(n.getNodeId());
+    public int deleteNode(Long nodeId) {
+        Optional<Node> node = nodeRepo.findById(nodeId);
+        if (node.isEmpty()) {
+            return 0;
+        }
+        Long storyId = node.get().getStory().getStoryid();
+        long version = nextVersion(storyId);
+        storyTreeCache.invalidate(storyId);
+
+        // Nodes whose path has not been filled in yet are found by walking parent ids
+        String path = node.get().getPath();
+        List<Long> deletedIds = path == null
+                ? nodeRepo.findSubtreeIds(nodeId)
+                : nodeRepo.findNodeIdsByPathLike(path + "%");
+        List<NodeTombstone> tombstones = new ArrayList<>(deletedIds.size());
+        for (Long deletedId : deletedIds) {
+            tombstones.add(new NodeTombstone(storyId, deletedId, version));
+        }
+        nodeTombstoneRepo.saveAll(tombstones);
+
+        if (path == null) {
+            return nodeRepo.deleteSubtree(nodeId);
+        }
+        return nodeRepo.deleteByPathLike(path + "%");
+    }
+
+    /**
+     * Get the nodes of a story created, updated or deleted after a version.
+     *
+     * @param storyId story of the nodes.
+     * @param since   version the client already has, or 0 for a new client.
+     * @return the changes and the current version of the story; both lists are
+     *         empty when the story has not changed. New clients get the whole
+     *         tree, and clients older than the kept tombstones get it marked as
+     *         a full resync.
+     */
+    @Transactional(readOnly = true)
+    public NodeChangesDTO getChanges(Long storyId, long since) {
+        long version = storyRepo.findVersionByStoryid(storyId).orElseThrow(() -> new UnfoundStoryException());
+        List<NodeDTO> changed = new ArrayList<>();
+        List<Long> deleted = new ArrayList<>();
+
+        // Tombstones older than the retained versions may be gone, so such
+        // clients get the tree as a new client would. The whole story is read,
+        // as nodes created before versions were kept have none.
+        boolean fullResync = since > 0 && since < tombstoneCompactor.oldestSyncableVersion(version);
+        if (since <= 0 || fullResync) {
+            for (Node node : nodeRepo.findTreeByStoryid(storyId)) {
+                if (node.getUser() != null) {
+                    changed.add(new NodeDTO(node));
                 }
             }
+            return fullResync ? new NodeChangesDTO(storyId, version, changed, deleted, true)
+                    : new NodeChangesDTO(storyId, version, changed, deleted);
+        }
+        if (version <= since) {
+            return new NodeChangesDTO(storyId, version, changed, deleted);
+        }
+
+        for (Node node : nodeRepo.findChangedByStoryid(storyId, since)) {
+            if (node.getUser() != null) {
+                changed.add(new NodeDTO(node));
+            }
+        }
+        for (NodeTombstone tombstone : nodeTombstoneRepo.findByStoryidAndVersionGreaterThan(storyId, since)) {
+            deleted.add(tombstone.getNodeId());
         }
+        return new NodeChangesDTO(storyId, version, changed, deleted);
+    }
+
+    /**
+     * Advance the version of a story and return the new value. The story row
+     * stays locked until the transaction ends, so concurrent changes to the
+     * same story get distinct versions.
+     */
+    private long nextVersion(Long storyId) {
+        storyRepo.incrementVersion(storyId);
+        return storyRepo.findVersionByStoryid(storyId).orElseThrow(() -> new UnfoundStoryException());
     }
 
 }
\ No newline at end of file
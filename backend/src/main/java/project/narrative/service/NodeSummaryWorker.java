@@ -0,0 +1,214 @@
+package project.narrative.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import project.narrative.model.SummaryStatus;
+import project.narrative.repository.NodeRepo;
+import project.narrative.repository.StoryRepo;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Generates the rolling summaries of nodes in the background, so a
+ * continuation can be returned before its summary is ready. Nodes are marked
+ * PENDING until the summary is stored, and generations building on a pending
+ * node wait for it through awaitSummary.
+ *
+ * At most narrative.summary.queue-capacity summaries wait for a thread. When
+ * the queue is full, a new summary is refused and its node marked FAILED, so
+ * the request thread never makes the model call.
+ */
+@Service
+public class NodeSummaryWorker {
+
+    private static final Logger log = LoggerFactory.getLogger(NodeSummaryWorker.class);
+
+    private static final Duration COMPLETED_RETENTION = Duration.ofSeconds(30);
+
+    private final GeminiService geminiService;
+    private final NodeRepo nodeRepo;
+    private final StoryRepo storyRepo;
+    private final StoryTreeCache storyTreeCache;
+    private final TransactionTemplate transactionTemplate;
+    private final ThreadPoolExecutor executor;
+
+    // Summaries being generated, by node id
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    public NodeSummaryWorker(GeminiService geminiService, NodeRepo nodeRepo, StoryRepo storyRepo,
+            StoryTreeCache storyTreeCache, PlatformTransactionManager transactionManager,
+            @Value("${narrative.summary.threads:2}") int threads,
+            @Value("${narrative.summary.queue-capacity:100}") int queueCapacity) {
+        this.geminiService = geminiService;
+        this.nodeRepo = nodeRepo;
+        this.storyRepo = storyRepo;
+        this.storyTreeCache = storyTreeCache;
+        // Submissions run after the request's transaction completed, while its
+        // resources may still be bound, so stores need a transaction of their own
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("summary-"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Generate and store the summary of a node. The node must already be
+     * marked PENDING; inside a transaction the work starts once it commits.
+     * When the queue is full the node is marked FAILED instead.
+     *
+     * @param key     API key for the model.
+     * @param nodeId  node to summarize.
+     * @param storyId story of the node.
+     * @param prompt  summary prompt.
+     */
+    public void submit(String key, Long nodeId, Long storyId, String prompt) {
+        submit(key, nodeId, storyId, () -> prompt, false);
+    }
+
+    /**
+     * Summarize again a node left PENDING when the application stopped. The
+     * prompt is built on the summary thread, so it may wait for the summary of
+     * a parent resubmitted before it. When the queue is full the summary is
+     * generated on the calling thread, which must not be a request thread.
+     *
+     * @param prompt builds the summary prompt.
+     */
+    public void resubmit(String key, Long nodeId, Long storyId, Supplier<String> prompt) {
+        submit(key, nodeId, storyId, prompt, true);
+    }
+
+    private void submit(String key, Long nodeId, Long storyId, Supplier<String> prompt, boolean runWhenFull) {
+        CompletableFuture<String> summary = new CompletableFuture<>();
+        pending.put(nodeId, summary);
+
+        Runnable work = () -> summarize(key, nodeId, storyId, prompt, summary);
+        Runnable task = () -> {
+            try {
+                executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                if (runWhenFull) {
+                    work.run();
+                } else {
+                    refuse(nodeId, storyId, summary, e);
+                }
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        task.run();
+                    } else {
+                        pending.remove(nodeId, summary);
+                        summary.cancel(false);
+                    }
+                }
+            });
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Wait for the summary of a node that is being generated.
+     *
+     * @param nodeId  node whose summary is needed.
+     * @param timeout longest time to wait.
+     * @return the summary, or empty if the node is not being summarized here,
+     *         generation failed, or the timeout passed.
+     */
+    public Optional<String> awaitSummary(Long nodeId, Duration timeout) {
+        CompletableFuture<String> summary = pending.get(nodeId);
+        if (summary == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable(summary.get(timeout.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            return Optional.empty();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Give up on a summary that did not fit in the queue.
+     */
+    private void refuse(Long nodeId, Long storyId, CompletableFuture<String> summary, RejectedExecutionException e) {
+        log.warn("Summary queue is full, node {} is left without a summary", nodeId);
+        try {
+            store(nodeId, storyId, null, SummaryStatus.FAILED);
+        } finally {
+            pending.remove(nodeId, summary);
+            summary.completeExceptionally(e);
+        }
+    }
+
+    private void summarize(String key, Long nodeId, Long storyId, Supplier<String> prompt,
+            CompletableFuture<String> summary) {
+        try {
+            String text = geminiService.sendAndReceiveRequest(key, prompt.get(), false, storyId);
+            store(nodeId, storyId, text, SummaryStatus.READY);
+            summary.complete(text);
+        } catch (RuntimeException e) {
+            try {
+                store(nodeId, storyId, null, SummaryStatus.FAILED);
+            } finally {
+                summary.completeExceptionally(e);
+            }
+        } finally {
+            // Keep the outcome around for a while, for generations that read the
+            // node as PENDING just before the summary was stored
+            CompletableFuture.delayedExecutor(COMPLETED_RETENTION.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(() -> pending.remove(nodeId, summary));
+        }
+    }
+
+    /**
+     * Store the outcome on the node as a new version of its story. The node may
+     * have been deleted in the meantime, in which case there is nothing to do.
+     */
+    private void store(Long nodeId, Long storyId, String text, SummaryStatus status) {
+        transactionTemplate.executeWithoutResult(tx -> nodeRepo.findById(nodeId).ifPresent(node -> {
+            if (text != null) {
+                node.setSummary(text);
+                node.setContext(text);
+            }
+            node.setSummaryStatus(status);
+            storyRepo.incrementVersion(storyId);
+            node.setVersion(storyRepo.findVersionByStoryid(storyId).orElse(node.getVersion()));
+            nodeRepo.save(node);
+            storyTreeCache.invalidate(storyId);
+        }));
+    }
+}
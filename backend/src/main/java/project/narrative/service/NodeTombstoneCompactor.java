@@ -0,0 +1,52 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import project.narrative.repository.NodeTombstoneRepo;
+
+/**
+ * Bounds the tombstones kept for incremental sync. Only the tombstones of a
+ * story's last narrative.changes.retained-versions versions are kept; older
+ * ones, and those of deleted stories, are removed every
+ * narrative.changes.compact-interval-ms. Clients that are further behind
+ * cannot learn about every deletion and are sent the whole tree instead.
+ *
+ * Removed tombstones are counted as narrative.changes.tombstones.compacted.
+ */
+@Service
+public class NodeTombstoneCompactor {
+
+    private final NodeTombstoneRepo nodeTombstoneRepo;
+    private final long retainedVersions;
+    private final Counter compacted;
+
+    public NodeTombstoneCompactor(NodeTombstoneRepo nodeTombstoneRepo, MeterRegistry meterRegistry,
+            @Value("${narrative.changes.retained-versions:1000}") long retainedVersions) {
+        this.nodeTombstoneRepo = nodeTombstoneRepo;
+        this.retainedVersions = retainedVersions;
+        this.compacted = Counter.builder("narrative.changes.tombstones.compacted")
+                .description("Tombstones of deleted nodes removed because they are older than the retained versions")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Oldest version a client can sync from with the tombstones that are kept.
+     *
+     * @param currentVersion current version of the story.
+     * @return the version; clients with an older version need the whole tree.
+     */
+    public long oldestSyncableVersion(long currentVersion) {
+        return Math.max(0, currentVersion - retainedVersions);
+    }
+
+    @Scheduled(fixedDelayString = "${narrative.changes.compact-interval-ms:3600000}")
+    @Transactional
+    public void compact() {
+        compacted.increment(nodeTombstoneRepo.deleteOlderThanRetained(retainedVersions));
+    }
+}
@@ -0,0 +1,109 @@
+package project.narrative.service;
+
+import project.narrative.dto.NodeDTO;
+import project.narrative.model.entities.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds NodeDTO trees in memory from a flat list of nodes, so a whole story
+ * can be loaded with a single query instead of one query per node.
+ */
+public final class NodeTreeAssembler {
+
+    private NodeTreeAssembler() {
+    }
+
+    /**
+     * Build the trees of every root node (nodes with no parent) in the list.
+     *
+     * @param nodes all nodes of a story, in the order they should appear.
+     * @return the root NodeDTOs with their children populated.
+     */
+    public static List<NodeDTO> assemble(List<Node> nodes) {
+        Map<Long, List<Node>> childrenByParent = indexByParent(nodes);
+        List<NodeDTO> roots = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node.getParentId() == null) {
+                NodeDTO root = build(node, childrenByParent);
+                if (root != null) {
+                    roots.add(root);
+                }
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Build the tree under a single node.
+     *
+     * @param root  node to start from.
+     * @param nodes all nodes of the story the root belongs to.
+     * @return the root NodeDTO with its children populated, or null if the
+     *         root has no user.
+     */
+    public static NodeDTO assemble(Node root, List<Node> nodes) {
+        return build(root, indexByParent(nodes));
+    }
+
+    /**
+     * Group nodes by their parent id, keeping the original order of siblings.
+     */
+    static Map<Long, List<Node>> indexByParent(List<Node> nodes) {
+        Map<Long, List<Node>> childrenByParent = new HashMap<>();
+        for (Node node : nodes) {
+            if (node.getParentId() != null) {
+                childrenByParent.computeIfAbsent(node.getParentId(), k -> new ArrayList<>()).add(node);
+            }
+        }
+        return childrenByParent;
+    }
+
+    /**
+     * Build the tree iteratively with an explicit work stack, so very deep
+     * chains do not overflow the call stack.
+     */
+    private static NodeDTO build(Node root, Map<Long, List<Node>> childrenByParent) {
+        // Nodes without a user are skipped along with their subtree
+        if (root.getUser() == null) {
+            return null;
+        }
+
+        NodeDTO rootDTO = toDTO(root, childrenByParent);
+        Deque<Node> pendingNodes = new ArrayDeque<>();
+        Deque<NodeDTO> pendingDTOs = new ArrayDeque<>();
+        pendingNodes.push(root);
+        pendingDTOs.push(rootDTO);
+
+        while (!pendingNodes.isEmpty()) {
+            Node node = pendingNodes.pop();
+            NodeDTO nodeDTO = pendingDTOs.pop();
+            for (Node child : childrenByParent.getOrDefault(node.getNodeId(), Collections.emptyList())) {
+                if (child.getUser() == null) {
+                    continue;
+                }
+                NodeDTO childDTO = toDTO(child, childrenByParent);
+                nodeDTO.getChildren().add(childDTO);
+                pendingNodes.push(child);
+                pendingDTOs.push(childDTO);
+            }
+        }
+        return rootDTO;
+    }
+
+    /**
+     * Create the DTO of a node with a child list sized to its number of children.
+     */
+    private static NodeDTO toDTO(Node node, Map<Long, List<Node>> childrenByParent) {
+        NodeDTO nodeDTO = new NodeDTO(node);
+        List<Node> children = childrenByParent.get(node.getNodeId());
+        nodeDTO.setChildren(new ArrayList<>(children == null ? 0 : children.size()));
+        return nodeDTO;
+    }
+}
@@ -0,0 +1,191 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles prompts within a budget of narrative.prompt.max-tokens tokens.
+ * A prompt is a list of parts. Required parts are always sent; optional parts
+ * get the rest of the budget in the order they were added, so earlier parts
+ * win. A part that does not fit is shortened, and left out when too little
+ * room is left for it to be useful.
+ *
+ * Tokens are estimated locally at four characters per token, which is close
+ * for English text and needs no tokenizer.
+ *
+ * Prompt sizes are published as narrative.prompt.tokens with
+ * stage=requested for the untrimmed prompt and stage=sent for the result,
+ * and trimmed prompts are counted as narrative.prompt.trimmed.
+ */
+@Component
+public class PromptBuilder {
+
+    /**
+     * Which end of a part is kept when it is shortened.
+     */
+    public enum Trim {
+        KEEP_START, KEEP_END
+    }
+
+    // Optional parts with less room than this are left out instead of trimmed
+    private static final int MIN_PART_TOKENS = 16;
+    private static final String ELLIPSIS = "...";
+
+    private final int maxTokens;
+    private final DistributionSummary requestedTokens;
+    private final DistributionSummary sentTokens;
+    private final Counter trimmed;
+
+    public PromptBuilder(MeterRegistry meterRegistry, @Value("${narrative.prompt.max-tokens:3000}") int maxTokens) {
+        this.maxTokens = maxTokens;
+        this.requestedTokens = DistributionSummary.builder("narrative.prompt.tokens")
+                .description("Estimated prompt size before and after trimming to the budget")
+                .baseUnit("tokens")
+                .tag("stage", "requested")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.sentTokens = DistributionSummary.builder("narrative.prompt.tokens")
+                .description("Estimated prompt size before and after trimming to the budget")
+                .baseUnit("tokens")
+                .tag("stage", "sent")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.trimmed = Counter.builder("narrative.prompt.trimmed")
+                .description("Prompts shortened to fit the token budget")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Estimated number of tokens in a text.
+     */
+    public static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    public Assembly newPrompt() {
+        return new Assembly();
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * A prompt being assembled. Not thread safe.
+     */
+    public final class Assembly {
+
+        private final List<Part> parts = new ArrayList<>();
+
+        /**
+         * Add text that is always sent.
+         */
+        public Assembly required(String text) {
+            parts.add(new Part("", text, "", null));
+            return this;
+        }
+
+        /**
+         * Add text that is sent if there is room for it.
+         *
+         * @param prefix  text sent before the content; never trimmed.
+         * @param content text that may be shortened.
+         * @param suffix  text sent after the content; never trimmed.
+         * @param trim    which end of the content to keep when shortening it.
+         */
+        public Assembly optional(String prefix, String content, String suffix, Trim trim) {
+            parts.add(new Part(prefix, content, suffix, trim));
+            return this;
+        }
+
+        /**
+         * @return the prompt, within the budget unless the required parts alone
+         *         exceed it.
+         */
+        public String build() {
+            int requested = 0;
+            int remaining = maxTokens;
+            for (Part part : parts) {
+                requested += part.tokens;
+                if (part.trim == null) {
+                    remaining -= part.tokens;
+                }
+            }
+
+            StringBuilder prompt = new StringBuilder();
+            int sent = 0;
+            for (Part part : parts) {
+                String text;
+                if (part.trim == null) {
+                    text = part.text();
+                } else if (part.tokens <= remaining) {
+                    text = part.text();
+                    remaining -= part.tokens;
+                } else {
+                    int contentTokens = remaining - estimateTokens(part.prefix) - estimateTokens(part.suffix);
+                    if (contentTokens < MIN_PART_TOKENS) {
+                        continue;
+                    }
+                    text = part.prefix + shorten(part.content, contentTokens, part.trim) + part.suffix;
+                    remaining -= estimateTokens(text);
+                }
+                prompt.append(text);
+                sent += estimateTokens(text);
+            }
+
+            requestedTokens.record(requested);
+            sentTokens.record(sent);
+            if (sent < requested) {
+                trimmed.increment();
+            }
+            return prompt.toString();
+        }
+    }
+
+    /**
+     * Shorten a text to about the given number of tokens, cutting between
+     * words and marking the cut with an ellipsis.
+     */
+    private static String shorten(String text, int tokens, Trim trim) {
+        int length = Math.max(0, tokens * 4 - ELLIPSIS.length());
+        if (length >= text.length()) {
+            return text;
+        }
+        if (trim == Trim.KEEP_START) {
+            int end = text.lastIndexOf(' ', length);
+            return text.substring(0, end > length / 2 ? end : length) + ELLIPSIS;
+        }
+        int start = text.indexOf(' ', text.length() - length);
+        return ELLIPSIS + text.substring(start >= 0 && start < text.length() - length / 2
+                ? start + 1
+                : text.length() - length);
+    }
+
+    private static final class Part {
+        private final String prefix;
+        private final String content;
+        private final String suffix;
+        // Null for required parts
+        private final Trim trim;
+        private final int tokens;
+
+        private Part(String prefix, String content, String suffix, Trim trim) {
+            this.prefix = prefix;
+            this.content = content;
+            this.suffix = suffix;
+            this.trim = trim;
+            this.tokens = estimateTokens(prefix + content + suffix);
+        }
+
+        private String text() {
+            return prefix + content + suffix;
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package project.narrative.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
-import jakarta.transaction.Transactional;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import jakarta.persistence.EntityManager;
 import project.narrative.dto.NodeDTO;
 import project.narrative.dto.StoryDTO;
 import project.narrative.error.UserInfoException;
@@ -14,30 +22,49 @@ import project.narrative.model.entities.Character;
 import project.narrative.dto.CharacterDTO;
 import project.narrative.repository.*;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ArrayList;
 import java.time.LocalDate;
+import java.util.stream.Stream;
 
 @Service
 public class StoryService {
+
+    private static final Logger log = LoggerFactory.getLogger(StoryService.class);
+
     private final StoryRepo storyRepo;
     private final UserRepo userRepo;
     private final NodeRepo nodeRepo;
     private final CharacterRepo characterRepo;
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+    private final StoryTreeCache storyTreeCache;
 
-    public StoryService(StoryRepo storyRepo, UserRepo userRepo, NodeRepo nodeRepo, CharacterRepo characterRepo) {
+    public StoryService(StoryRepo storyRepo, UserRepo userRepo, NodeRepo nodeRepo, CharacterRepo characterRepo,
+            EntityManager entityManager, ObjectMapper objectMapper, StoryTreeCache storyTreeCache) {
         this.storyRepo = storyRepo;
         this.nodeRepo = nodeRepo;
         this.userRepo = userRepo;
         this.characterRepo = characterRepo;
+        this.entityManager = entityManager;
+        this.objectMapper = objectMapper;
+        this.storyTreeCache = storyTreeCache;
     }
 
     @Transactional
     public StoryDTO createStory(String email, String storyname, String genre, String description) {
         User user = userRepo.findByEmail(email).orElseThrow(() -> new UserInfoException());
-        System.out.println(storyname + " " + genre + " "+ description);
+        log.debug("Creating story {} ({}) for {}", storyname, genre, user.getUsername());
         Story story = new Story(storyname, user, genre, LocalDate.now(), LocalDate.now());
         story.setDescription(description);
         storyRepo.save(story);
@@ -66,6 +93,7 @@ public class StoryService {
         story.setGenre(genre);
         story.setDescription(description);
         storyRepo.save(story);
+        storyTreeCache.invalidate(storyId);
         return new StoryDTO(story);
     }
 
@@ -74,6 +102,7 @@ public class StoryService {
         Story story = storyRepo.findById(storyId).orElseThrow(() -> new UnfoundStoryException());
         StoryDTO dto = new StoryDTO((story));
         storyRepo.deleteById(storyId);
+        storyTreeCache.invalidate(storyId);
         return dto;
     }
 
@@ -133,39 +162,48 @@ public class StoryService {
         // Retrieve user from repository
         User user = userRepo.findByEmail(email)
                 .orElseThrow(UserInfoException::new);
-        System.out.println("User retrieved: " + user);
-
 
         // Retrieve all stories for the user using Optional
         List<Story> stories = storyRepo.findByUserUsername(user.getUsername()).orElseThrow(UnfoundStoryException::new);
-        System.out.println("Stories retrieved: " + stories);
+        log.debug("Loading the node trees of {} stories of {}", stories.size(), user.getUsername());
+
+        // Take cached trees where possible and load the nodes of the other
+        // stories in one query, grouped by story
+        Map<Long, List<NodeDTO>> treesByStory = new HashMap<>();
+        List<Long> missingIds = new ArrayList<>();
+        long loadStamp = storyTreeCache.loadStamp();
+        for (Story story : stories) {
+            List<NodeDTO> cached = storyTreeCache.get(story.getStoryid());
+            if (cached != null) {
+                treesByStory.put(story.getStoryid(), cached);
+            } else {
+                missingIds.add(story.getStoryid());
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            Map<Long, List<Node>> nodesByStory = new HashMap<>();
+            for (Node node : nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(missingIds).orElse(Collections.emptyList())) {
+                nodesByStory.computeIfAbsent(node.getStory().getStoryid(), k -> new ArrayList<>()).add(node);
+            }
+            for (Long storyId : missingIds) {
+                // Link the story's nodes in memory
+                List<Node> storyNodes = nodesByStory.getOrDefault(storyId, Collections.emptyList());
+                List<NodeDTO> rootNodeDTOs = NodeTreeAssembler.assemble(storyNodes);
+                storyTreeCache.put(storyId, rootNodeDTOs, storyNodes.size(), loadStamp);
+                treesByStory.put(storyId, rootNodeDTOs);
+            }
+        }
 
         // Create a list to hold StoryDTOs
         List<StoryDTO> storyDTOs = new ArrayList<>();
 
         // Iterate through each story
         for (Story story : stories) {
-            System.out.println("Processing story: " + story);
-
-            // Find all root nodes for the current story (those with no parent)
-            List<Node> rootNodes = nodeRepo.findByStoryStoryidAndParentIdIsNull(story.getStoryid())
-                    .orElse(Collections.emptyList()); // Handle case when no root nodes exist
-            System.out.println("Root nodes retrieved: " + rootNodes);
-
-            // Create a list to hold root NodeDTOs
-            List<NodeDTO> rootNodeDTOs = new ArrayList<>();
-
-            // Build the node hierarchy for each root node
-            for (Node rootNode : rootNodes) {
-                NodeDTO rootNodeDTO = NodeService.buildNodeHierarchy(rootNode, nodeRepo);
-                rootNodeDTOs.add(rootNodeDTO);
-            }
-
             // Create a StoryDTO object and populate it
             StoryDTO storyDTO = new StoryDTO(story);
             storyDTO.setStoryId(story.getStoryid());
             storyDTO.setStoryName(story.getStoryname());
-            storyDTO.setRootNodes(rootNodeDTOs);
+            storyDTO.setRootNodes(treesByStory.get(story.getStoryid()));
 
             // Add the StoryDTO to the list
             storyDTOs.add(storyDTO);
@@ -177,4 +215,146 @@ public class StoryService {
 
 
 
+    /**
+     * Find the ids of the stories of a user, in the order expected by
+     * writeStoriesWithNodeHierarchy.
+     */
+    public List<Long> findStoryIdsForUser(String email) {
+        User user = userRepo.findByEmail(email)
+                .orElseThrow(UserInfoException::new);
+        return storyRepo.findStoryidsByUserUsername(user.getUsername());
+    }
+
+    /**
+     * Write stories with their node trees as JSON while the nodes come off a
+     * database cursor. The output has the same shape as the list returned by
+     * getStoriesWithNodeHierarchyForUser, but only the currently open branch is
+     * held in memory. Stories with nodes not placed in the tree yet, which have
+     * no path, are linked in memory by parent id instead.
+     *
+     * The stories are loaded here rather than passed in, as the response may be
+     * written on another thread than the request, after its session has closed.
+     *
+     * @param storyIds ids of the stories, in ascending order.
+     * @param out      stream to write the JSON array to.
+     */
+    @Transactional(readOnly = true)
+    public void writeStoriesWithNodeHierarchy(List<Long> storyIds, OutputStream out) throws IOException {
+        List<Story> stories = new ArrayList<>(storyRepo.findAllById(storyIds));
+        stories.sort(Comparator.comparing(Story::getStoryid));
+
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.writeStartArray();
+        try (Stream<Node> nodeStream = storyIds.isEmpty() ? Stream.empty() : nodeRepo.streamByStoryIds(storyIds)) {
+            Iterator<Node> nodes = nodeStream.iterator();
+            Node next = nodes.hasNext() ? nodes.next() : null;
+
+            for (Story story : stories) {
+                generator.writeStartObject();
+                writeFields(generator, new StoryDTO(story));
+
+                // Paths of the nodes whose objects are still open, innermost first
+                Deque<String> openPaths = new ArrayDeque<>();
+                // Whether each open node has started its children array
+                Deque<Boolean> openChildren = new ArrayDeque<>();
+                String skippedPath = null;
+                boolean rootsStarted = false;
+
+                // Nodes without a path come first, so the first node tells whether the
+                // story can be written in path order
+                if (next != null && next.getStory().getStoryid().equals(story.getStoryid())
+                        && next.getPath() == null) {
+                    List<Node> storyNodes = new ArrayList<>();
+                    while (next != null && next.getStory().getStoryid().equals(story.getStoryid())) {
+                        entityManager.detach(next);
+                        storyNodes.add(next);
+                        next = nodes.hasNext() ? nodes.next() : null;
+                    }
+                    storyNodes.sort(Comparator.comparing(Node::getNodeId));
+                    List<NodeDTO> rootNodes = NodeTreeAssembler.assemble(storyNodes);
+                    if (!rootNodes.isEmpty()) {
+                        generator.writeFieldName("rootNodes");
+                        generator.writeTree(objectMapper.valueToTree(rootNodes));
+                    }
+                    generator.writeEndObject();
+                    generator.flush();
+                    continue;
+                }
+
+                while (next != null && next.getStory().getStoryid().equals(story.getStoryid())) {
+                    Node node = next;
+                    next = nodes.hasNext() ? nodes.next() : null;
+                    entityManager.detach(node);
+
+                    // Nodes without a user are skipped along with their subtree
+                    if (skippedPath != null && node.getPath().startsWith(skippedPath)) {
+                        continue;
+                    }
+                    if (node.getUser() == null) {
+                        skippedPath = node.getPath();
+                        continue;
+                    }
+
+                    // Close the nodes whose subtree ended
+                    while (!openPaths.isEmpty() && !node.getPath().startsWith(openPaths.peek())) {
+                        closeNode(generator, openPaths, openChildren);
+                    }
+                    // A node whose parent is not open would be written under the wrong node
+                    String parentPath = node.getPath().substring(0,
+                            node.getPath().lastIndexOf('/', node.getPath().length() - 2) + 1);
+                    if (!parentPath.equals(openPaths.isEmpty() ? "/" : openPaths.peek())) {
+                        throw new IllegalStateException("Nodes of story " + story.getStoryid()
+                                + " are not in tree order at " + node.getPath());
+                    }
+
+                    if (openPaths.isEmpty()) {
+                        if (!rootsStarted) {
+                            generator.writeArrayFieldStart("rootNodes");
+                            rootsStarted = true;
+                        }
+                    } else if (!openChildren.peek()) {
+                        generator.writeArrayFieldStart("children");
+                        openChildren.pop();
+                        openChildren.push(true);
+                    }
+
+                    generator.writeStartObject();
+                    writeFields(generator, new NodeDTO(node));
+                    openPaths.push(node.getPath());
+                    openChildren.push(false);
+                }
+
+                while (!openPaths.isEmpty()) {
+                    closeNode(generator, openPaths, openChildren);
+                }
+                if (rootsStarted) {
+                    generator.writeEndArray();
+                }
+                generator.writeEndObject();
+                generator.flush();
+            }
+        }
+        generator.writeEndArray();
+        generator.flush();
+    }
+
+    private void writeFields(JsonGenerator generator, Object value) throws IOException {
+        ObjectNode fields = objectMapper.valueToTree(value);
+        Iterator<Map.Entry<String, JsonNode>> it = fields.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> field = it.next();
+            generator.writeFieldName(field.getKey());
+            generator.writeTree(field.getValue());
+        }
+    }
+
+    private void closeNode(JsonGenerator generator, Deque<String> openPaths, Deque<Boolean> openChildren)
+            throws IOException {
+        openPaths.pop();
+        if (openChildren.pop()) {
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
 }
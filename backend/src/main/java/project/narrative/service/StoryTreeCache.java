@@ -0,0 +1,179 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import project.narrative.dto.NodeDTO;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the assembled node trees of recently read stories in memory. The
+ * cache is bounded by the total number of cached nodes and evicts the least
+ * recently used stories first. Services that change nodes call invalidate so
+ * the next read rebuilds the tree from the database.
+ *
+ * Readers take a loadStamp before loading a tree and pass it to put. A tree
+ * whose story was invalidated after the stamp was taken may hold data from
+ * before the change, so it is not cached.
+ *
+ * Hits, misses, evictions and size are published as the cache.gets,
+ * cache.evictions and cache.size meters with cache=storyTrees.
+ */
+@Component
+public class StoryTreeCache {
+
+    private static final String CACHE_NAME = "storyTrees";
+    // Most invalidations remembered before they are all forgotten at once
+    private static final int MAX_TRACKED_INVALIDATIONS = 10_000;
+
+    private final long maxNodes;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedNodes = 0;
+
+    // Number of invalidations so far, and the last one of each story
+    private long invalidations = 0;
+    private final Map<Long, Long> invalidatedAt = new HashMap<>();
+    // Trees loaded from before this stamp are not cached, because the
+    // invalidations they could have missed were forgotten
+    private long forgottenBefore = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public StoryTreeCache(MeterRegistry meterRegistry,
+            @Value("${narrative.tree-cache.max-nodes:100000}") long maxNodes) {
+        this.maxNodes = maxNodes;
+
+        FunctionCounter.builder("cache.gets", hits, AtomicLong::get)
+                .tag("cache", CACHE_NAME).tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.gets", misses, AtomicLong::get)
+                .tag("cache", CACHE_NAME).tag("result", "miss")
+                .register(meterRegistry);
+        FunctionCounter.builder("cache.evictions", evictions, AtomicLong::get)
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+        Gauge.builder("cache.size", this, StoryTreeCache::size)
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Get the cached root nodes of a story.
+     *
+     * @param storyId id of the story.
+     * @return the root NodeDTOs, or null if the story is not cached.
+     */
+    public synchronized List<NodeDTO> get(Long storyId) {
+        Entry entry = entries.get(storyId);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.rootNodes;
+    }
+
+    /**
+     * Mark the start of loading trees from the database.
+     *
+     * @return the stamp to pass to put.
+     */
+    public synchronized long loadStamp() {
+        return invalidations;
+    }
+
+    /**
+     * Cache the root nodes of a story, evicting the least recently used
+     * stories until the cache fits in its node budget. Trees larger than the
+     * whole budget, and trees of stories invalidated since the stamp was
+     * taken, are not cached.
+     *
+     * @param storyId   id of the story.
+     * @param rootNodes root NodeDTOs with their children populated.
+     * @param nodeCount number of nodes in the tree.
+     * @param loadStamp stamp taken before the tree was loaded.
+     */
+    public synchronized void put(Long storyId, List<NodeDTO> rootNodes, int nodeCount, long loadStamp) {
+        if (nodeCount > maxNodes || loadStamp < forgottenBefore
+                || invalidatedAt.getOrDefault(storyId, -1L) >= loadStamp) {
+            return;
+        }
+        Entry previous = entries.put(storyId, new Entry(rootNodes, nodeCount));
+        if (previous != null) {
+            cachedNodes -= previous.nodeCount;
+        }
+        cachedNodes += nodeCount;
+
+        Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedNodes > maxNodes && eldest.hasNext()) {
+            Map.Entry<Long, Entry> entry = eldest.next();
+            if (entry.getKey().equals(storyId)) {
+                continue;
+            }
+            cachedNodes -= entry.getValue().nodeCount;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the cached tree of a story. Inside a transaction the tree is also
+     * dropped after commit, so a read that raced with the change cannot leave
+     * the old tree behind.
+     *
+     * @param storyId id of the story that changed.
+     */
+    public void invalidate(Long storyId) {
+        remove(storyId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(storyId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Number of stories currently cached.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized void remove(Long storyId) {
+        if (invalidatedAt.size() >= MAX_TRACKED_INVALIDATIONS) {
+            invalidatedAt.clear();
+            forgottenBefore = invalidations;
+        }
+        invalidatedAt.put(storyId, invalidations++);
+        Entry entry = entries.remove(storyId);
+        if (entry != null) {
+            cachedNodes -= entry.nodeCount;
+        }
+    }
+
+    private static final class Entry {
+        private final List<NodeDTO> rootNodes;
+        private final int nodeCount;
+
+        private Entry(List<NodeDTO> rootNodes, int nodeCount) {
+            this.rootNodes = rootNodes;
+            this.nodeCount = nodeCount;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package project.narrative.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import project.narrative.model.LlmResponse;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local provider for load tests, enabled with narrative.llm.provider=stub.
+ * The text depends only on the prompt, so repeated runs produce the same
+ * story, and each call waits for a simulated model latency:
+ * <ul>
+ * <li>fixed: always narrative.llm.stub.fixed-ms.</li>
+ * <li>lognormal: median narrative.llm.stub.median-ms with shape
+ * narrative.llm.stub.sigma, giving the long tail of real model calls.</li>
+ * <li>replay: cycles through the latencies in milliseconds listed one per
+ * line in narrative.llm.stub.replay-file, such as recorded production
+ * samples.</li>
+ * </ul>
+ * Token usage is estimated like PromptBuilder does.
+ */
+@Component
+@ConditionalOnProperty(name = "narrative.llm.provider", havingValue = "stub")
+public class StubLlmProvider implements LlmProvider {
+
+    private static final String[] WORDS = { "the", "old", "lantern", "flickered", "as", "she", "crossed",
+            "river", "and", "a", "stranger", "whispered", "about", "forgotten", "kingdom", "beneath", "silver",
+            "moon", "while", "wolves", "gathered", "near", "ancient", "gate", "of", "city", "storm", "rose",
+            "over", "hills", "secret", "letter", "burned", "quietly", "in", "hearth" };
+
+    // Number of pieces a streamed response is split into
+    private static final int STREAM_CHUNKS = 8;
+
+    private final String latency;
+    private final long fixedMs;
+    private final double medianMs;
+    private final double sigma;
+    private final int words;
+    private final List<Long> replayMs;
+    private final AtomicInteger replayPosition = new AtomicInteger();
+
+    public StubLlmProvider(@Value("${narrative.llm.stub.latency:fixed}") String latency,
+            @Value("${narrative.llm.stub.fixed-ms:500}") long fixedMs,
+            @Value("${narrative.llm.stub.median-ms:800}") double medianMs,
+            @Value("${narrative.llm.stub.sigma:0.5}") double sigma,
+            @Value("${narrative.llm.stub.replay-file:}") String replayFile,
+            @Value("${narrative.llm.stub.words:120}") int words) {
+        this.latency = latency;
+        this.fixedMs = fixedMs;
+        this.medianMs = medianMs;
+        this.sigma = sigma;
+        this.words = words;
+        if (!List.of("fixed", "lognormal", "replay").contains(latency)) {
+            throw new IllegalArgumentException("Unknown stub latency model " + latency);
+        }
+        this.replayMs = latency.equals("replay") ? readSamples(replayFile) : List.of();
+    }
+
+    @Override
+    public String model() {
+        return "stub";
+    }
+
+    /**
+     * Alternatives after the first are the texts for the prompt followed by
+     * their number.
+     */
+    @Override
+    public LlmResponse generate(String key, String prompt, int candidateCount) {
+        sleep(nextLatencyMs());
+        List<String> candidates = new ArrayList<>(candidateCount);
+        candidates.add(textFor(prompt));
+        for (int i = 1; i < candidateCount; i++) {
+            candidates.add(textFor(prompt + "\n" + i));
+        }
+        int promptTokens = PromptBuilder.estimateTokens(prompt);
+        int candidatesTokens = 0;
+        for (String candidate : candidates) {
+            candidatesTokens += PromptBuilder.estimateTokens(candidate);
+        }
+        return new LlmResponse(candidates.get(0), promptTokens, candidatesTokens, promptTokens + candidatesTokens,
+                candidates);
+    }
+
+    /**
+     * The last piece carries the usage of the whole response, as Gemini does.
+     */
+    @Override
+    public Flux<LlmResponse> stream(String key, String prompt) {
+        String text = textFor(prompt);
+        List<LlmResponse> chunks = new ArrayList<>(STREAM_CHUNKS);
+        int chunkLength = Math.max(1, (text.length() + STREAM_CHUNKS - 1) / STREAM_CHUNKS);
+        for (int start = 0; start < text.length(); start += chunkLength) {
+            String chunk = text.substring(start, Math.min(text.length(), start + chunkLength));
+            chunks.add(start + chunkLength < text.length() ? LlmResponse.of(chunk) : withUsage(prompt, chunk, text));
+        }
+        return Flux.fromIterable(chunks)
+                .delayElements(Duration.ofMillis(Math.max(1, nextLatencyMs() / chunks.size())));
+    }
+
+    /**
+     * Text generated for a prompt, the same every time for the same prompt.
+     */
+    public String textFor(String prompt) {
+        Random random = new Random(prompt.hashCode());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                text.append(' ').append(word);
+            }
+        }
+        return text.append('.').toString();
+    }
+
+    private static LlmResponse withUsage(String prompt, String chunk, String text) {
+        int promptTokens = PromptBuilder.estimateTokens(prompt);
+        int candidatesTokens = PromptBuilder.estimateTokens(text);
+        return new LlmResponse(chunk, promptTokens, candidatesTokens, promptTokens + candidatesTokens);
+    }
+
+    /**
+     * Simulated latency of the next call.
+     */
+    public long nextLatencyMs() {
+        switch (latency) {
+            case "lognormal":
+                return Math.round(medianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+            case "replay":
+                return replayMs.get(Math.floorMod(replayPosition.getAndIncrement(), replayMs.size()));
+            default:
+                return fixedMs;
+        }
+    }
+
+    private static List<Long> readSamples(String replayFile) {
+        if (replayFile == null || replayFile.isBlank()) {
+            throw new IllegalArgumentException("narrative.llm.stub.replay-file is required for replay latency");
+        }
+        try {
+            List<Long> samples = new ArrayList<>();
+            for (String line : Files.readAllLines(Path.of(replayFile))) {
+                if (!line.isBlank()) {
+                    samples.add(Long.parseLong(line.trim()));
+                }
+            }
+            if (samples.isEmpty()) {
+                throw new IllegalArgumentException("No latency samples in " + replayFile);
+            }
+            return samples;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read latency samples from " + replayFile, e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating model latency", e);
+        }
+    }
+}
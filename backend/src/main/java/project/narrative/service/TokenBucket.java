@@ -0,0 +1,69 @@
+package project.narrative.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as the generic cell rate algorithm: the
+ * only state is the time at which the bucket will next be full, updated with
+ * compare-and-set. Callers may reserve a token that only becomes available
+ * later, which lets them queue by waiting out the returned delay.
+ */
+public final class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    // When the bucket has earned back every token reserved so far
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perMinute tokens earned per minute.
+     * @param capacity  tokens that can be taken at once by a burst.
+     * @param nowNanos  current System.nanoTime(); the bucket starts full.
+     */
+    public TokenBucket(double perMinute, int capacity, long nowNanos) {
+        this.intervalNanos = Math.max(1, (long) (60_000_000_000L / perMinute));
+        this.burstNanos = (Math.max(1, capacity) - 1) * intervalNanos;
+        this.fullAt = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Reserve one token if it becomes available within maxWaitNanos.
+     *
+     * @param nowNanos     current System.nanoTime().
+     * @param maxWaitNanos longest the caller is willing to wait for the token.
+     * @return the reservation; when granted, the caller must wait waitNanos
+     *         before using the token, otherwise waitNanos is how long until a
+     *         token can be taken without waiting.
+     */
+    public Reservation reserve(long nowNanos, long maxWaitNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long start = Math.max(current, nowNanos);
+            long waitNanos = Math.max(0, start - nowNanos - burstNanos);
+            if (waitNanos > maxWaitNanos) {
+                return new Reservation(false, waitNanos);
+            }
+            if (fullAt.compareAndSet(current, start + intervalNanos)) {
+                return new Reservation(true, waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by a reservation that ended up unused.
+     */
+    public void cancel() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Whether no tokens are missing, so the bucket is indistinguishable from a
+     * new one.
+     */
+    public boolean isFull(long nowNanos) {
+        return fullAt.get() - nowNanos <= 0;
+    }
+
+    public record Reservation(boolean granted, long waitNanos) {
+    }
+}
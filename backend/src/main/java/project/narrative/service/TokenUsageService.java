@@ -0,0 +1,177 @@
+package project.narrative.service;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import project.narrative.dto.TokenUsageDTO;
+import project.narrative.dto.UserUsageDTO;
+import project.narrative.error.UserInfoException;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.entities.User;
+import project.narrative.repository.TokenUsageRepo;
+import project.narrative.repository.UserRepo;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accounts for the tokens used by model calls. Every call is published as
+ * narrative.llm.tokens with type=prompt|candidates|total and the model, and
+ * calls made for a story are added up per story in memory. The sums are
+ * written to token_usage with one JDBC batch, in one transaction, every
+ * narrative.usage.flush-interval-ms, so stored totals lag behind by up to
+ * that interval; usage per user is the sum over the user's stories.
+ */
+@Service
+public class TokenUsageService {
+
+    // Add to the usage of a story, creating its row on first use; nothing is stored for a deleted story
+    private static final String UPSERT = """
+            INSERT INTO token_usage (storyid, user_id, prompt_tokens, candidates_tokens, total_tokens, calls)
+            SELECT s.storyid, s.user_id, ?, ?, ?, ? FROM story s WHERE s.storyid = ?
+            ON CONFLICT (storyid) DO UPDATE SET
+                prompt_tokens = token_usage.prompt_tokens + EXCLUDED.prompt_tokens,
+                candidates_tokens = token_usage.candidates_tokens + EXCLUDED.candidates_tokens,
+                total_tokens = token_usage.total_tokens + EXCLUDED.total_tokens,
+                calls = token_usage.calls + EXCLUDED.calls
+            """;
+
+    private final TokenUsageRepo tokenUsageRepo;
+    private final UserRepo userRepo;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+
+    // Usage not yet written, by story id
+    private final Map<Long, Usage> pending = new ConcurrentHashMap<>();
+
+    public TokenUsageService(TokenUsageRepo tokenUsageRepo, UserRepo userRepo, JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.tokenUsageRepo = tokenUsageRepo;
+        this.userRepo = userRepo;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Count the tokens of a model call.
+     *
+     * @param model    model that answered.
+     * @param storyId  story the call was made for, or null if it is not
+     *                 charged to a story.
+     * @param response response of the call; calls without reported usage are
+     *                 ignored.
+     */
+    public void record(String model, Long storyId, LlmResponse response) {
+        if (!response.hasUsage()) {
+            return;
+        }
+        summary("prompt", model).record(response.promptTokens());
+        summary("candidates", model).record(response.candidatesTokens());
+        summary("total", model).record(response.totalTokens());
+        if (storyId == null) {
+            return;
+        }
+        // Adding inside compute keeps the update atomic with a concurrent flush
+        // taking the entry away
+        pending.compute(storyId, (id, usage) -> {
+            Usage sum = usage == null ? new Usage() : usage;
+            sum.add(response.promptTokens(), response.candidatesTokens(), response.totalTokens(), 1);
+            return sum;
+        });
+    }
+
+    /**
+     * Write the usage counted since the last flush. If writing fails the usage
+     * is kept for the next flush.
+     */
+    @Scheduled(fixedDelayString = "${narrative.usage.flush-interval-ms:10000}")
+    public void flush() {
+        // Rows are written in storyid order, so concurrent flushes lock them in the same order
+        Map<Long, Usage> batch = new TreeMap<>();
+        for (Long storyId : new ArrayList<>(pending.keySet())) {
+            Usage usage = pending.remove(storyId);
+            if (usage != null) {
+                batch.put(storyId, usage);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(tx -> jdbcTemplate.batchUpdate(UPSERT,
+                    new ArrayList<>(batch.entrySet()), batch.size(), TokenUsageService::bind));
+        } catch (RuntimeException e) {
+            batch.forEach((storyId, usage) -> pending.merge(storyId, usage, (current, failed) -> {
+                current.add(failed.promptTokens, failed.candidatesTokens, failed.totalTokens, failed.calls);
+                return current;
+            }));
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Stored token usage of a user.
+     *
+     * @param username user whose usage is wanted.
+     * @return totals over all stories of the user, and the usage of each story.
+     * @throws UserInfoException if there is no such user.
+     */
+    public UserUsageDTO getUserUsage(String username) {
+        User user = userRepo.findByUsername(username).orElseThrow(() -> new UserInfoException());
+        List<TokenUsageDTO> stories = tokenUsageRepo.findByUserId(user.getId()).stream()
+                .map(TokenUsageDTO::new)
+                .toList();
+        return new UserUsageDTO(user, stories);
+    }
+
+    private static void bind(PreparedStatement statement, Map.Entry<Long, Usage> entry) throws SQLException {
+        Usage usage = entry.getValue();
+        statement.setLong(1, usage.promptTokens);
+        statement.setLong(2, usage.candidatesTokens);
+        statement.setLong(3, usage.totalTokens);
+        statement.setLong(4, usage.calls);
+        statement.setLong(5, entry.getKey());
+    }
+
+    private DistributionSummary summary(String type, String model) {
+        return DistributionSummary.builder("narrative.llm.tokens")
+                .description("Tokens used per model call")
+                .baseUnit("tokens")
+                .tag("type", type)
+                .tag("model", model)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static final class Usage {
+        private long promptTokens;
+        private long candidatesTokens;
+        private long totalTokens;
+        private long calls;
+
+        private void add(long promptTokens, long candidatesTokens, long totalTokens, long calls) {
+            this.promptTokens += promptTokens;
+            this.candidatesTokens += candidatesTokens;
+            this.totalTokens += totalTokens;
+            this.calls += calls;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package project.narrative;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import project.narrative.model.APIResponse;
+import project.narrative.model.LlmResponse;
+import project.narrative.service.GeminiProvider;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class GeminiProviderTest {
+
+    @Mock
+    private RestTemplate restTemplate;
+
+    @InjectMocks
+    private GeminiProvider geminiProvider;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void testGenerate_Success() {
+        String expectedResponseText = "Generated content";
+
+        // Mock the APIResponse structure
+        APIResponse.Candidate.Content.Part part = new APIResponse.Candidate.Content.Part();
+        part.setText(expectedResponseText);
+        APIResponse.Candidate.Content content = new APIResponse.Candidate.Content();
+        content.setParts(Collections.singletonList(part));
+        APIResponse.Candidate candidate = new APIResponse.Candidate();
+        candidate.setContent(content);
+        APIResponse apiResponse = new APIResponse();
+        apiResponse.setCandidates(Collections.singletonList(candidate));
+        APIResponse.UsageMetadata usage = new APIResponse.UsageMetadata();
+        usage.setPromptTokenCount(12);
+        usage.setCandidatesTokenCount(30);
+        usage.setTotalTokenCount(42);
+        apiResponse.setUsageMetadata(usage);
+
+        // Mock the RestTemplate response
+        ResponseEntity<APIResponse> mockResponseEntity = new ResponseEntity<>(apiResponse, HttpStatus.OK);
+        when(restTemplate.exchange(
+                any(String.class),
+                eq(HttpMethod.POST),
+                any(HttpEntity.class),
+                eq(APIResponse.class)))
+                .thenReturn(mockResponseEntity);
+
+        LlmResponse result = geminiProvider.generate("testKey", "Test prompt");
+
+        assertEquals(new LlmResponse(expectedResponseText, 12, 30, 42), result);
+        assertEquals("gemini-pro", geminiProvider.model());
+        verify(restTemplate, times(1)).exchange(
+                eq("https://generativelanguage.googleapis.com/v1/models/gemini-pro:generateContent?key=testKey"),
+                eq(HttpMethod.POST), any(HttpEntity.class), eq(APIResponse.class));
+    }
+
+    @Test
+    void testGenerate_RequestsCandidates() {
+        APIResponse apiResponse = new APIResponse();
+        List<APIResponse.Candidate> candidates = new ArrayList<>();
+        for (String text : List.of("First", "Second")) {
+            APIResponse.Candidate.Content.Part part = new APIResponse.Candidate.Content.Part();
+            part.setText(text);
+            APIResponse.Candidate.Content content = new APIResponse.Candidate.Content();
+            content.setParts(Collections.singletonList(part));
+            APIResponse.Candidate candidate = new APIResponse.Candidate();
+            candidate.setContent(content);
+            candidates.add(candidate);
+        }
+        apiResponse.setCandidates(candidates);
+        when(restTemplate.exchange(any(String.class), eq(HttpMethod.POST), any(HttpEntity.class),
+                eq(APIResponse.class)))
+                .thenReturn(new ResponseEntity<>(apiResponse, HttpStatus.OK));
+
+        LlmResponse result = geminiProvider.generate("testKey", "Test prompt", 2);
+
+        assertEquals("First", result.text());
+        assertEquals(List.of("First", "Second"), result.candidates());
+        verify(restTemplate).exchange(any(String.class), eq(HttpMethod.POST),
+                argThat((HttpEntity<?> request) -> request.getBody().toString().contains("candidateCount=2")),
+                eq(APIResponse.class));
+    }
+
+    @Test
+    void testStream_RelaysChunks() {
+        String sse = """
+                data: {"candidates": [{"content": {"parts": [{"text": "Once upon"}]}}]}
+
+                data: {"candidates": [{"content": {"parts": [{"text": " a time"}]}}]}
+
+                data: {"candidates": [{"finishReason": "STOP"}], "usageMetadata": {"promptTokenCount": 5, "candidatesTokenCount": 4, "totalTokenCount": 9}}
+
+                """;
+        List<String> requestedUrls = new ArrayList<>();
+        WebClient webClient = WebClient.builder()
+                .exchangeFunction(request -> {
+                    requestedUrls.add(request.url().toString());
+                    return Mono.just(ClientResponse.create(HttpStatus.OK)
+                            .header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_EVENT_STREAM_VALUE)
+                            .body(sse)
+                            .build());
+                })
+                .build();
+        GeminiProvider streamingProvider = new GeminiProvider(restTemplate, webClient);
+
+        List<LlmResponse> chunks = streamingProvider.stream("testKey", "Test prompt").collectList().block();
+
+        // The final chunk has no text, only the usage of the whole response
+        assertEquals(List.of(LlmResponse.of("Once upon"), LlmResponse.of(" a time"), new LlmResponse("", 5, 4, 9)),
+                chunks);
+        assertTrue(requestedUrls.get(0).contains(":streamGenerateContent?alt=sse&key=testKey"));
+    }
+}
@@ -1,7 +1,9 @@
 package project.narrative;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
@@ -12,35 +14,80 @@ import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.RestClientException;
 
 import project.narrative.dto.CharacterDTO;
-import project.narrative.model.APIResponse;
+import project.narrative.model.LlmResponse;
 import project.narrative.model.entities.Story;
+import project.narrative.model.entities.User;
 import project.narrative.repository.StoryRepo;
 import project.narrative.service.GeminiService;
-import java.util.Optional;
+import project.narrative.service.GenerationRateLimiter;
+import project.narrative.service.LlmCallExecutor;
+import project.narrative.service.LlmProvider;
+import project.narrative.service.LlmResponseCache;
+import project.narrative.service.TokenUsageService;
+import reactor.core.publisher.Flux;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class GeminiServiceTest {
 
     @Mock
-    private RestTemplate restTemplate;
+    private LlmProvider llmProvider;
 
     @Mock
     private StoryRepo storyRepo;
 
+    @Mock
+    private LlmResponseCache responseCache;
+
+    @Mock
+    private GenerationRateLimiter rateLimiter;
+
+    @Mock
+    private LlmCallExecutor callExecutor;
+
+    @Mock
+    private TokenUsageService tokenUsageService;
+
     @InjectMocks
     private GeminiService geminiService;
 
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.openMocks(this);
+        when(llmProvider.model()).thenReturn("gemini-pro");
+        // Run calls directly, without hedging or circuit breaking
+        doAnswer(invocation -> invocation.<Supplier<?>>getArgument(0).get())
+                .when(callExecutor).call(any(), any());
+        when(callExecutor.stream(any()))
+                .thenAnswer(invocation -> invocation.<Supplier<Flux<LlmResponse>>>getArgument(0).get());
+    }
+
+    /**
+     * Back the response cache with a map, so lookups see what earlier calls
+     * stored however often they are made.
+     */
+    private void cacheInMap() {
+        Map<String, String> cached = new ConcurrentHashMap<>();
+        when(responseCache.get(eq("gemini-pro"), anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(cached.get(invocation.<String>getArgument(1))));
+        doAnswer(invocation -> cached.put(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(responseCache).put(eq("gemini-pro"), anyString(), anyString(), anyLong());
     }
 
     @Test
@@ -49,32 +96,257 @@ public class GeminiServiceTest {
         String prompt = "Test prompt";
         String expectedResponseText = "Generated content";
 
-        // Mock the APIResponse structure
-        APIResponse.Candidate.Content.Part part = new APIResponse.Candidate.Content.Part();
-        part.setText(expectedResponseText);
-        APIResponse.Candidate.Content content = new APIResponse.Candidate.Content();
-        content.setParts(Collections.singletonList(part));
-        APIResponse.Candidate candidate = new APIResponse.Candidate();
-        candidate.setContent(content);
-        APIResponse apiResponse = new APIResponse();
-        apiResponse.setCandidates(Collections.singletonList(candidate));
-
-        // Mock the RestTemplate response
-        ResponseEntity<APIResponse> mockResponseEntity = new ResponseEntity<>(apiResponse, HttpStatus.OK);
-        when(restTemplate.exchange(
-                any(String.class),
-                eq(HttpMethod.POST),
-                any(HttpEntity.class),
-                eq(APIResponse.class)))
-                .thenReturn(mockResponseEntity);
+        when(llmProvider.generate(key, prompt)).thenReturn(LlmResponse.of(expectedResponseText));
 
         // Call the method
         String result = geminiService.sendAndReceiveRequest(key, prompt);
 
         // Assertions
         assertEquals(expectedResponseText, result);
-        verify(restTemplate, times(1)).exchange(any(String.class), eq(HttpMethod.POST), any(HttpEntity.class),
-                eq(APIResponse.class));
+        verify(llmProvider, times(1)).generate(key, prompt);
+        verify(responseCache, times(1)).put(eq("gemini-pro"), eq(prompt), eq(expectedResponseText), anyLong());
+    }
+
+    @Test
+    void testSendAndReceive_RecordsTokensOfDiscardedHedge() {
+        LlmResponse winner = new LlmResponse("Generated content", 10, 20, 30);
+        LlmResponse loser = new LlmResponse("Late content", 10, 25, 35);
+        when(llmProvider.generate("testKey", "Test prompt")).thenReturn(winner);
+        doAnswer(invocation -> {
+            invocation.<Consumer<LlmResponse>>getArgument(1).accept(loser);
+            return invocation.<Supplier<?>>getArgument(0).get();
+        }).when(callExecutor).call(any(), any());
+
+        geminiService.sendAndReceive("testKey", "Test prompt", false, 1L);
+
+        verify(tokenUsageService, times(1)).record("gemini-pro", 1L, winner);
+        verify(tokenUsageService, times(1)).record("gemini-pro", 1L, loser);
+    }
+
+    @Test
+    void testSendAndReceiveRequest_CachedResponse() {
+        when(responseCache.get("gemini-pro", "Test prompt")).thenReturn(Optional.of("Cached content"));
+
+        String result = geminiService.sendAndReceiveRequest("testKey", "Test prompt");
+
+        assertEquals("Cached content", result);
+        verify(llmProvider, never()).generate(anyString(), anyString());
+    }
+
+    @Test
+    void testSendAndReceiveRequest_ForceFreshSkipsCache() {
+        when(llmProvider.generate("testKey", "Test prompt")).thenReturn(LlmResponse.of("Fresh content"));
+        when(responseCache.get("gemini-pro", "Test prompt")).thenReturn(Optional.of("Cached content"));
+
+        String result = geminiService.sendAndReceiveRequest("testKey", "Test prompt", true, null);
+
+        // The fresh response replaces the cached one
+        assertEquals("Fresh content", result);
+        verify(responseCache, never()).get(anyString(), anyString());
+        verify(responseCache, times(1)).put(eq("gemini-pro"), eq("Test prompt"), eq("Fresh content"), anyLong());
+    }
+
+    @Test
+    void testSendAndReceiveRequest_CoalescesConcurrentCalls() throws Exception {
+        int prompts = 4;
+        int callersPerPrompt = 8;
+        CountDownLatch arrived = new CountDownLatch(prompts * callersPerPrompt);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        when(llmProvider.generate(anyString(), anyString())).thenAnswer(invocation -> {
+            upstreamCalls.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            return LlmResponse.of("Re: " + invocation.getArgument(1));
+        });
+
+        ExecutorService callers = Executors.newFixedThreadPool(prompts * callersPerPrompt);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < prompts * callersPerPrompt; i++) {
+                String prompt = "Prompt " + (i % prompts);
+                results.add(callers.submit(() -> {
+                    arrived.countDown();
+                    return geminiService.sendAndReceiveRequest("testKey", prompt);
+                }));
+            }
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+            // Give every caller time to join the call for its prompt
+            Thread.sleep(200);
+            release.countDown();
+
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("Re: Prompt " + (i % prompts), results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(prompts, upstreamCalls.get());
+        verify(responseCache, times(prompts)).put(eq("gemini-pro"), anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    void testSendAndReceiveRequest_RechecksCacheAfterJoiningFlight() {
+        // The first lookup misses, then another call caches the response and
+        // leaves its flight before this one joins
+        when(responseCache.get("gemini-pro", "Test prompt"))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of("Cached content"));
+
+        String result = geminiService.sendAndReceiveRequest("testKey", "Test prompt");
+
+        assertEquals("Cached content", result);
+        verify(llmProvider, never()).generate(anyString(), anyString());
+        verify(responseCache, never()).put(anyString(), anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    void testSendAndReceiveRequest_CallsOncePerPromptUnderLoad() throws Exception {
+        int prompts = 4;
+        int callerCount = 16;
+        int callsPerCaller = 200;
+        // Back the cache with a map, so callers race with flights that are finishing
+        Map<String, String> cached = new ConcurrentHashMap<>();
+        when(responseCache.get(eq("gemini-pro"), anyString()))
+                .thenAnswer(invocation -> Optional.ofNullable(cached.get(invocation.<String>getArgument(1))));
+        doAnswer(invocation -> cached.put(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(responseCache).put(eq("gemini-pro"), anyString(), anyString(), anyLong());
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        when(llmProvider.generate(anyString(), anyString())).thenAnswer(invocation -> {
+            upstreamCalls.incrementAndGet();
+            Thread.sleep(1);
+            return LlmResponse.of("Re: " + invocation.getArgument(1));
+        });
+
+        ExecutorService callers = Executors.newFixedThreadPool(callerCount);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < callerCount; i++) {
+                int caller = i;
+                results.add(callers.submit(() -> {
+                    start.await();
+                    for (int call = 0; call < callsPerCaller; call++) {
+                        String prompt = "Prompt " + ((caller + call) % prompts);
+                        assertEquals("Re: " + prompt, geminiService.sendAndReceiveRequest("testKey", prompt));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        // Once a prompt's response is cached, no caller goes upstream for it again
+        assertEquals(prompts, upstreamCalls.get());
+    }
+
+    @Test
+    void testSendAndReceiveRequest_SharesFailureWithWaitingCalls() throws Exception {
+        int callerCount = 8;
+        CountDownLatch arrived = new CountDownLatch(callerCount);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        when(llmProvider.generate(anyString(), anyString())).thenAnswer(invocation -> {
+            upstreamCalls.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            throw new RestClientException("Gemini unavailable");
+        });
+
+        ExecutorService callers = Executors.newFixedThreadPool(callerCount);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < callerCount; i++) {
+                results.add(callers.submit(() -> {
+                    arrived.countDown();
+                    return geminiService.sendAndReceiveRequest("testKey", "Test prompt");
+                }));
+            }
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> result.get(10, TimeUnit.SECONDS));
+                assertInstanceOf(RestClientException.class, e.getCause());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(1, upstreamCalls.get());
+        verify(responseCache, never()).put(anyString(), anyString(), anyString(), anyLong());
+
+        // The failed call is not remembered, so the next call goes upstream again
+        assertThrows(RestClientException.class, () -> {
+            geminiService.sendAndReceiveRequest("testKey", "Test prompt");
+        });
+        assertEquals(2, upstreamCalls.get());
+    }
+
+    @Test
+    void testStreamRequest_UsesProvider() {
+        when(llmProvider.stream("testKey", "Test prompt"))
+                .thenReturn(Flux.just(LlmResponse.of("Once upon"), LlmResponse.of(" a time")));
+
+        List<String> chunks = geminiService.streamRequest("testKey", "Test prompt").collectList().block();
+
+        assertEquals(List.of("Once upon", " a time"), chunks);
+    }
+
+    @Test
+    void testSendAndReceiveRequest_RecordsUsageForStory() {
+        LlmResponse response = new LlmResponse("Generated content", 10, 20, 30);
+        when(llmProvider.generate("testKey", "Test prompt")).thenReturn(response);
+        cacheInMap();
+
+        geminiService.sendAndReceiveRequest("testKey", "Test prompt", false, 7L);
+        geminiService.sendAndReceiveRequest("testKey", "Test prompt", false, 7L);
+
+        // The cached answer used no tokens
+        verify(tokenUsageService, times(1)).record("gemini-pro", 7L, response);
+    }
+
+    @Test
+    void testSendAndReceive_ReportsUsageOfUpstreamCallsOnly() {
+        LlmResponse response = new LlmResponse("Generated content", 10, 20, 30);
+        when(llmProvider.generate("testKey", "Test prompt")).thenReturn(response);
+        cacheInMap();
+
+        assertEquals(response, geminiService.sendAndReceive("testKey", "Test prompt", false, 7L));
+        // The cached answer cost nothing
+        LlmResponse cached = geminiService.sendAndReceive("testKey", "Test prompt", false, 7L);
+        assertEquals("Generated content", cached.text());
+        assertEquals(false, cached.hasUsage());
+    }
+
+    @Test
+    void testSendAndReceiveCandidates_OneUncachedCall() {
+        LlmResponse response = new LlmResponse("First", 10, 40, 50, List.of("First", "Second"));
+        when(llmProvider.generate("testKey", "Test prompt", 2)).thenReturn(response);
+
+        LlmResponse result = geminiService.sendAndReceiveCandidates("testKey", "Test prompt", 2, 7L);
+
+        assertEquals(List.of("First", "Second"), result.candidates());
+        verify(llmProvider, times(1)).generate("testKey", "Test prompt", 2);
+        verify(tokenUsageService).record("gemini-pro", 7L, response);
+        verifyNoInteractions(responseCache);
+    }
+
+    @Test
+    void testStreamRequest_RecordsLatestUsage() {
+        LlmResponse last = new LlmResponse("", 5, 4, 9);
+        when(llmProvider.stream("testKey", "Test prompt")).thenReturn(Flux.just(
+                new LlmResponse("Once upon", 5, 2, 7), new LlmResponse(" a time", 5, 4, 9), last));
+
+        List<String> chunks = geminiService.streamRequest("testKey", "Test prompt", 7L).collectList().block();
+
+        // The usage-only chunk is not passed on, and usage is counted once
+        assertEquals(List.of("Once upon", " a time"), chunks);
+        verify(tokenUsageService, times(1)).record(eq("gemini-pro"), eq(7L), any(LlmResponse.class));
+        verify(tokenUsageService).record("gemini-pro", 7L, last);
     }
 
     @Test
@@ -91,28 +363,16 @@ public class GeminiServiceTest {
         Story mockStory = new Story();
         mockStory.setStoryid(storyId);
         mockStory.setGenre(genre);
+        User user = new User();
+        user.setUsername("testUser");
+        user.setRole("premium");
+        mockStory.setUser(user);
 
         // Mock the storyRepo to return a valid Story
         when(storyRepo.findById(storyId)).thenReturn(Optional.of(mockStory));
 
-        // Mock the APIResponse structure
-        APIResponse.Candidate.Content.Part part = new APIResponse.Candidate.Content.Part();
-        part.setText(generatedBackground);
-        APIResponse.Candidate.Content content = new APIResponse.Candidate.Content();
-        content.setParts(Collections.singletonList(part));
-        APIResponse.Candidate candidate = new APIResponse.Candidate();
-        candidate.setContent(content);
-        APIResponse apiResponse = new APIResponse();
-        apiResponse.setCandidates(Collections.singletonList(candidate));
-
-        // Mock the RestTemplate response
-        ResponseEntity<APIResponse> mockResponseEntity = new ResponseEntity<>(apiResponse, HttpStatus.OK);
-        when(restTemplate.exchange(
-                any(String.class),
-                eq(HttpMethod.POST),
-                any(HttpEntity.class),
-                eq(APIResponse.class)))
-                .thenReturn(mockResponseEntity);
+        // Mock the model response
+        when(llmProvider.generate(eq(key), anyString())).thenReturn(LlmResponse.of(generatedBackground));
 
         // Call the method
         CharacterDTO result = geminiService.characterGenerated(key, firstName, lastName, context, storyId);
@@ -125,8 +385,9 @@ public class GeminiServiceTest {
 
         // Verify that the dependencies were called
         verify(storyRepo, times(1)).findById(storyId);
-        verify(restTemplate, times(1)).exchange(any(String.class), eq(HttpMethod.POST), any(HttpEntity.class),
-                eq(APIResponse.class));
+        verify(rateLimiter, times(1)).acquire("testUser", "premium");
+        verify(llmProvider, times(1)).generate(eq(key), anyString());
+        verify(tokenUsageService, times(1)).record(eq("gemini-pro"), eq(storyId), any(LlmResponse.class));
     }
 
     @Test
@@ -150,5 +411,4 @@ public class GeminiServiceTest {
         verify(storyRepo, times(1)).findById(storyId);
         // No need to verify geminiService directly since it’s the service under test
     }
-
 }
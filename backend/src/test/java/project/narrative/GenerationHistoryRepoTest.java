@@ -0,0 +1,65 @@
+package project.narrative;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import project.narrative.model.entities.GenerationHistory;
+import project.narrative.repository.GenerationHistoryRepo;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Quote names so tables like "character" are valid in H2, but not column
+// definitions such as TEXT, which H2 would read as unknown types
+@DataJpaTest(properties = {
+        "spring.jpa.properties.hibernate.globally_quoted_identifiers=true",
+        "spring.jpa.properties.hibernate.globally_quoted_identifiers_skip_column_definitions=true"
+})
+public class GenerationHistoryRepoTest {
+
+    @Autowired
+    private GenerationHistoryRepo generationHistoryRepo;
+
+    @Test
+    void testFindForNode_RootNode() {
+        Instant now = Instant.now();
+        GenerationHistory stored = save(1L, 10L, null, "Stored on the root", now.minusSeconds(3));
+        GenerationHistory returned = save(1L, null, null, "Returned for the start", now.minusSeconds(2));
+        // Returned for another parent, stored on another node, and in another story
+        save(1L, null, 5L, "Returned for a child", now.minusSeconds(1));
+        save(1L, 11L, null, "Stored on another root", now);
+        save(2L, null, null, "Other story", now);
+
+        List<GenerationHistory> history = generationHistoryRepo.findForNode(1L, 10L, null, PageRequest.of(0, 10));
+
+        assertEquals(List.of(returned.getId(), stored.getId()),
+                history.stream().map(GenerationHistory::getId).toList());
+    }
+
+    @Test
+    void testFindForNode_ChildNode() {
+        Instant now = Instant.now();
+        GenerationHistory stored = save(1L, 12L, 5L, "Stored on the child", now.minusSeconds(2));
+        GenerationHistory returned = save(1L, null, 5L, "Returned for the parent", now.minusSeconds(1));
+        save(1L, null, null, "Returned for the start", now);
+
+        List<GenerationHistory> history = generationHistoryRepo.findForNode(1L, 12L, 5L, PageRequest.of(0, 10));
+
+        assertEquals(List.of(returned.getId(), stored.getId()),
+                history.stream().map(GenerationHistory::getId).toList());
+    }
+
+    private GenerationHistory save(Long storyId, Long nodeId, Long parentId, String result, Instant createdAt) {
+        GenerationHistory history = new GenerationHistory();
+        history.setStoryid(storyId);
+        history.setNodeId(nodeId);
+        history.setParentId(parentId);
+        history.setPromptHash("hash");
+        history.setResult(result);
+        history.setCreatedAt(createdAt);
+        return generationHistoryRepo.save(history);
+    }
+}
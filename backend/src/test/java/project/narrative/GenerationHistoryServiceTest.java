@@ -0,0 +1,145 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.entities.GenerationHistory;
+import project.narrative.repository.GenerationHistoryRepo;
+import project.narrative.service.GenerationHistoryService;
+
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class GenerationHistoryServiceTest {
+
+    @Mock
+    private GenerationHistoryRepo generationHistoryRepo;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    private MeterRegistry meterRegistry;
+    private GenerationHistoryService generationHistoryService;
+
+    // Rows passed to each batchUpdate call
+    private final List<List<GenerationHistory>> batches = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        generationHistoryService = new GenerationHistoryService(generationHistoryRepo, jdbcTemplate, meterRegistry,
+                3, 2);
+        when(jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any())).thenAnswer(invocation -> {
+            batches.add(new ArrayList<>(invocation.<Collection<GenerationHistory>>getArgument(1)));
+            return new int[0][];
+        });
+    }
+
+    @Test
+    void testRecord_WritesNothingUntilFlushed() {
+        generationHistoryService.record(1L, 3L, 2L, "prompt", new LlmResponse("result", 10, 20, 30), null, 120);
+
+        verifyNoInteractions(jdbcTemplate);
+        assertEquals(1.0, meterRegistry.get("narrative.history.pending").gauge().value());
+    }
+
+    @Test
+    void testFlush_WritesInBatches() {
+        generationHistoryService.record(1L, 3L, 2L, "prompt", new LlmResponse("first", 10, 20, 30), null, 120);
+        generationHistoryService.record(1L, null, 2L, "prompt", LlmResponse.of("second"), "summary", 80);
+        generationHistoryService.record(1L, null, 2L, "other", LlmResponse.of("third"), "summary", 90);
+
+        generationHistoryService.flush();
+
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(1, batches.get(1).size());
+        GenerationHistory first = batches.get(0).get(0);
+        assertEquals("first", first.getResult());
+        assertEquals(3L, first.getNodeId());
+        assertEquals(30, first.getTotalTokens());
+        assertEquals(120, first.getLatencyMs());
+        assertEquals(GenerationHistoryService.hash("prompt"), first.getPromptHash());
+        assertNotNull(first.getCreatedAt());
+        assertEquals("summary", batches.get(0).get(1).getSummary());
+        assertEquals(0.0, meterRegistry.get("narrative.history.pending").gauge().value());
+
+        // Written rows are not written again
+        generationHistoryService.flush();
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testFlush_BindsNullableColumns() throws Exception {
+        generationHistoryService.record(1L, null, null, "prompt", LlmResponse.of("result"), null, 5);
+        generationHistoryService.flush();
+
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<GenerationHistory>> setter = ArgumentCaptor
+                .forClass(ParameterizedPreparedStatementSetter.class);
+        verify(jdbcTemplate).batchUpdate(contains("INSERT INTO generation_history"), anyCollection(), eq(2),
+                setter.capture());
+        PreparedStatement statement = mock(PreparedStatement.class);
+        setter.getValue().setValues(statement, batches.get(0).get(0));
+
+        verify(statement).setLong(1, 1L);
+        verify(statement).setObject(2, null, Types.BIGINT);
+        verify(statement).setObject(3, null, Types.BIGINT);
+        verify(statement).setString(5, "result");
+        verify(statement).setLong(10, 5L);
+    }
+
+    @Test
+    void testRecord_DropsWhenBufferIsFull() {
+        for (int i = 0; i < 5; i++) {
+            generationHistoryService.record(1L, null, null, "prompt", LlmResponse.of("result " + i), null, 1);
+        }
+
+        generationHistoryService.flush();
+
+        assertEquals(3, batches.stream().mapToInt(List::size).sum());
+        assertEquals(2.0, meterRegistry.get("narrative.history.dropped").counter().count());
+    }
+
+    @Test
+    void testFlush_KeepsRowsWhenWriteFails() {
+        generationHistoryService.record(1L, null, null, "prompt", LlmResponse.of("result"), null, 1);
+        doThrow(new RuntimeException("Database unavailable"))
+                .doAnswer(invocation -> {
+                    batches.add(new ArrayList<>(invocation.<Collection<GenerationHistory>>getArgument(1)));
+                    return new int[0][];
+                })
+                .when(jdbcTemplate).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+
+        assertThrows(RuntimeException.class, () -> generationHistoryService.flush());
+        assertEquals(1.0, meterRegistry.get("narrative.history.pending").gauge().value());
+        generationHistoryService.flush();
+
+        // The row is written once, and nothing is left behind
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals("result", batches.get(0).get(0).getResult());
+        assertEquals(0.0, meterRegistry.get("narrative.history.pending").gauge().value());
+    }
+
+    @Test
+    void testHash_Sha256Hex() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                GenerationHistoryService.hash(""));
+        assertEquals(64, GenerationHistoryService.hash("prompt").length());
+    }
+}
@@ -0,0 +1,147 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import project.narrative.controller.NodeController.Prompt;
+import project.narrative.dto.GeneratedResultDTO;
+import project.narrative.dto.GenerationJobDTO;
+import project.narrative.error.GenerationQueueFullException;
+import project.narrative.error.UnfoundJobException;
+import project.narrative.error.UnfoundStoryException;
+import project.narrative.service.GenerationJobService;
+import project.narrative.service.NodeService;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class GenerationJobServiceTest {
+
+    @Mock
+    private NodeService nodeService;
+
+    private MeterRegistry meterRegistry;
+    private GenerationJobService generationJobService;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        generationJobService = new GenerationJobService(nodeService, meterRegistry, 1, 1, 10);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        generationJobService.shutdown();
+    }
+
+    @Test
+    void testSubmit_RunsJobInBackground() throws Exception {
+        GeneratedResultDTO result = new GeneratedResultDTO("result", "summary");
+        Prompt prompt = prompt();
+        prompt.parentId = 2L;
+        when(nodeService.generateResult("key", 1L, prompt)).thenReturn(result);
+
+        GenerationJobDTO submitted = generationJobService.submit("key", 1L, prompt);
+        assertNotNull(submitted.getJobId());
+
+        GenerationJobDTO finished = generationJobService
+                .awaitJob(1L, submitted.getJobId(), Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+
+        assertEquals("SUCCEEDED", finished.getStatus());
+        assertEquals("result", finished.getResult().getResult());
+        assertNotNull(finished.getFinishedAt());
+        assertEquals(1, meterRegistry.get("narrative.generation.job.latency").tag("status", "SUCCEEDED")
+                .timer().count());
+    }
+
+    @Test
+    void testSubmit_RecordsFailure() throws Exception {
+        when(nodeService.generateResult(anyString(), anyLong(), any(Prompt.class)))
+                .thenThrow(new UnfoundStoryException());
+
+        GenerationJobDTO submitted = generationJobService.submit("key", 1L, prompt());
+        GenerationJobDTO finished = generationJobService
+                .awaitJob(1L, submitted.getJobId(), Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+
+        assertEquals("FAILED", finished.getStatus());
+        assertEquals("Unfound Story for this user", finished.getError());
+    }
+
+    @Test
+    void testSubmit_RejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(nodeService.generateResult(anyString(), anyLong(), any(Prompt.class)))
+                .thenAnswer(invocation -> {
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return new GeneratedResultDTO("result", "summary");
+                });
+
+        // One job runs, one waits in the queue, the third is refused
+        generationJobService.submit("key", 1L, prompt());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        generationJobService.submit("key", 1L, prompt());
+
+        assertThrows(GenerationQueueFullException.class, () -> {
+            generationJobService.submit("key", 1L, prompt());
+        });
+        assertEquals(1.0, meterRegistry.get("narrative.generation.jobs.rejected").counter().count());
+        release.countDown();
+    }
+
+    @Test
+    void testAwaitJob_TimesOutWithCurrentState() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(nodeService.generateResult(anyString(), anyLong(), any(Prompt.class)))
+                .thenAnswer(invocation -> {
+                    release.await(10, TimeUnit.SECONDS);
+                    return new GeneratedResultDTO("result", "summary");
+                });
+
+        GenerationJobDTO submitted = generationJobService.submit("key", 1L, prompt());
+        GenerationJobDTO pending = generationJobService
+                .awaitJob(1L, submitted.getJobId(), Duration.ofMillis(50)).get(10, TimeUnit.SECONDS);
+        assertNotEquals("SUCCEEDED", pending.getStatus());
+
+        // A timed out wait does not affect later waits
+        release.countDown();
+        GenerationJobDTO finished = generationJobService
+                .awaitJob(1L, submitted.getJobId(), Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+        assertEquals("SUCCEEDED", finished.getStatus());
+    }
+
+    @Test
+    void testGetJob_OtherStory() {
+        when(nodeService.generateResult(anyString(), anyLong(), any(Prompt.class)))
+                .thenReturn(new GeneratedResultDTO("result", "summary"));
+        GenerationJobDTO submitted = generationJobService.submit("key", 1L, prompt());
+
+        assertThrows(UnfoundJobException.class, () -> {
+            generationJobService.getJob(2L, submitted.getJobId());
+        });
+        assertThrows(UnfoundJobException.class, () -> {
+            generationJobService.getJob(1L, "unknown");
+        });
+    }
+
+    private static Prompt prompt() {
+        Prompt prompt = new Prompt();
+        prompt.context = "context";
+        prompt.Characters = Collections.emptyList();
+        return prompt;
+    }
+}
@@ -0,0 +1,178 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import project.narrative.error.RateLimitExceededException;
+import project.narrative.service.GenerationRateLimiter;
+import project.narrative.service.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GenerationRateLimiterTest {
+
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testTokenBucket_AllowsBurstThenRefills() {
+        long now = 0;
+        // One token per second, three at once
+        TokenBucket bucket = new TokenBucket(60, 3, now);
+
+        for (int i = 0; i < 3; i++) {
+            TokenBucket.Reservation reservation = bucket.reserve(now, 0);
+            assertTrue(reservation.granted());
+            assertEquals(0, reservation.waitNanos());
+        }
+        TokenBucket.Reservation refused = bucket.reserve(now, 0);
+        assertFalse(refused.granted());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), refused.waitNanos());
+
+        assertTrue(bucket.reserve(now + TimeUnit.SECONDS.toNanos(1), 0).granted());
+        assertFalse(bucket.isFull(now + TimeUnit.SECONDS.toNanos(1)));
+        assertTrue(bucket.isFull(now + TimeUnit.SECONDS.toNanos(4)));
+    }
+
+    @Test
+    void testTokenBucket_QueuesWithinMaxWait() {
+        TokenBucket bucket = new TokenBucket(60, 1, 0);
+        assertTrue(bucket.reserve(0, 0).granted());
+
+        // The next tokens arrive after one and two seconds
+        TokenBucket.Reservation first = bucket.reserve(0, TimeUnit.SECONDS.toNanos(2));
+        TokenBucket.Reservation second = bucket.reserve(0, TimeUnit.SECONDS.toNanos(2));
+        TokenBucket.Reservation third = bucket.reserve(0, TimeUnit.SECONDS.toNanos(2));
+
+        assertTrue(first.granted());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), first.waitNanos());
+        assertTrue(second.granted());
+        assertEquals(TimeUnit.SECONDS.toNanos(2), second.waitNanos());
+        assertFalse(third.granted());
+    }
+
+    @Test
+    void testTokenBucket_ConcurrentReservationsNeverExceedCapacity() throws Exception {
+        int capacity = 100;
+        int threads = 16;
+        // A rate so low that no token is earned back during the test
+        TokenBucket bucket = new TokenBucket(0.001, capacity, System.nanoTime());
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> granted = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                granted.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (int i = 0; i < 1000; i++) {
+                        if (bucket.reserve(System.nanoTime(), 0).granted()) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+
+            int total = 0;
+            for (Future<Integer> count : granted) {
+                total += count.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(capacity, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testAcquire_SeparateBudgetPerUser() {
+        GenerationRateLimiter limiter = new GenerationRateLimiter(meterRegistry, 60, 2, 6000, 100, 60, 5, 6000, 100, 0);
+
+        limiter.acquire("alice", "user");
+        limiter.acquire("alice", "user");
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class, () -> {
+            limiter.acquire("alice", "user");
+        });
+        assertEquals(429, e.getStatusCode().value());
+        assertEquals("1", e.getHeaders().getFirst("Retry-After"));
+
+        // Other users are not affected by alice's requests
+        assertDoesNotThrow(() -> limiter.acquire("bob", "user"));
+        assertEquals(1.0, meterRegistry.get("narrative.ratelimit.requests")
+                .tag("tier", "standard").tag("outcome", "rejected").counter().count());
+        assertEquals(3.0, meterRegistry.get("narrative.ratelimit.requests")
+                .tag("tier", "standard").tag("outcome", "allowed").counter().count());
+    }
+
+    @Test
+    void testAcquire_TierBudgetIsShared() {
+        GenerationRateLimiter limiter = new GenerationRateLimiter(meterRegistry, 60, 5, 60, 2, 60, 5, 60, 2, 0);
+
+        limiter.acquire("alice", "user");
+        limiter.acquire("bob", "user");
+        assertThrows(RateLimitExceededException.class, () -> {
+            limiter.acquire("carol", "user");
+        });
+
+        // Premium users have their own tier budget
+        assertDoesNotThrow(() -> limiter.acquire("dave", "premium"));
+        assertDoesNotThrow(() -> limiter.acquire("erin", "admin"));
+    }
+
+    @Test
+    void testAcquire_RejectedTierDoesNotUseUserToken() throws Exception {
+        // Users get one request per second, the tier one every 100ms
+        GenerationRateLimiter limiter = new GenerationRateLimiter(meterRegistry, 60, 1, 600, 1, 60, 5, 600, 5, 0);
+
+        limiter.acquire("alice", "user");
+        assertThrows(RateLimitExceededException.class, () -> {
+            limiter.acquire("bob", "user");
+        });
+
+        // bob's own token was given back when the tier refused him
+        Thread.sleep(150);
+        assertDoesNotThrow(() -> limiter.acquire("bob", "user"));
+    }
+
+    @Test
+    void testAcquire_QueuesUntilSlotIsFree() {
+        // One request every 100ms, waiting up to one second
+        GenerationRateLimiter limiter = new GenerationRateLimiter(meterRegistry, 600, 1, 6000, 100, 600, 1, 6000, 100,
+                1000);
+
+        limiter.acquire("alice", "user");
+        long start = System.nanoTime();
+        limiter.acquire("alice", "user");
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(1.0, meterRegistry.get("narrative.ratelimit.requests")
+                .tag("tier", "standard").tag("outcome", "queued").counter().count());
+    }
+
+    @Test
+    void testRemoveIdleBuckets() {
+        GenerationRateLimiter limiter = new GenerationRateLimiter(meterRegistry, 60, 1, 6000, 100, 60, 1, 6000, 100, 0);
+        limiter.acquire("alice", "user");
+
+        // alice's bucket is still refilling, so it is kept
+        limiter.removeIdleBuckets();
+        assertThrows(RateLimitExceededException.class, () -> {
+            limiter.acquire("alice", "user");
+        });
+    }
+}
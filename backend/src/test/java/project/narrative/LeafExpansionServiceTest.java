@@ -0,0 +1,186 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import project.narrative.dto.ExpansionJobDTO;
+import project.narrative.error.GenerationQueueFullException;
+import project.narrative.error.RateLimitExceededException;
+import project.narrative.error.UnfoundJobException;
+import project.narrative.model.Continuation;
+import project.narrative.model.LlmResponse;
+import project.narrative.service.LeafExpansionService;
+import project.narrative.service.NodeService;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class LeafExpansionServiceTest {
+
+    @Mock
+    private NodeService nodeService;
+
+    private MeterRegistry meterRegistry;
+    private LeafExpansionService leafExpansionService;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        leafExpansionService = service(4, 10, 2, 6000, 2, 100);
+        when(nodeService.generateContinuation(anyString(), anyLong(), anyLong(), any(), any()))
+                .thenAnswer(invocation -> continuation(invocation.getArgument(2)));
+        when(nodeService.saveContinuations(anyString(), anyLong(), anyList())).thenAnswer(invocation -> {
+            List<Long> nodeIds = new ArrayList<>();
+            for (Continuation continuation : invocation.<List<Continuation>>getArgument(2)) {
+                nodeIds.add(continuation.parentId() + 100);
+            }
+            return nodeIds;
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        leafExpansionService.shutdown();
+    }
+
+    @Test
+    void testSubmit_ContinuesEveryLeafInBatches() throws Exception {
+        when(nodeService.findLeafIds(1L, Collections.emptyList())).thenReturn(List.of(1L, 2L, 3L));
+
+        ExpansionJobDTO finished = await(leafExpansionService.submit("key", 1L, "direction", Collections.emptyList()));
+
+        assertEquals("SUCCEEDED", finished.getStatus());
+        assertEquals(3, finished.getTotalLeaves());
+        assertEquals(3, finished.getGenerated());
+        assertEquals(3, finished.getStored());
+        assertEquals(0, finished.getFailed());
+        assertEquals(List.of(101L, 102L, 103L), finished.getNodeIds().stream().sorted().toList());
+        verify(nodeService).generateContinuation("key", 1L, 2L, "direction", Collections.emptyList());
+        // A batch of two and the remaining one
+        verify(nodeService, times(2)).saveContinuations(eq("key"), eq(1L), anyList());
+        assertEquals(3.0, meterRegistry.get("narrative.expansion.leaves").tag("outcome", "stored").counter().count());
+    }
+
+    @Test
+    void testSubmit_BoundsParallelism() throws Exception {
+        List<Long> leaves = new ArrayList<>();
+        for (long i = 1; i <= 12; i++) {
+            leaves.add(i);
+        }
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(leaves);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(nodeService.generateContinuation(anyString(), anyLong(), anyLong(), any(), any()))
+                .thenAnswer(invocation -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return continuation(invocation.getArgument(2));
+                });
+
+        ExpansionJobDTO finished = await(leafExpansionService.submit("key", 1L, null, null));
+
+        assertEquals(12, finished.getStored());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    void testSubmit_CountsFailedLeaves() throws Exception {
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(List.of(1L, 2L, 3L));
+        when(nodeService.generateContinuation(anyString(), anyLong(), eq(2L), any(), any()))
+                .thenThrow(new IllegalStateException("Gemini returned no text"));
+
+        ExpansionJobDTO finished = await(leafExpansionService.submit("key", 1L, null, null));
+
+        assertEquals("FAILED", finished.getStatus());
+        assertEquals(2, finished.getStored());
+        assertEquals(1, finished.getFailed());
+        assertEquals("Gemini returned no text", finished.getError());
+    }
+
+    @Test
+    void testSubmit_RetriesRateLimitedLeaves() throws Exception {
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(List.of(1L));
+        when(nodeService.generateContinuation(anyString(), anyLong(), anyLong(), any(), any()))
+                .thenThrow(new RateLimitExceededException(0))
+                .thenAnswer(invocation -> continuation(invocation.getArgument(2)));
+
+        ExpansionJobDTO finished = await(leafExpansionService.submit("key", 1L, null, null));
+
+        assertEquals("SUCCEEDED", finished.getStatus());
+        assertEquals(List.of(101L), finished.getNodeIds());
+        verify(nodeService, times(2)).generateContinuation(anyString(), anyLong(), eq(1L), any(), any());
+    }
+
+    @Test
+    void testSubmit_NoLeaves() {
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(List.of());
+
+        ExpansionJobDTO job = leafExpansionService.submit("key", 1L, null, null);
+
+        assertEquals("SUCCEEDED", job.getStatus());
+        assertEquals(0, job.getTotalLeaves());
+        verify(nodeService, never()).generateContinuation(anyString(), anyLong(), anyLong(), any(), any());
+    }
+
+    @Test
+    void testSubmit_RejectsWhenQueueIsFull() throws Exception {
+        leafExpansionService.shutdown();
+        leafExpansionService = service(1, 1, 1, 6000, 2, 100);
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(List.of(1L));
+        CountDownLatch release = new CountDownLatch(1);
+        when(nodeService.generateContinuation(anyString(), anyLong(), anyLong(), any(), any()))
+                .thenAnswer(invocation -> {
+                    release.await(5, TimeUnit.SECONDS);
+                    return continuation(invocation.getArgument(2));
+                });
+
+        // One job running and one queued fill the pool
+        leafExpansionService.submit("key", 1L, null, null);
+        leafExpansionService.submit("key", 1L, null, null);
+        try {
+            assertThrows(GenerationQueueFullException.class, () -> leafExpansionService.submit("key", 1L, null, null));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void testGetJob_OtherStory() {
+        when(nodeService.findLeafIds(anyLong(), any())).thenReturn(List.of());
+        ExpansionJobDTO job = leafExpansionService.submit("key", 1L, null, null);
+
+        assertEquals(job.getJobId(), leafExpansionService.getJob(1L, job.getJobId()).getJobId());
+        assertThrows(UnfoundJobException.class, () -> leafExpansionService.getJob(2L, job.getJobId()));
+        assertThrows(UnfoundJobException.class, () -> leafExpansionService.getJob(1L, "unknown"));
+    }
+
+    private LeafExpansionService service(int threads, int queueCapacity, int parallelism, double perMinute,
+            int batchSize, int maxLeaves) {
+        return new LeafExpansionService(nodeService, meterRegistry, threads, queueCapacity, parallelism, perMinute,
+                batchSize, maxLeaves, 10);
+    }
+
+    private ExpansionJobDTO await(ExpansionJobDTO job) throws Exception {
+        return leafExpansionService.awaitJob(job.getStoryId(), job.getJobId(), Duration.ofSeconds(5))
+                .get(10, TimeUnit.SECONDS);
+    }
+
+    private static Continuation continuation(Long leafId) {
+        return new Continuation(leafId, null, "Continue " + leafId, LlmResponse.of("Continuation of " + leafId), 0L,
+                "Summarize " + leafId);
+    }
+}
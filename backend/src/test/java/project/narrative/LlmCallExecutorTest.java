@@ -0,0 +1,263 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import project.narrative.error.LlmUnavailableException;
+import project.narrative.service.CircuitBreaker;
+import project.narrative.service.LlmCallExecutor;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LlmCallExecutorTest {
+
+    private MeterRegistry meterRegistry;
+    private LlmCallExecutor executor;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testCall_FastCallIsNotHedged() {
+        executor = new LlmCallExecutor(meterRegistry, 200, 10, 8, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("response", executor.call(() -> {
+            calls.incrementAndGet();
+            return "response";
+        }));
+
+        assertEquals(1, calls.get());
+        assertEquals(0.0, meterRegistry.get("narrative.llm.hedges.fired").counter().count());
+    }
+
+    @Test
+    void testCall_HedgeWinsWhenFirstCallIsSlow() {
+        executor = new LlmCallExecutor(meterRegistry, 50, 10, 8, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+        // Never released; the first request only ends when it is cancelled
+        CountDownLatch release = new CountDownLatch(1);
+
+        String response = executor.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                await(release);
+                return "slow";
+            }
+            return "fast";
+        });
+
+        assertEquals("fast", response);
+        assertEquals(2, calls.get());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.hedges.fired").counter().count());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.hedges.won").counter().count());
+    }
+
+    @Test
+    void testCall_CancelsLosingRequestAndPassesOnItsResponse() throws Exception {
+        executor = new LlmCallExecutor(meterRegistry, 50, 10, 8, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        List<String> discarded = new CopyOnWriteArrayList<>();
+        CountDownLatch returned = new CountDownLatch(1);
+
+        String response = executor.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    cancelled.countDown();
+                }
+                return "slow";
+            }
+            return "fast";
+        }, loser -> {
+            discarded.add(loser);
+            returned.countDown();
+        });
+
+        assertEquals("fast", response);
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+        // The losing request still answered, so its tokens can be counted
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of("slow"), discarded);
+    }
+
+    @Test
+    void testCall_NoHedgeWhenCallThreadsAreBusy() {
+        executor = new LlmCallExecutor(meterRegistry, 20, 10, 1, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        // The first request takes the only call thread, so there is none for a hedge
+        assertEquals("slow", executor.call(() -> {
+            calls.incrementAndGet();
+            sleep(100);
+            return "slow";
+        }));
+
+        assertEquals(1, calls.get());
+        assertEquals(0.0, meterRegistry.get("narrative.llm.hedges.fired").counter().count());
+    }
+
+    @Test
+    void testCall_HedgeFailureWaitsForFirstCall() {
+        executor = new LlmCallExecutor(meterRegistry, 50, 10, 8, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        CountDownLatch hedgeFailed = new CountDownLatch(1);
+
+        String response = executor.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                await(hedgeFailed);
+                return "slow";
+            }
+            hedgeFailed.countDown();
+            throw new ResourceAccessException("Connection reset");
+        });
+
+        assertEquals("slow", response);
+        assertEquals(1.0, meterRegistry.get("narrative.llm.hedges.fired").counter().count());
+        assertEquals(0.0, meterRegistry.get("narrative.llm.hedges.won").counter().count());
+    }
+
+    @Test
+    void testCall_NoHedgeBeyondMaxInFlight() {
+        executor = new LlmCallExecutor(meterRegistry, 20, 0, 8, 10, 5, 0.5, 1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("slow", executor.call(() -> {
+            calls.incrementAndGet();
+            sleep(100);
+            return "slow";
+        }));
+
+        assertEquals(1, calls.get());
+        assertEquals(0.0, meterRegistry.get("narrative.llm.hedges.fired").counter().count());
+    }
+
+    @Test
+    void testCall_BreakerOpensAndRecovers() throws Exception {
+        executor = new LlmCallExecutor(meterRegistry, 0, 10, 8, 4, 4, 0.5, 100);
+
+        executor.call(() -> "ok");
+        executor.call(() -> "ok");
+        for (int i = 0; i < 2; i++) {
+            assertThrows(ResourceAccessException.class, () -> {
+                executor.call(() -> {
+                    throw new ResourceAccessException("Read timed out");
+                });
+            });
+        }
+        assertEquals(CircuitBreaker.State.OPEN, executor.getCircuitState());
+
+        // Open: fail fast without calling the model
+        AtomicInteger calls = new AtomicInteger();
+        assertThrows(LlmUnavailableException.class, () -> {
+            executor.call(() -> {
+                calls.incrementAndGet();
+                return "ok";
+            });
+        });
+        assertEquals(0, calls.get());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.circuit.rejected").counter().count());
+        assertEquals(2.0, meterRegistry.get("narrative.llm.circuit.state").gauge().value());
+
+        // After the open period a trial call closes it again
+        Thread.sleep(150);
+        assertEquals("ok", executor.call(() -> "ok"));
+        assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitState());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.circuit.transitions")
+                .tag("from", "CLOSED").tag("to", "OPEN").counter().count());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.circuit.transitions")
+                .tag("from", "OPEN").tag("to", "HALF_OPEN").counter().count());
+        assertEquals(1.0, meterRegistry.get("narrative.llm.circuit.transitions")
+                .tag("from", "HALF_OPEN").tag("to", "CLOSED").counter().count());
+    }
+
+    @Test
+    void testCall_FailedTrialReopens() throws Exception {
+        executor = new LlmCallExecutor(meterRegistry, 0, 10, 8, 2, 2, 0.5, 100);
+        for (int i = 0; i < 2; i++) {
+            assertThrows(ResourceAccessException.class, () -> {
+                executor.call(() -> {
+                    throw new ResourceAccessException("Read timed out");
+                });
+            });
+        }
+        Thread.sleep(150);
+
+        assertThrows(ResourceAccessException.class, () -> {
+            executor.call(() -> {
+                throw new ResourceAccessException("Read timed out");
+            });
+        });
+        assertEquals(CircuitBreaker.State.OPEN, executor.getCircuitState());
+    }
+
+    @Test
+    void testCall_ClientErrorsDoNotOpenBreaker() {
+        executor = new LlmCallExecutor(meterRegistry, 0, 10, 8, 2, 2, 0.5, 1000);
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(HttpClientErrorException.class, () -> {
+                executor.call(() -> {
+                    throw new HttpClientErrorException(HttpStatus.BAD_REQUEST);
+                });
+            });
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitState());
+    }
+
+    @Test
+    void testStream_CountsOutcomes() {
+        executor = new LlmCallExecutor(meterRegistry, 0, 10, 8, 2, 2, 0.5, 1000);
+
+        assertEquals(List.of("a", "b"), executor.stream(() -> Flux.just("a", "b")).collectList().block());
+        executor.stream(() -> Flux.<String>error(new ResourceAccessException("Reset")))
+                .onErrorResume(e -> Flux.empty()).blockLast();
+        executor.stream(() -> Flux.<String>error(new ResourceAccessException("Reset")))
+                .onErrorResume(e -> Flux.empty()).blockLast();
+
+        assertEquals(CircuitBreaker.State.OPEN, executor.getCircuitState());
+        assertThrows(LlmUnavailableException.class, () -> {
+            executor.stream(() -> Flux.just("a")).blockLast();
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
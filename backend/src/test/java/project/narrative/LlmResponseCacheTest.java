@@ -0,0 +1,151 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import project.narrative.service.LlmResponseCache;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LlmResponseCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MeterRegistry meterRegistry;
+    private LlmResponseCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new LlmResponseCache(meterRegistry, 2, "", 1);
+    }
+
+    @Test
+    void testKey_DependsOnModelAndPrompt() {
+        assertEquals(LlmResponseCache.key("gemini-pro", "prompt"), LlmResponseCache.key("gemini-pro", "prompt"));
+        assertNotEquals(LlmResponseCache.key("gemini-pro", "prompt"), LlmResponseCache.key("other", "prompt"));
+        assertNotEquals(LlmResponseCache.key("gemini-pro", "prompt"), LlmResponseCache.key("gemini-pro", "prompt "));
+        assertEquals(64, LlmResponseCache.key("gemini-pro", "prompt").length());
+    }
+
+    @Test
+    void testGet_HitAndMiss() {
+        cache.put("gemini-pro", "prompt", "response", 2_000_000_000L);
+
+        assertEquals(Optional.of("response"), cache.get("gemini-pro", "prompt"));
+        assertEquals(Optional.empty(), cache.get("gemini-pro", "other prompt"));
+        assertEquals(Optional.empty(), cache.get("other", "prompt"));
+
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count());
+        assertEquals(2.0, meterRegistry.get("cache.gets").tag("result", "miss").functionCounter().count());
+        // A hit saves the time the original call took
+        assertEquals(2.0, meterRegistry.get("narrative.llm.cache.saved").counter().count(), 1e-9);
+    }
+
+    @Test
+    void testPut_EvictsLeastRecentlyUsed() {
+        cache.put("gemini-pro", "a", "A", 1);
+        cache.put("gemini-pro", "b", "B", 1);
+        // Reading a makes b the least recently used
+        cache.get("gemini-pro", "a");
+        cache.put("gemini-pro", "c", "C", 1);
+
+        assertTrue(cache.get("gemini-pro", "a").isPresent());
+        assertFalse(cache.get("gemini-pro", "b").isPresent());
+        assertTrue(cache.get("gemini-pro", "c").isPresent());
+        assertEquals(2, cache.size());
+        assertEquals(1.0, meterRegistry.get("cache.evictions").functionCounter().count());
+    }
+
+    @Test
+    void testDisk_SurvivesRestart() throws Exception {
+        String file = tempDir.resolve("llm-cache.bin").toString();
+        LlmResponseCache first = new LlmResponseCache(new SimpleMeterRegistry(), 2, file, 1);
+        first.put("gemini-pro", "prompt", "Once upon a time — été", 5);
+        first.put("gemini-pro", "prompt", "Replaced", 5);
+        first.close();
+
+        LlmResponseCache second = new LlmResponseCache(new SimpleMeterRegistry(), 2, file, 1);
+        assertEquals(0, second.size());
+        assertEquals(Optional.of("Replaced"), second.get("gemini-pro", "prompt"));
+        assertEquals(1, second.size());
+        second.close();
+    }
+
+    @Test
+    void testDisk_EvictedEntriesAreReadBack() throws Exception {
+        String file = tempDir.resolve("llm-cache.bin").toString();
+        LlmResponseCache diskCache = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        diskCache.put("gemini-pro", "a", "A", 1);
+        diskCache.put("gemini-pro", "b", "B", 1);
+
+        assertEquals(Optional.of("A"), diskCache.get("gemini-pro", "a"));
+        diskCache.close();
+    }
+
+    @Test
+    void testDisk_StartsOverWhenFileIsLargerThanMapping() throws Exception {
+        String file = tempDir.resolve("llm-cache.bin").toString();
+        LlmResponseCache large = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 2);
+        String response = "x".repeat(600 * 1024);
+        large.put("gemini-pro", "a", response, 1);
+        large.put("gemini-pro", "b", response, 1);
+        large.close();
+
+        // The records end beyond the 1 MB now mapped
+        LlmResponseCache smaller = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        assertFalse(smaller.get("gemini-pro", "a").isPresent());
+        smaller.put("gemini-pro", "c", "C", 1);
+        smaller.close();
+
+        LlmResponseCache reopened = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        assertEquals(Optional.of("C"), reopened.get("gemini-pro", "c"));
+        reopened.close();
+    }
+
+    @Test
+    void testDisk_StartsOverWhenRecordIsDamaged() throws Exception {
+        String file = tempDir.resolve("llm-cache.bin").toString();
+        LlmResponseCache first = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        first.put("gemini-pro", "a", "A", 1);
+        first.put("gemini-pro", "b", "B", 1);
+        first.close();
+
+        // Make the length of the first record run past the end of the records
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8 + 32 + 8);
+            raf.writeInt(Integer.MAX_VALUE - 100);
+        }
+
+        LlmResponseCache reopened = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        assertFalse(reopened.get("gemini-pro", "a").isPresent());
+        assertFalse(reopened.get("gemini-pro", "b").isPresent());
+        reopened.put("gemini-pro", "c", "C", 1);
+        assertEquals(Optional.of("C"), reopened.get("gemini-pro", "c"));
+        reopened.close();
+    }
+
+    @Test
+    void testDisk_StartsOverWhenFull() throws Exception {
+        String file = tempDir.resolve("llm-cache.bin").toString();
+        LlmResponseCache diskCache = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        String large = "x".repeat(400 * 1024);
+        diskCache.put("gemini-pro", "a", large, 1);
+        diskCache.put("gemini-pro", "b", large, 1);
+        diskCache.put("gemini-pro", "c", large, 1);
+        diskCache.close();
+
+        LlmResponseCache reopened = new LlmResponseCache(new SimpleMeterRegistry(), 1, file, 1);
+        assertFalse(reopened.get("gemini-pro", "a").isPresent());
+        assertFalse(reopened.get("gemini-pro", "b").isPresent());
+        assertEquals(Optional.of(large), reopened.get("gemini-pro", "c"));
+        reopened.close();
+    }
+}
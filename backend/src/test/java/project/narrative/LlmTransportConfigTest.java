@@ -0,0 +1,124 @@
+package project.narrative;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.timeout.ReadTimeoutException;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import project.narrative.config.LlmTransportConfig;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LlmTransportConfigTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    // Client ports seen by the server, one per connection
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private MeterRegistry meterRegistry;
+    private CloseableHttpClient httpClient;
+    private RestTemplate template;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        meterRegistry = new SimpleMeterRegistry();
+        LlmTransportConfig config = new LlmTransportConfig();
+        httpClient = config.llmHttpClient(meterRegistry, 10, 5, 1000, 500, 1000, 60, 30);
+        template = config.template(httpClient);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void testTemplate_ReusesConnections() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ok", template.postForObject(baseUrl + "/ok", "prompt", String.class));
+        }
+
+        // Sequential calls go over one kept-alive connection
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    void testTemplate_TimesOutStuckCalls() {
+        assertThrows(ResourceAccessException.class, () -> {
+            template.postForObject(baseUrl + "/slow", "prompt", String.class);
+        });
+    }
+
+    @Test
+    void testWebClient_TimesOutStuckStreams() {
+        ConnectionProvider connectionProvider = new LlmTransportConfig().llmConnectionProvider(5, 1000, 30);
+        try {
+            WebClient webClient = new LlmTransportConfig().llmWebClient(WebClient.builder(), connectionProvider,
+                    1000, 500);
+
+            // The first call starts the event loops and codecs, which alone can take over a second
+            assertEquals("ok", webClient.post().uri(baseUrl + "/ok").bodyValue("prompt").retrieve()
+                    .bodyToMono(String.class).block());
+
+            long start = System.nanoTime();
+            WebClientRequestException e = assertThrows(WebClientRequestException.class, () -> {
+                webClient.post().uri(baseUrl + "/slow").bodyValue("prompt").retrieve()
+                        .bodyToFlux(String.class).blockLast();
+            });
+            assertInstanceOf(ReadTimeoutException.class, e.getCause());
+            assertTrue(System.nanoTime() - start < 1_500_000_000L);
+        } finally {
+            connectionProvider.dispose();
+        }
+    }
+
+    @Test
+    void testPoolMetrics_Registered() {
+        template.postForObject(baseUrl + "/ok", "prompt", String.class);
+
+        assertEquals(10.0, meterRegistry.get("httpcomponents.httpclient.pool.total.max")
+                .tag("httpclient", "llm").gauge().value());
+        assertEquals(5.0, meterRegistry.get("httpcomponents.httpclient.pool.route.max.default")
+                .tag("httpclient", "llm").gauge().value());
+        assertEquals(1.0, meterRegistry.get("httpcomponents.httpclient.pool.total.connections")
+                .tag("httpclient", "llm").tag("state", "available").gauge().value());
+    }
+}
@@ -14,14 +14,26 @@ import project.narrative.controller.NodeController.NodeInfo;
 import project.narrative.controller.NodeController.NodeInit;
 import project.narrative.controller.NodeController.Prompt;
 import project.narrative.controller.NodeController.DeleteData;
+import project.narrative.controller.NodeController.Expansion;
+import project.narrative.dto.ExpansionJobDTO;
+import project.narrative.dto.GenerationHistoryDTO;
+import project.narrative.dto.GenerationJobDTO;
+import project.narrative.dto.NodeChangesDTO;
 import project.narrative.dto.NodeDTO;
+import project.narrative.dto.NodeSummaryDTO;
+import project.narrative.dto.NodeTreePageDTO;
+import project.narrative.service.GenerationJobService;
+import project.narrative.service.LeafExpansionService;
 import project.narrative.service.NodeService;
 import project.narrative.dto.GeneratedResultDTO;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.Mockito.*;
 
 class NodeControllerTest {
@@ -29,6 +41,12 @@ class NodeControllerTest {
     @Mock
     private NodeService nodeService;
 
+    @Mock
+    private GenerationJobService generationJobService;
+
+    @Mock
+    private LeafExpansionService leafExpansionService;
+
     @InjectMocks
     private NodeController nodeController;
 
@@ -90,8 +108,7 @@ class NodeControllerTest {
         GeneratedResultDTO generatedResult = new GeneratedResultDTO();
         generatedResult.setResult("Generated Content");
 
-        when(nodeService.generateResult(key, storiesId, prompt.parentId, prompt.context, prompt.Characters))
-                .thenReturn(generatedResult);
+        when(nodeService.generateResult(key, storiesId, prompt)).thenReturn(generatedResult);
 
         ResponseEntity<?> response = nodeController.getGenerated(storiesId, prompt);
 
@@ -104,12 +121,170 @@ class NodeControllerTest {
         DeleteData deleteData = new DeleteData();
         deleteData.nodeId = 1L;
 
-        doNothing().when(nodeService).deleteNode(deleteData.nodeId);
+        when(nodeService.deleteNode(deleteData.nodeId)).thenReturn(3);
 
         ResponseEntity<?> response = nodeController.deleteNode(deleteData);
 
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        assertEquals("Delete succesfully!", response.getBody());
+        assertEquals(3, response.getBody());
+    }
+
+    @Test
+    void testGetTree_Success() {
+        Long storiesId = 1L;
+        NodeTreePageDTO page = new NodeTreePageDTO();
+        when(nodeService.getTreePage(storiesId, null, 2, 50, null)).thenReturn(page);
+
+        ResponseEntity<?> response = nodeController.getTree(storiesId, null, 2, 50, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(page, response.getBody());
+    }
+
+    @Test
+    void testGetOutline_Success() {
+        Long storiesId = 1L;
+        List<NodeSummaryDTO> outline = List.of(new NodeSummaryDTO(1L, null, "Opening", true));
+        when(nodeService.getOutline(storiesId)).thenReturn(outline);
+
+        ResponseEntity<?> response = nodeController.getOutline(storiesId);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(outline, response.getBody());
+    }
+
+    @Test
+    void testGetChanges_Success() {
+        Long storiesId = 1L;
+        NodeChangesDTO changes = new NodeChangesDTO(storiesId, 5L, Collections.emptyList(), List.of(3L));
+        when(nodeService.getChanges(storiesId, 4L)).thenReturn(changes);
+
+        ResponseEntity<?> response = nodeController.getChanges(storiesId, 4L);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(changes, response.getBody());
+        assertEquals("\"5\"", response.getHeaders().getETag());
+    }
+
+    @Test
+    void testGetChanges_NotModified() {
+        Long storiesId = 1L;
+        NodeChangesDTO changes = new NodeChangesDTO(storiesId, 5L, Collections.emptyList(), Collections.emptyList());
+        when(nodeService.getChanges(storiesId, 5L)).thenReturn(changes);
+
+        ResponseEntity<?> response = nodeController.getChanges(storiesId, 5L);
+
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertNull(response.getBody());
+    }
+
+    @Test
+    void testGetChanges_NewClientOfUnchangedStory() {
+        Long storiesId = 1L;
+        NodeChangesDTO changes = new NodeChangesDTO(storiesId, 0L, List.of(new NodeDTO()), Collections.emptyList());
+        when(nodeService.getChanges(storiesId, 0L)).thenReturn(changes);
+
+        ResponseEntity<?> response = nodeController.getChanges(storiesId, 0L);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(changes, response.getBody());
+    }
+
+    @Test
+    void testSubmitGeneration_Accepted() {
+        Long storiesId = 1L;
+        Prompt prompt = new Prompt();
+        prompt.setContext("context");
+        prompt.setParentId(2L);
+        prompt.setCharacters(Collections.emptyList());
+
+        GenerationJobDTO job = new GenerationJobDTO();
+        job.setJobId("job-1");
+        when(generationJobService.submit(null, storiesId, prompt))
+                .thenReturn(job);
+
+        ResponseEntity<?> response = nodeController.submitGeneration(storiesId, prompt);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals(job, response.getBody());
+    }
+
+    @Test
+    void testGetGenerationJob_NoWait() throws Exception {
+        Long storiesId = 1L;
+        GenerationJobDTO job = new GenerationJobDTO();
+        when(generationJobService.getJob(storiesId, "job-1")).thenReturn(job);
+
+        ResponseEntity<?> response = nodeController.getGenerationJob(storiesId, "job-1", 0).get();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(job, response.getBody());
+        verify(generationJobService, never()).awaitJob(anyLong(), anyString(), any());
+    }
+
+    @Test
+    void testGetGenerationJob_WaitIsCapped() throws Exception {
+        Long storiesId = 1L;
+        GenerationJobDTO job = new GenerationJobDTO();
+        when(generationJobService.awaitJob(storiesId, "job-1", Duration.ofSeconds(25)))
+                .thenReturn(CompletableFuture.completedFuture(job));
+
+        ResponseEntity<?> response = nodeController.getGenerationJob(storiesId, "job-1", 600).get();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(job, response.getBody());
+    }
+
+    @Test
+    void testExpandLeaves_Accepted() {
+        Long storiesId = 1L;
+        Expansion expansion = new Expansion();
+        expansion.context = "The storm passes";
+        expansion.Characters = Collections.emptyList();
+        ExpansionJobDTO job = new ExpansionJobDTO();
+        when(leafExpansionService.submit(any(), eq(storiesId), eq("The storm passes"), eq(Collections.emptyList())))
+                .thenReturn(job);
+
+        ResponseEntity<?> response = nodeController.expandLeaves(storiesId, expansion);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals(job, response.getBody());
+    }
+
+    @Test
+    void testGetExpansion_NoWait() throws Exception {
+        Long storiesId = 1L;
+        ExpansionJobDTO job = new ExpansionJobDTO();
+        when(leafExpansionService.getJob(storiesId, "job-1")).thenReturn(job);
+
+        ResponseEntity<?> response = nodeController.getExpansion(storiesId, "job-1", 0).get();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(job, response.getBody());
+        verify(leafExpansionService, never()).awaitJob(anyLong(), anyString(), any());
+    }
+
+    @Test
+    void testGetHistory_Success() {
+        GenerationHistoryDTO history = new GenerationHistoryDTO();
+        history.setId(8L);
+        when(nodeService.getHistory(1L, 3L)).thenReturn(List.of(history));
+
+        ResponseEntity<?> response = nodeController.getHistory(1L, 3L);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(List.of(history), response.getBody());
+    }
+
+    @Test
+    void testRestoreGeneration_Success() {
+        NodeDTO node = new NodeDTO();
+        when(nodeService.restoreGeneration(any(), eq(1L), eq(3L), eq(8L))).thenReturn(node);
+
+        ResponseEntity<?> response = nodeController.restoreGeneration(1L, 3L, 8L);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(node, response.getBody());
     }
 
     @Test
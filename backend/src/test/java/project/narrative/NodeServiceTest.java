@@ -2,35 +2,69 @@ package project.narrative;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.ArgumentCaptor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import project.narrative.dto.GeneratedResultDTO;
+import project.narrative.dto.GenerationHistoryDTO;
+import project.narrative.dto.NodeChangesDTO;
 import project.narrative.dto.NodeDTO;
+import project.narrative.dto.NodeSummaryDTO;
+import project.narrative.dto.NodeTreePageDTO;
 import project.narrative.dto.StoryDTO;
 import project.narrative.error.EditNonLeafNodeException;
+import project.narrative.error.RateLimitExceededException;
+import project.narrative.error.UnfoundCharacterException;
+import project.narrative.error.UnfoundGenerationException;
 import project.narrative.error.UnfoundStoryException;
 import project.narrative.error.UserInfoException;
+import project.narrative.model.Continuation;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.NodeSummary;
+import project.narrative.model.SummaryStatus;
 import project.narrative.model.entities.Character;
+import project.narrative.model.entities.GenerationHistory;
 import project.narrative.model.entities.Node;
+import project.narrative.model.entities.NodeTombstone;
 import project.narrative.model.entities.Story;
 import project.narrative.model.entities.User;
 import project.narrative.repository.*;
 import project.narrative.service.GeminiService;
+import project.narrative.service.GenerationHistoryService;
+import project.narrative.service.GenerationRateLimiter;
 import project.narrative.service.NodeService;
+import project.narrative.service.PromptBuilder;
+import project.narrative.service.NodeSummaryWorker;
+import project.narrative.service.NodeTombstoneCompactor;
 import project.narrative.controller.NodeController.CharacterInfo;
+import project.narrative.controller.NodeController.Prompt;
 import project.narrative.service.StoryService;
+import project.narrative.service.StoryTreeCache;
+import reactor.core.publisher.Flux;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 public class NodeServiceTest {
@@ -56,9 +90,41 @@ public class NodeServiceTest {
     @Mock
     private CharacterRepo characterRepo;
 
+    @Mock
+    private StoryTreeCache storyTreeCache;
+
+    @Mock
+    private NodeTombstoneRepo nodeTombstoneRepo;
+
+    @Mock
+    private NodeSummaryWorker nodeSummaryWorker;
+
+    @Mock
+    private GenerationRateLimiter rateLimiter;
+
+    @Mock
+    private GenerationHistoryService generationHistory;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private NodeTombstoneCompactor tombstoneCompactor;
+
+    @Spy
+    private PromptBuilder promptBuilder = new PromptBuilder(new SimpleMeterRegistry(), 3000);
+
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.openMocks(this);
+        when(storyRepo.findVersionByStoryid(anyLong())).thenReturn(Optional.of(1L));
+        // Nothing is cached unless a test says so; the mock would answer with an empty tree
+        when(storyTreeCache.get(anyLong())).thenReturn(null);
+        // Answer through sendAndReceiveRequest, so its stubs also serve calls that need the usage
+        when(geminiService.sendAndReceive(anyString(), anyString(), anyBoolean(), any()))
+                .thenAnswer(invocation -> LlmResponse.of(geminiService.sendAndReceiveRequest(
+                        invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2),
+                        invocation.getArgument(3))));
     }
 
     @Test
@@ -133,25 +199,19 @@ public class NodeServiceTest {
         when(storyRepo.findByUserUsername("john_doe"))
                 .thenReturn(Optional.of(Arrays.asList(mockStory1, mockStory2)));
 
-        when(nodeRepo.findByStoryStoryidAndParentIdIsNull(1L))
-                .thenReturn(Optional.of(Arrays.asList(rootNode1, rootNode2)));
-        when(nodeRepo.findByStoryStoryidAndParentIdIsNull(2L))
-                .thenReturn(Optional.of(Arrays.asList(rootNode3, rootNode4)));
-
-        when(nodeRepo.findByParentId(1L))
-                .thenReturn(Optional.of(Arrays.asList(node1_1, node1_2)));
-        when(nodeRepo.findByStoryStoryidAndParentIdIsNull(5L))
-                .thenReturn(Optional.of(Arrays.asList(node1_1_1)));
+        when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(Arrays.asList(1L, 2L)))
+                .thenReturn(Optional.of(Arrays.asList(rootNode1, rootNode2, rootNode3, rootNode4, node1_1, node1_2,
+                        node1_1_1)));
 
         // Call the service method
         List<StoryDTO> result = storyService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
 
-        List<StoryDTO> sresult = result;
         // Verifications
         verify(userRepo, times(1)).findByEmail("xxx@gmail.com");
         verify(storyRepo, times(1)).findByUserUsername("john_doe");
-        verify(nodeRepo, times(1)).findByStoryStoryidAndParentIdIsNull(1L);
-        verify(nodeRepo, times(1)).findByStoryStoryidAndParentIdIsNull(2L);
+        verify(nodeRepo, times(1)).findByStoryStoryidInOrderByNodeIdAsc(Arrays.asList(1L, 2L));
+        verify(nodeRepo, never()).findByStoryStoryid(anyLong());
+        verify(nodeRepo, never()).findByParentId(anyLong());
         // Assertions
         assertEquals(2, result.size()); // Two stories for this user
 
@@ -163,6 +223,417 @@ public class NodeServiceTest {
         // Verify root nodes of first story
         List<NodeDTO> firstStoryRootNodes = firstStoryDTO.getRootNodes();
         assertEquals(2, firstStoryRootNodes.size());
+        assertEquals(2, firstStoryRootNodes.get(0).getChildren().size());
+        assertEquals(7L, firstStoryRootNodes.get(0).getChildren().get(0).getChildren().get(0).getNodeId());
+        assertEquals(2, result.get(1).getRootNodes().size());
+    }
+
+    /**
+     * Cached trees are served without a node query, only the other stories are loaded
+     */
+    @Test
+    public void testGetStoriesWithNodeHierarchyForUser_UsesCachedTrees() {
+        User mockUser = new User();
+        mockUser.setUsername("john_doe");
+        mockUser.setEmail("xxx@gmail.com");
+
+        Story cachedStory = new Story();
+        cachedStory.setStoryid(1L);
+        cachedStory.setUser(mockUser);
+        Story uncachedStory = new Story();
+        uncachedStory.setStoryid(2L);
+        uncachedStory.setUser(mockUser);
+
+        List<NodeDTO> cachedTree = List.of(new NodeDTO(createNode(1L, null, "Cached", mockUser, cachedStory)));
+        Node uncachedRoot = createNode(2L, null, "Loaded", mockUser, uncachedStory);
+
+        when(userRepo.findByEmail("xxx@gmail.com")).thenReturn(Optional.of(mockUser));
+        when(storyRepo.findByUserUsername("john_doe"))
+                .thenReturn(Optional.of(Arrays.asList(cachedStory, uncachedStory)));
+        when(storyTreeCache.get(1L)).thenReturn(cachedTree);
+        when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(List.of(2L)))
+                .thenReturn(Optional.of(List.of(uncachedRoot)));
+
+        List<StoryDTO> result = storyService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
+
+        assertSame(cachedTree, result.get(0).getRootNodes());
+        assertEquals(2L, result.get(1).getRootNodes().get(0).getNodeId());
+        verify(nodeRepo, times(1)).findByStoryStoryidInOrderByNodeIdAsc(List.of(2L));
+        verify(storyTreeCache, times(1)).put(eq(2L), anyList(), eq(1), anyLong());
+    }
+
+    /**
+     * The number of node queries must not depend on the size of the tree
+     */
+    @Test
+    public void testGetStoriesWithNodeHierarchyForUser_QueryCountIndependentOfTreeSize() {
+        User mockUser = new User();
+        mockUser.setUsername("john_doe");
+        mockUser.setEmail("xxx@gmail.com");
+
+        Story mockStory = new Story();
+        mockStory.setStoryid(1L);
+        mockStory.setStoryname("Big Story");
+        mockStory.setUser(mockUser);
+
+        when(userRepo.findByEmail("xxx@gmail.com")).thenReturn(Optional.of(mockUser));
+        when(storyRepo.findByUserUsername("john_doe")).thenReturn(Optional.of(List.of(mockStory)));
+
+        for (int size : new int[] { 1, 10, 1000 }) {
+            clearInvocations(nodeRepo);
+
+            // Binary tree: node i is the parent of nodes 2i and 2i + 1
+            List<Node> nodes = new ArrayList<>();
+            for (long id = 1; id <= size; id++) {
+                nodes.add(createNode(id, id == 1 ? null : id / 2, "Node " + id, mockUser, mockStory));
+            }
+            when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(List.of(1L))).thenReturn(Optional.of(nodes));
+
+            List<StoryDTO> result = storyService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
+
+            assertEquals(1, result.get(0).getRootNodes().size());
+            assertEquals(size, countNodes(result.get(0).getRootNodes()));
+            verify(nodeRepo, times(1)).findByStoryStoryidInOrderByNodeIdAsc(List.of(1L));
+            verifyNoMoreInteractions(nodeRepo);
+        }
+    }
+
+    /**
+     * All stories of a user share a single node query
+     */
+    @Test
+    public void testGetStoriesWithNodeHierarchyForUser_OneNodeQueryForAllStories() {
+        User mockUser = new User();
+        mockUser.setUsername("john_doe");
+        mockUser.setEmail("xxx@gmail.com");
+
+        List<Story> stories = new ArrayList<>();
+        List<Long> storyIds = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+        for (long storyId = 1; storyId <= 100; storyId++) {
+            Story story = new Story();
+            story.setStoryid(storyId);
+            story.setStoryname("Story " + storyId);
+            story.setUser(mockUser);
+            stories.add(story);
+            storyIds.add(storyId);
+
+            // One root with two children per story
+            long rootId = storyId * 10;
+            nodes.add(createNode(rootId, null, "Root", mockUser, story));
+            nodes.add(createNode(rootId + 1, rootId, "Child 1", mockUser, story));
+            nodes.add(createNode(rootId + 2, rootId, "Child 2", mockUser, story));
+        }
+
+        when(userRepo.findByEmail("xxx@gmail.com")).thenReturn(Optional.of(mockUser));
+        when(storyRepo.findByUserUsername("john_doe")).thenReturn(Optional.of(stories));
+        when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(storyIds)).thenReturn(Optional.of(nodes));
+
+        List<StoryDTO> result = storyService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
+
+        assertEquals(100, result.size());
+        for (StoryDTO storyDTO : result) {
+            assertEquals(1, storyDTO.getRootNodes().size());
+            assertEquals(storyDTO.getStoryId() * 10, storyDTO.getRootNodes().get(0).getNodeId());
+            assertEquals(2, storyDTO.getRootNodes().get(0).getChildren().size());
+        }
+        verify(nodeRepo, times(1)).findByStoryStoryidInOrderByNodeIdAsc(storyIds);
+        verifyNoMoreInteractions(nodeRepo);
+    }
+
+    /**
+     * Very deep chains must not overflow the stack
+     */
+    @Test
+    public void testBuildNodeHierarchy_DeepChain() {
+        User user = new User();
+        user.setUsername("john_doe");
+
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        int depth = 100_000;
+        List<Node> chain = new ArrayList<>(depth);
+        for (long id = 1; id <= depth; id++) {
+            chain.add(createNode(id, id == 1 ? null : id - 1, "Node " + id, user, story));
+        }
+        when(nodeRepo.findByStoryStoryid(1L)).thenReturn(Optional.of(chain));
+
+        NodeDTO root = assertDoesNotThrow(() -> NodeService.buildNodeHierarchy(chain.get(0), nodeRepo));
+
+        NodeDTO current = root;
+        for (long id = 1; id < depth; id++) {
+            assertEquals(id, current.getNodeId());
+            assertEquals(1, current.getChildren().size());
+            current = current.getChildren().get(0);
+        }
+        assertEquals((long) depth, current.getNodeId());
+        assertTrue(current.getChildren().isEmpty());
+        verify(nodeRepo, never()).findByParentId(anyLong());
+    }
+
+    @Test
+    void testGetTreePage_CollapsesLastLevel() {
+        User user = new User();
+        user.setUsername("john_doe");
+
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node root1 = createTreeNode(1L, null, "/1/", 0, user, story);
+        Node child2 = createTreeNode(2L, 1L, "/1/2/", 1, user, story);
+        Node child3 = createTreeNode(3L, 1L, "/1/3/", 1, user, story);
+        Node root4 = createTreeNode(4L, null, "/4/", 0, user, story);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findByStoryStoryidAndParentIdIsNullAndNodeIdGreaterThanOrderByNodeIdAsc(eq(1L), eq(0L),
+                any(Pageable.class))).thenReturn(Arrays.asList(root1, root4));
+        // Only the children of the roots on this page are loaded
+        when(nodeRepo.findSummariesByParentIdInOrderByNodeIdAsc(List.of(1L, 4L))).thenReturn(Arrays.asList(
+                NodeSummary.of(child2), NodeSummary.of(child3)));
+        when(nodeRepo.countChildrenByParentIds(Arrays.asList(2L, 3L)))
+                .thenReturn(Collections.singletonList(new Object[] { 2L, 1L }));
+
+        NodeTreePageDTO page = nodeService.getTreePage(1L, null, 2, 50, null);
+
+        assertEquals(2, page.getNodes().size());
+        assertNull(page.getNextCursor());
+
+        NodeDTO first = page.getNodes().get(0);
+        assertEquals(1L, first.getNodeId());
+        assertEquals(2L, first.getChildCount());
+        assertEquals(2, first.getChildren().size());
+
+        // Collapsed nodes carry their child count but none of the node text
+        NodeDTO collapsed = first.getChildren().get(0);
+        assertEquals(2L, collapsed.getNodeId());
+        assertEquals(1L, collapsed.getChildCount());
+        assertNull(collapsed.getChildren());
+        assertNull(collapsed.getUserName());
+        assertEquals(0L, first.getChildren().get(1).getChildCount());
+
+        assertEquals(0L, page.getNodes().get(1).getChildCount());
+
+        // Only the summary columns are loaded for the collapsed level
+        verify(nodeRepo, never()).findByParentIdInOrderByNodeIdAsc(any());
+    }
+
+    @Test
+    void testGetTreePage_NodesWithoutPath() {
+        User user = new User();
+        user.setUsername("john_doe");
+
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        // Nodes created before paths and depths were maintained
+        Node root = createNode(5L, null, "Root", user, story);
+        Node child = createNode(6L, 5L, "Child", user, story);
+        Node grandchild = createNode(7L, 6L, "Grandchild", user, story);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(5L)).thenReturn(Optional.of(root));
+        when(nodeRepo.findByParentIdAndNodeIdGreaterThanOrderByNodeIdAsc(eq(5L), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(child));
+        when(nodeRepo.findByParentIdInOrderByNodeIdAsc(List.of(6L))).thenReturn(List.of(grandchild));
+        when(nodeRepo.findSummariesByParentIdInOrderByNodeIdAsc(List.of(7L))).thenReturn(List.of());
+
+        NodeTreePageDTO page = assertDoesNotThrow(() -> nodeService.getTreePage(1L, 5L, 3, 50, null));
+
+        assertEquals(1, page.getNodes().size());
+        NodeDTO top = page.getNodes().get(0);
+        assertEquals(6L, top.getNodeId());
+        assertEquals(1L, top.getChildCount());
+        assertEquals(7L, top.getChildren().get(0).getNodeId());
+        assertEquals(0L, top.getChildren().get(0).getChildCount());
+        verify(nodeRepo, never()).countChildrenByParentIds(any());
+    }
+
+    @Test
+    void testGetTreePage_NextCursor() {
+        User user = new User();
+        user.setUsername("john_doe");
+
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node root1 = createTreeNode(1L, null, "/1/", 0, user, story);
+        Node root4 = createTreeNode(4L, null, "/4/", 0, user, story);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findByStoryStoryidAndParentIdIsNullAndNodeIdGreaterThanOrderByNodeIdAsc(eq(1L), eq(0L),
+                any(Pageable.class))).thenReturn(Arrays.asList(root1, root4));
+        when(nodeRepo.countChildrenByParentIds(List.of(1L))).thenReturn(new ArrayList<>());
+
+        NodeTreePageDTO page = nodeService.getTreePage(1L, null, 1, 1, null);
+
+        assertEquals(1, page.getNodes().size());
+        assertEquals(1L, page.getNextCursor());
+        assertEquals(0L, page.getNodes().get(0).getChildCount());
+        verify(nodeRepo, never()).findSummariesByParentIdInOrderByNodeIdAsc(any());
+    }
+
+    @Test
+    void testGetTreePage_RootInOtherStory() {
+        Story story = new Story();
+        story.setStoryid(1L);
+        Story otherStory = new Story();
+        otherStory.setStoryid(2L);
+
+        Node node = new Node();
+        node.setNodeId(5L);
+        node.setStory(otherStory);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(5L)).thenReturn(Optional.of(node));
+
+        assertThrows(UnfoundStoryException.class, () -> {
+            nodeService.getTreePage(1L, 5L, 2, 50, null);
+        });
+    }
+
+    @Test
+    void testGetOutline_MarksLeaves() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+
+        Node root = createTreeNode(1L, null, "/1/", 0, user, story);
+        root.setNodeName("Opening");
+        Node child = createTreeNode(2L, 1L, "/1/2/", 1, user, story);
+        Node otherRoot = createTreeNode(3L, null, "/3/", 0, user, story);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findOutlineByStoryid(1L)).thenReturn(Arrays.asList(
+                NodeSummary.of(root), NodeSummary.of(child), NodeSummary.of(otherRoot)));
+
+        List<NodeSummaryDTO> outline = nodeService.getOutline(1L);
+
+        assertEquals(3, outline.size());
+        assertEquals("Opening", outline.get(0).getNodeName());
+        assertFalse(outline.get(0).isLeaf());
+        assertEquals(1L, outline.get(1).getParentNode());
+        assertTrue(outline.get(1).isLeaf());
+        assertTrue(outline.get(2).isLeaf());
+        verify(nodeRepo, never()).findByStoryStoryid(anyLong());
+    }
+
+    @Test
+    void testGetOutline_StoryNotFound() {
+        when(storyRepo.findById(1L)).thenReturn(Optional.empty());
+
+        assertThrows(UnfoundStoryException.class, () -> {
+            nodeService.getOutline(1L);
+        });
+    }
+
+    @Test
+    void testGetChanges_ReturnsChangedAndDeletedNodes() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node changed = createTreeNode(2L, 1L, "/1/2/", 1, user, story);
+        changed.setVersion(5L);
+
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.of(6L));
+        when(nodeRepo.findChangedByStoryid(1L, 4L)).thenReturn(List.of(changed));
+        when(nodeTombstoneRepo.findByStoryidAndVersionGreaterThan(1L, 4L))
+                .thenReturn(List.of(new NodeTombstone(1L, 3L, 6L)));
+
+        NodeChangesDTO changes = nodeService.getChanges(1L, 4L);
+
+        assertEquals(6L, changes.getVersion());
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(5L, changes.getChanged().get(0).getVersion());
+        assertEquals(List.of(3L), changes.getDeleted());
+        assertNull(changes.getFullResync());
+    }
+
+    @Test
+    void testGetChanges_FullResyncForClientsBehindTombstones() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = createTreeNode(2L, null, "/2/", 0, user, story);
+        node.setVersion(3L);
+
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.of(2000L));
+        when(tombstoneCompactor.oldestSyncableVersion(2000L)).thenReturn(1000L);
+        // Nodes from before versions were kept have none, and still belong to the tree
+        Node unversioned = createTreeNode(3L, 2L, "/2/3/", 1, user, story);
+        when(nodeRepo.findTreeByStoryid(1L)).thenReturn(List.of(node, unversioned));
+
+        NodeChangesDTO changes = nodeService.getChanges(1L, 4L);
+
+        // The whole tree replaces the client's, since deletions may be forgotten
+        assertEquals(Boolean.TRUE, changes.getFullResync());
+        assertEquals(2000L, changes.getVersion());
+        assertEquals(List.of(2L, 3L), changes.getChanged().stream().map(NodeDTO::getNodeId).toList());
+        assertTrue(changes.getDeleted().isEmpty());
+        verify(nodeTombstoneRepo, never()).findByStoryidAndVersionGreaterThan(anyLong(), anyLong());
+    }
+
+    @Test
+    void testGetChanges_NewClientGetsWholeTree() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = createTreeNode(2L, null, "/2/", 0, user, story);
+
+        // A story never changed since versions were introduced
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.of(0L));
+        when(nodeRepo.findTreeByStoryid(1L)).thenReturn(List.of(node));
+
+        NodeChangesDTO changes = nodeService.getChanges(1L, 0L);
+
+        assertEquals(List.of(2L), changes.getChanged().stream().map(NodeDTO::getNodeId).toList());
+        assertNull(changes.getFullResync());
+        verify(nodeRepo, never()).findChangedByStoryid(anyLong(), anyLong());
+    }
+
+    @Test
+    void testGetChanges_NothingChanged() {
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.of(6L));
+
+        NodeChangesDTO changes = nodeService.getChanges(1L, 6L);
+
+        assertEquals(6L, changes.getVersion());
+        assertTrue(changes.getChanged().isEmpty());
+        verify(nodeRepo, never()).findChangedByStoryid(anyLong(), anyLong());
+        verify(nodeTombstoneRepo, never()).findByStoryidAndVersionGreaterThan(anyLong(), anyLong());
+    }
+
+    @Test
+    void testGetChanges_StoryNotFound() {
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.empty());
+
+        assertThrows(UnfoundStoryException.class, () -> {
+            nodeService.getChanges(1L, 0L);
+        });
+    }
+
+    private Node createTreeNode(Long nodeId, Long parentId, String path, int depth, User user, Story story) {
+        Node node = createNode(nodeId, parentId, "Node " + nodeId, user, story);
+        node.setPath(path);
+        node.setDepth(depth);
+        return node;
+    }
+
+    private int countNodes(List<NodeDTO> nodes) {
+        int count = 0;
+        List<NodeDTO> toVisit = new ArrayList<>(nodes);
+        while (!toVisit.isEmpty()) {
+            NodeDTO node = toVisit.remove(toVisit.size() - 1);
+            count++;
+            if (node.getChildren() != null) {
+                toVisit.addAll(node.getChildren());
+            }
+        }
+        return count;
     }
 
     private Node createNode(Long nodeId, Long parentId, String description, User user, Story story) {
@@ -195,6 +666,62 @@ public class NodeServiceTest {
 
         assertNotNull(nodeDTO);
         verify(nodeRepo, times(1)).save(any(Node.class));
+        verify(storyTreeCache, times(1)).invalidate(storyId);
+    }
+
+    @Test
+    void testCreateNode_ExtendsParentPath() {
+        String username = "testUser";
+        Long storyId = 1L;
+        Long parentId = 2L;
+
+        User user = new User();
+        user.setUsername(username);
+
+        Story story = new Story();
+        story.setStoryid(storyId);
+        story.setUser(user);
+
+        Node parent = createNode(parentId, 1L, "Parent", user, story);
+        parent.setPath("/1/2/");
+        parent.setDepth(1);
+
+        when(userRepo.findById(username)).thenReturn(Optional.of(user));
+        when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(parentId)).thenReturn(Optional.of(parent));
+        when(nodeRepo.save(any(Node.class))).thenAnswer(invocation -> {
+            Node saved = invocation.getArgument(0);
+            saved.setNodeId(3L);
+            return saved;
+        });
+
+        nodeService.createNode(username, storyId, parentId);
+
+        verify(nodeRepo).save(argThat((Node node) -> "/1/2/3/".equals(node.getPath()) && node.getDepth() == 2));
+    }
+
+    @Test
+    void testCreateNode_ParentInOtherStory() {
+        String username = "testUser";
+
+        User user = new User();
+        user.setUsername(username);
+
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Story otherStory = new Story();
+        otherStory.setStoryid(2L);
+
+        when(userRepo.findById(username)).thenReturn(Optional.of(user));
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(5L)).thenReturn(Optional.of(createNode(5L, null, "Other", user, otherStory)));
+
+        assertThrows(UnfoundStoryException.class, () -> {
+            nodeService.createNode(username, 1L, 5L);
+        });
+        verify(nodeRepo, never()).save(any(Node.class));
     }
 
     @Test
@@ -242,6 +769,7 @@ public class NodeServiceTest {
         assertNotNull(updatedNodeDTO);
         assertEquals(description, updatedNodeDTO.getDescription());
         verify(nodeRepo, times(1)).save(node);
+        verify(storyTreeCache, times(1)).invalidate(storyId);
     }
 
     @Test
@@ -332,7 +860,8 @@ void testGenerateResult_Success() throws Exception {
     story.setUser(user);    // Associate the user with the story
 
     when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
-    when(geminiService.sendAndReceiveRequest(anyString(), anyString())).thenReturn("Generated content");
+    when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+            .thenReturn("Generated content");
 
     GeneratedResultDTO resultDTO = nodeService.generateResult(key, storyId, parentId, context, characters);
 
@@ -361,13 +890,48 @@ void testGenerateResult_CharacterNotFound() {
     story.setUser(user);   // Associate the user with the story
 
     when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
-    when(characterRepo.findByFirstNameAndLastName("John", "Doe")).thenReturn(Optional.empty());
+    when(characterRepo.findByStoryStoryidAndFirstNameInAndLastNameIn(eq(storyId), any(), any()))
+            .thenReturn(new ArrayList<>());
 
-    RuntimeException exception = assertThrows(RuntimeException.class, () -> {
+    RuntimeException exception = assertThrows(UnfoundCharacterException.class, () -> {
         nodeService.generateResult(key, storyId, parentId, context, characters);
     });
 
     assertEquals("There is no character in database called John Doe of story Test Story", exception.getMessage());
+    // No generation slot or model call is used for an invalid request
+    verify(rateLimiter, never()).acquire(any(), any());
+    verify(geminiService, never()).sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any());
+}
+
+@Test
+void testGenerateResult_ReportsAllMissingCharacters() {
+    Story story = new Story();
+    story.setStoryid(1L);
+    story.setStoryname("Test Story");
+    User user = new User();
+    user.setRole("user");
+    story.setUser(user);
+
+    // Only the mixed name John Roe exists, besides Jane Doe
+    Character johnRoe = new Character("Roe", "John", "background", "context", story);
+    Character janeDoe = new Character("Doe", "Jane", "background", "context", story);
+    List<CharacterInfo> characters = new ArrayList<>();
+    characters.add(new CharacterInfo("John", "Doe"));
+    characters.add(new CharacterInfo("Jane", "Doe"));
+    characters.add(new CharacterInfo("Mary", "Major"));
+
+    when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+    when(characterRepo.findByStoryStoryidAndFirstNameInAndLastNameIn(1L, Set.of("John", "Jane", "Mary"),
+            Set.of("Doe", "Major"))).thenReturn(List.of(johnRoe, janeDoe));
+
+    UnfoundCharacterException exception = assertThrows(UnfoundCharacterException.class, () -> {
+        nodeService.generateResult("key", 1L, null, "context", characters);
+    });
+
+    assertEquals(List.of("John Doe", "Mary Major"), exception.getMissing());
+    assertEquals("There are no characters in database called John Doe, Mary Major of story Test Story",
+            exception.getMessage());
+    verify(characterRepo, times(1)).findByStoryStoryidAndFirstNameInAndLastNameIn(any(), any(), any());
 }
 
 @Test
@@ -395,12 +959,16 @@ void testGenerateResult_CharacterFound() {
     character.setStory(story);
 
     when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
-    when(characterRepo.findByFirstNameAndLastName("John", "Doe")).thenReturn(Optional.of(character));
+    character.setBackground("A wandering knight");
+    when(characterRepo.findByStoryStoryidAndFirstNameInAndLastNameIn(storyId, Set.of("John"), Set.of("Doe")))
+            .thenReturn(List.of(character));
 
     assertDoesNotThrow(() -> {
         GeneratedResultDTO resultNodeDTO = nodeService.generateResult(key, storyId, parentId, context, characters);
         assertNotNull(resultNodeDTO);
     });
+    verify(geminiService).sendAndReceiveRequest(eq(key),
+            contains("lastName=Doe, firstName=John, background=A wandering knight"), eq(false), eq(storyId));
 }
 
 
@@ -422,35 +990,76 @@ void testGenerateResult_CharacterFound() {
     @Test
     void testDeleteNode_SingleNode() {
         Long nodeId = 1L;
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = new Node();
+        node.setNodeId(nodeId);
+        node.setPath("/1/");
+        node.setStory(story);
 
-        doNothing().when(nodeRepo).deleteById(nodeId);
+        when(nodeRepo.findById(nodeId)).thenReturn(Optional.of(node));
+        when(nodeRepo.deleteByPathLike("/1/%")).thenReturn(1);
 
-        nodeService.deleteNode(nodeId);
+        assertEquals(1, nodeService.deleteNode(nodeId));
 
-        verify(nodeRepo, times(1)).deleteById(nodeId);
+        verify(nodeRepo, times(1)).deleteByPathLike("/1/%");
+        verify(storyTreeCache, times(1)).invalidate(1L);
     }
 
     @Test
     void testDeleteNode_WithChildren() {
-        Long parentId = 1L;
-        Long childId1 = 2L;
-        Long childId2 = 3L;
+        Long nodeId = 2L;
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = new Node();
+        node.setNodeId(nodeId);
+        node.setPath("/1/2/");
+        node.setStory(story);
 
-        Node child1 = new Node();
-        child1.setNodeId(childId1);
-        Node child2 = new Node();
-        child2.setNodeId(childId2);
+        when(nodeRepo.findById(nodeId)).thenReturn(Optional.of(node));
+        when(nodeRepo.findNodeIdsByPathLike("/1/2/%")).thenReturn(Arrays.asList(2L, 3L, 4L));
+        when(nodeRepo.deleteByPathLike("/1/2/%")).thenReturn(3);
 
-        List<Node> children = Arrays.asList(child1, child2);
+        assertEquals(3, nodeService.deleteNode(nodeId));
 
-        when(nodeRepo.findByParentId(parentId)).thenReturn(Optional.of(children));
-        doNothing().when(nodeRepo).deleteById(anyLong());
+        // Every removed node leaves a tombstone at the new story version
+        verify(storyRepo, times(1)).incrementVersion(1L);
+        verify(nodeTombstoneRepo, times(1)).saveAll(argThat((List<NodeTombstone> tombstones) ->
+                tombstones.size() == 3 && tombstones.get(2).getNodeId() == 4L && tombstones.get(2).getVersion() == 1L));
 
-        nodeService.deleteNode(parentId);
+        // The whole subtree goes in one statement, without walking the children
+        verify(nodeRepo, times(1)).deleteByPathLike("/1/2/%");
+        verify(nodeRepo, never()).findByParentId(anyLong());
+        verify(nodeRepo, never()).deleteById(anyLong());
+    }
 
-        verify(nodeRepo, times(1)).deleteById(parentId);
-        verify(nodeRepo, times(1)).deleteById(childId1);
-        verify(nodeRepo, times(1)).deleteById(childId2);
+    @Test
+    void testDeleteNode_WithoutPath() {
+        Long nodeId = 1L;
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = new Node();
+        node.setNodeId(nodeId);
+        node.setStory(story);
+
+        when(nodeRepo.findById(nodeId)).thenReturn(Optional.of(node));
+        when(nodeRepo.deleteSubtree(nodeId)).thenReturn(3);
+
+        assertEquals(3, nodeService.deleteNode(nodeId));
+
+        verify(nodeRepo, times(1)).deleteSubtree(nodeId);
+        verify(nodeRepo, never()).deleteByPathLike(anyString());
+    }
+
+    @Test
+    void testDeleteNode_NotFound() {
+        when(nodeRepo.findById(1L)).thenReturn(Optional.empty());
+
+        assertEquals(0, nodeService.deleteNode(1L));
+
+        verify(nodeRepo, never()).deleteSubtree(anyLong());
+        verify(nodeRepo, never()).deleteByPathLike(anyString());
+        verify(storyTreeCache, never()).invalidate(anyLong());
     }
 
     @Test
@@ -470,15 +1079,65 @@ void testGenerateResult_CharacterFound() {
         story.setUser(user); // Associate user with the story
     
         when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
-        when(geminiService.sendAndReceiveRequest(anyString(), anyString())).thenReturn("Generated content");
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
     
         GeneratedResultDTO resultDTO = nodeService.generateResult(key, storyId, parentId, context, characters);
     
         assertNotNull(resultDTO);
         assertEquals("Generated content", resultDTO.getResult());
-        verify(geminiService, times(2)).sendAndReceiveRequest(anyString(), anyString());
+        // The continuation and the summary are both charged to the story
+        verify(geminiService, times(2)).sendAndReceiveRequest(anyString(), anyString(), eq(false), eq(storyId));
     }
     
+    @Test
+    void testStreamResult_SendsChunksThenSummary() {
+        User user = new User();
+        user.setUsername("testUser");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(geminiService.streamRequest(eq("key"), anyString(), eq(1L))).thenReturn(Flux.just("Once upon", " a time"));
+        when(geminiService.sendAndReceiveRequest(eq("key"), anyString(), eq(false), eq(1L))).thenReturn("Summary");
+
+        List<ServerSentEvent<String>> events = nodeService
+                .streamResult("key", 1L, null, "context", new ArrayList<>()).collectList().block();
+
+        assertEquals(3, events.size());
+        assertEquals("chunk", events.get(0).event());
+        assertEquals("Once upon", events.get(0).data());
+        assertEquals(" a time", events.get(1).data());
+        assertEquals("summary", events.get(2).event());
+        assertEquals("Summary", events.get(2).data());
+        // The summary is built from the whole streamed continuation
+        verify(geminiService).sendAndReceiveRequest(eq("key"), contains("\"Once upon a time\""), eq(false), eq(1L));
+        verify(generationHistory, times(1)).record(eq(1L), isNull(), isNull(), contains("context"),
+                eq(LlmResponse.of("Once upon a time")), eq("Summary"), anyLong());
+    }
+
+    @Test
+    void testStreamResult_ReportsErrors() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(geminiService.streamRequest(eq("key"), anyString(), eq(1L)))
+                .thenReturn(Flux.error(new RuntimeException("Gemini unavailable")));
+
+        List<ServerSentEvent<String>> events = nodeService
+                .streamResult("key", 1L, null, "context", new ArrayList<>()).collectList().block();
+
+        assertEquals(1, events.size());
+        assertEquals("error", events.get(0).event());
+        assertEquals("Gemini unavailable", events.get(0).data());
+        verify(geminiService, never()).sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any());
+        verifyNoInteractions(generationHistory);
+    }
+
     @Test
     void testGenerateResult_NonRootNode() throws Exception {
         String key = "testKey";
@@ -501,7 +1160,8 @@ void testGenerateResult_CharacterFound() {
     
         when(storyRepo.findById(storyId)).thenReturn(Optional.of(story));
         when(nodeRepo.findById(parentId)).thenReturn(Optional.of(parentNode));
-        when(geminiService.sendAndReceiveRequest(anyString(), anyString())).thenReturn("Generated content");
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
     
         GeneratedResultDTO resultDTO = nodeService.generateResult(key, storyId, parentId, context, characters);
     
@@ -510,6 +1170,532 @@ void testGenerateResult_CharacterFound() {
     }
     
 
+    @Test
+    void testGenerateResult_DefersSummaryForNode() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setStory(story);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
+
+        Prompt prompt = new Prompt();
+        prompt.nodeId = 3L;
+        prompt.context = "context";
+        prompt.Characters = new ArrayList<>();
+        GeneratedResultDTO resultDTO = nodeService.generateResult("key", 1L, prompt);
+
+        // Only the continuation is requested before returning
+        assertEquals("Generated content", resultDTO.getResult());
+        assertNull(resultDTO.getSummary());
+        verify(geminiService, times(1)).sendAndReceiveRequest(anyString(), anyString(), eq(false), eq(1L));
+
+        assertEquals("Generated content", node.getResult());
+        assertEquals(SummaryStatus.PENDING, node.getSummaryStatus());
+        verify(nodeRepo, times(1)).save(node);
+        verify(nodeSummaryWorker, times(1)).submit(eq("key"), eq(3L), eq(1L), contains("Generated content"));
+    }
+
+    @Test
+    void testGenerateResult_CandidatesWithoutNode() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        LlmResponse response = new LlmResponse("First", 10, 60, 70, List.of("First", "Second", "Third"));
+        when(geminiService.sendAndReceiveCandidates(anyString(), anyString(), anyInt(), any()))
+                .thenReturn(response);
+
+        Prompt prompt = new Prompt();
+        prompt.context = "context";
+        prompt.Characters = new ArrayList<>();
+        prompt.candidateCount = 20;
+        GeneratedResultDTO resultDTO = nodeService.generateResult("key", 1L, prompt);
+
+        // One call for every candidate, capped, and no summary
+        assertEquals("First", resultDTO.getResult());
+        assertEquals(List.of("First", "Second", "Third"), resultDTO.getCandidates());
+        assertNull(resultDTO.getSummary());
+        assertNull(resultDTO.getNodeIds());
+        verify(geminiService, times(1)).sendAndReceiveCandidates(eq("key"), anyString(), eq(8), eq(1L));
+        verify(geminiService, never()).sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any());
+        verify(rateLimiter, times(1)).acquire(any(), eq("user"));
+        // Every candidate can be restored later; the call's tokens are counted once
+        verify(generationHistory, times(1)).record(eq(1L), isNull(), isNull(), anyString(), eq(response), isNull(),
+                anyLong());
+        verify(generationHistory, times(1)).record(eq(1L), isNull(), isNull(), anyString(),
+                eq(LlmResponse.of("Second")), isNull(), anyLong());
+        verify(generationHistory, times(1)).record(eq(1L), isNull(), isNull(), anyString(),
+                eq(LlmResponse.of("Third")), isNull(), anyLong());
+    }
+
+    @Test
+    void testGenerateResult_CandidatesStoredOnSiblings() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setParentId(2L);
+        node.setStory(story);
+        node.setUser(user);
+        node.setDepth(1);
+        node.setPath("/2/3/");
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        LlmResponse response = new LlmResponse("First", 10, 40, 50, List.of("First", "Second"));
+        when(geminiService.sendAndReceiveCandidates(anyString(), anyString(), anyInt(), any()))
+                .thenReturn(response);
+        when(nodeRepo.saveAll(anyList())).thenAnswer(invocation -> {
+            List<Node> saved = invocation.getArgument(0);
+            long id = 10L;
+            for (Node savedNode : saved) {
+                if (savedNode.getNodeId() == null) {
+                    savedNode.setNodeId(id++);
+                }
+            }
+            return saved;
+        });
+
+        Prompt prompt = new Prompt();
+        prompt.nodeId = 3L;
+        prompt.context = "context";
+        prompt.Characters = new ArrayList<>();
+        prompt.candidateCount = 2;
+        GeneratedResultDTO resultDTO = nodeService.generateResult("key", 1L, prompt);
+
+        assertEquals("First", resultDTO.getResult());
+        assertEquals(List.of(3L, 10L), resultDTO.getNodeIds());
+        assertEquals("First", node.getResult());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Node>> captor = ArgumentCaptor.forClass(List.class);
+        verify(nodeRepo, times(1)).saveAll(captor.capture());
+        Node sibling = captor.getValue().get(1);
+        assertEquals("Second", sibling.getResult());
+        assertEquals(2L, sibling.getParentId());
+        assertEquals(1, sibling.getDepth());
+        assertEquals("/2/10/", sibling.getPath());
+        assertEquals(SummaryStatus.PENDING, sibling.getSummaryStatus());
+        verify(nodeSummaryWorker, times(1)).submit(eq("key"), eq(3L), eq(1L), contains("First"));
+        verify(nodeSummaryWorker, times(1)).submit(eq("key"), eq(10L), eq(1L), contains("Second"));
+        verify(storyTreeCache, times(1)).invalidate(1L);
+        verify(generationHistory, times(1)).record(eq(1L), eq(3L), isNull(), anyString(), eq(response), isNull(),
+                anyLong());
+        verify(generationHistory, times(1)).record(eq(1L), eq(10L), isNull(), anyString(),
+                eq(LlmResponse.of("Second")), isNull(), anyLong());
+    }
+
+    @Test
+    void testFindLeafIds_ChecksCharacters() {
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setStoryname("Saga");
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findLeafIdsByStoryid(1L)).thenReturn(List.of(4L, 7L));
+
+        assertEquals(List.of(4L, 7L), nodeService.findLeafIds(1L, null));
+        assertThrows(UnfoundCharacterException.class,
+                () -> nodeService.findLeafIds(1L, List.of(new CharacterInfo("Jane", "Doe"))));
+    }
+
+    @Test
+    void testSaveContinuations_BatchesNewChildren() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node leaf = new Node();
+        leaf.setNodeId(4L);
+        leaf.setStory(story);
+        leaf.setDepth(1);
+        leaf.setPath("/2/4/");
+        Story otherStory = new Story();
+        otherStory.setStoryid(9L);
+        Node foreign = new Node();
+        foreign.setNodeId(5L);
+        foreign.setStory(otherStory);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findAllById(anyList())).thenReturn(List.of(leaf, foreign));
+        when(nodeRepo.saveAll(anyList())).thenAnswer(invocation -> {
+            List<Node> saved = invocation.getArgument(0);
+            long id = 10L;
+            for (Node savedNode : saved) {
+                savedNode.setNodeId(id++);
+            }
+            return saved;
+        });
+
+        LlmResponse response = new LlmResponse("Continued", 10, 20, 30);
+        List<Long> nodeIds = nodeService.saveContinuations("key", 1L, List.of(
+                new Continuation(4L, "direction", "Continue it", response, 120L, "Summarize it"),
+                new Continuation(5L, "direction", "Continue that", LlmResponse.of("Elsewhere"), 80L,
+                        "Summarize that")));
+
+        // The node of another story is not continued
+        assertEquals(List.of(10L), nodeIds);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Node>> captor = ArgumentCaptor.forClass(List.class);
+        verify(nodeRepo, times(1)).saveAll(captor.capture());
+        Node child = captor.getValue().get(0);
+        assertEquals(1, captor.getValue().size());
+        assertEquals(4L, child.getParentId());
+        assertEquals(user, child.getUser());
+        assertEquals(2, child.getDepth());
+        assertEquals("/2/4/10/", child.getPath());
+        assertEquals("Continued", child.getResult());
+        assertEquals(SummaryStatus.PENDING, child.getSummaryStatus());
+        verify(nodeSummaryWorker, times(1)).submit("key", 10L, 1L, "Summarize it");
+        verify(storyTreeCache, times(1)).invalidate(1L);
+        verify(generationHistory, times(1)).record(1L, 10L, 4L, "Continue it", response, null, 120L);
+        verifyNoMoreInteractions(generationHistory);
+    }
+
+    @Test
+    void testGenerateResult_RecordsHistory() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        LlmResponse response = new LlmResponse("Generated content", 10, 20, 30);
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        doReturn(response).when(geminiService).sendAndReceive(anyString(), anyString(), anyBoolean(), any());
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any())).thenReturn("Summary");
+
+        Prompt prompt = new Prompt();
+        prompt.parentId = 2L;
+        prompt.context = "context";
+        nodeService.generateResult("key", 1L, prompt);
+
+        verify(generationHistory, times(1)).record(eq(1L), isNull(), eq(2L), contains("context"), eq(response),
+                eq("Summary"), anyLong());
+    }
+
+    @Test
+    void testGetHistory_ForNode() {
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setParentId(2L);
+        node.setStory(story);
+        GenerationHistory history = new GenerationHistory();
+        history.setId(8L);
+        history.setResult("Earlier continuation");
+
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(generationHistory.findForNode(eq(1L), eq(3L), eq(2L), anyInt())).thenReturn(List.of(history));
+
+        List<GenerationHistoryDTO> result = nodeService.getHistory(1L, 3L);
+
+        assertEquals(1, result.size());
+        assertEquals(8L, result.get(0).getId());
+        assertEquals("Earlier continuation", result.get(0).getResult());
+        assertThrows(UnfoundStoryException.class, () -> nodeService.getHistory(2L, 3L));
+    }
+
+    @Test
+    void testRestoreGeneration_WithSummary() {
+        Node node = restorableNode();
+        GenerationHistory history = new GenerationHistory();
+        history.setStoryid(1L);
+        history.setParentId(2L);
+        history.setResult("Earlier continuation");
+        history.setSummary("Earlier summary");
+        when(generationHistory.findById(8L)).thenReturn(Optional.of(history));
+
+        NodeDTO result = nodeService.restoreGeneration("key", 1L, 3L, 8L);
+
+        assertNotNull(result);
+        assertEquals("Earlier continuation", node.getResult());
+        assertEquals("Earlier summary", node.getSummary());
+        // Children of the node build on its context
+        assertEquals("Earlier summary", node.getContext());
+        assertEquals(SummaryStatus.READY, node.getSummaryStatus());
+        verify(nodeRepo, times(1)).save(node);
+        verify(storyTreeCache, times(1)).invalidate(1L);
+        verifyNoInteractions(nodeSummaryWorker);
+    }
+
+    @Test
+    void testRestoreGeneration_SummarizesAgain() {
+        Node node = restorableNode();
+        GenerationHistory history = new GenerationHistory();
+        history.setStoryid(1L);
+        history.setNodeId(3L);
+        history.setParentId(2L);
+        history.setResult("Earlier continuation");
+        when(generationHistory.findById(8L)).thenReturn(Optional.of(history));
+
+        nodeService.restoreGeneration("key", 1L, 3L, 8L);
+
+        assertEquals("Earlier continuation", node.getResult());
+        assertEquals(SummaryStatus.PENDING, node.getSummaryStatus());
+        verify(nodeSummaryWorker, times(1)).submit(eq("key"), eq(3L), eq(1L), contains("Earlier continuation"));
+    }
+
+    @Test
+    void testRestoreGeneration_OtherNode() {
+        restorableNode();
+        GenerationHistory history = new GenerationHistory();
+        history.setStoryid(1L);
+        history.setNodeId(4L);
+        history.setParentId(2L);
+        when(generationHistory.findById(8L)).thenReturn(Optional.of(history));
+
+        assertThrows(UnfoundGenerationException.class, () -> nodeService.restoreGeneration("key", 1L, 3L, 8L));
+        verify(nodeRepo, never()).save(any());
+    }
+
+    private Node restorableNode() {
+        User user = new User();
+        user.setUsername("testUser");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setParentId(2L);
+        node.setStory(story);
+        node.setUser(user);
+        node.setContext("Stale context");
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(nodeRepo.findByParentId(3L)).thenReturn(Optional.of(new ArrayList<>()));
+        return node;
+    }
+
+    @Test
+    void testGenerateResult_ForceFreshBypassesCache() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
+
+        Prompt prompt = new Prompt();
+        prompt.context = "context";
+        prompt.Characters = new ArrayList<>();
+        prompt.forceFresh = true;
+        nodeService.generateResult("key", 1L, prompt);
+
+        verify(geminiService, times(1)).sendAndReceiveRequest(anyString(), anyString(), eq(true), eq(1L));
+    }
+
+    @Test
+    void testGenerateResult_RateLimited() {
+        User user = new User();
+        user.setUsername("testUser");
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        doThrow(new RateLimitExceededException(5)).when(rateLimiter).acquire("testUser", "user");
+
+        assertThrows(RateLimitExceededException.class, () -> {
+            nodeService.generateResult("key", 1L, null, "context", new ArrayList<>());
+        });
+        verify(geminiService, never()).sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any());
+        verify(transactionManager, never()).getTransaction(any());
+    }
+
+    @Test
+    void testGenerateResult_AcquiresSlotBeforeTransaction() {
+        User user = new User();
+        user.setUsername("testUser");
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+        Node parentNode = new Node();
+        parentNode.setNodeId(2L);
+        parentNode.setSummaryStatus(SummaryStatus.PENDING);
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setParentId(2L);
+        node.setStory(story);
+        node.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(2L)).thenReturn(Optional.of(parentNode));
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(nodeSummaryWorker.awaitSummary(eq(2L), any())).thenReturn(Optional.of("Fresh summary"));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated result");
+
+        Prompt prompt = new Prompt();
+        prompt.nodeId = 3L;
+        prompt.parentId = 2L;
+        prompt.context = "context";
+        nodeService.generateResult("key", 1L, prompt);
+
+        // Neither waiting for a slot, nor for the parent's summary, nor the
+        // model call may hold a connection
+        InOrder inOrder = inOrder(rateLimiter, nodeSummaryWorker, geminiService, transactionManager);
+        inOrder.verify(rateLimiter).acquire("testUser", "user");
+        inOrder.verify(nodeSummaryWorker).awaitSummary(eq(2L), any());
+        inOrder.verify(geminiService).sendAndReceive(eq("key"), anyString(), eq(false), eq(1L));
+        inOrder.verify(transactionManager).getTransaction(any());
+        inOrder.verify(nodeSummaryWorker).submit(eq("key"), eq(3L), eq(1L), anyString());
+        verify(rateLimiter, times(1)).acquire(any(), any());
+        verify(transactionManager, times(1)).getTransaction(any());
+    }
+
+    @Test
+    void testStreamResult_NoTransaction() {
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(geminiService.streamRequest(eq("key"), anyString(), eq(1L))).thenReturn(Flux.just("Once upon"));
+        when(geminiService.sendAndReceiveRequest(eq("key"), anyString(), eq(false), eq(1L))).thenReturn("Summary");
+
+        nodeService.streamResult("key", 1L, null, "context", new ArrayList<>()).collectList().block();
+
+        verifyNoInteractions(transactionManager);
+    }
+
+    @Test
+    void testResummarizePending_BuildsPromptsFromParents() {
+        Story story = new Story();
+        story.setStoryid(1L);
+        Node parentNode = new Node();
+        parentNode.setNodeId(2L);
+        parentNode.setContext("Parent plot");
+        parentNode.setSummaryStatus(SummaryStatus.READY);
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setParentId(2L);
+        node.setStory(story);
+        node.setResult("Pending continuation");
+
+        when(nodeRepo.findPendingSummaries()).thenReturn(List.of(node));
+        when(nodeRepo.findById(2L)).thenReturn(Optional.of(parentNode));
+
+        assertEquals(1, nodeService.resummarizePending("key"));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Supplier<String>> prompt = ArgumentCaptor.forClass(Supplier.class);
+        verify(nodeSummaryWorker, times(1)).resubmit(eq("key"), eq(3L), eq(1L), prompt.capture());
+        // The prompt is only built on the summary thread
+        verify(nodeRepo, never()).findById(2L);
+        assertTrue(prompt.getValue().get().contains("\"Parent plot\""));
+        assertTrue(prompt.getValue().get().contains("\"Pending continuation\""));
+    }
+
+    @Test
+    void testGenerateResult_WaitsForPendingParentSummary() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node parentNode = new Node();
+        parentNode.setNodeId(2L);
+        parentNode.setSummaryStatus(SummaryStatus.PENDING);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(2L)).thenReturn(Optional.of(parentNode));
+        when(nodeSummaryWorker.awaitSummary(eq(2L), any())).thenReturn(Optional.of("Fresh summary"));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
+
+        nodeService.generateResult("key", 1L, 2L, "context", new ArrayList<>());
+
+        verify(geminiService).sendAndReceiveRequest(eq("key"), contains("Plot synopsis: \"Fresh summary\""),
+                eq(false), eq(1L));
+    }
+
+    @Test
+    void testGenerateResult_PromptStaysWithinBudget() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        // The plot fits, but the character background does not
+        Node parentNode = new Node();
+        parentNode.setNodeId(2L);
+        parentNode.setSummary("The early days of the kingdom. ".repeat(250) + "The dragon wakes.");
+        parentNode.setSummaryStatus(SummaryStatus.READY);
+        Character knight = new Character("Doe", "John", "A wandering knight. ".repeat(1000), "context", story);
+        List<CharacterInfo> characters = new ArrayList<>();
+        characters.add(new CharacterInfo("John", "Doe"));
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(2L)).thenReturn(Optional.of(parentNode));
+        when(characterRepo.findByStoryStoryidAndFirstNameInAndLastNameIn(any(), any(), any()))
+                .thenReturn(List.of(knight));
+
+        nodeService.generateResult("key", 1L, 2L, "The hero returns", characters);
+
+        // One call for the continuation, then one for its summary; both must fit
+        ArgumentCaptor<String> prompts = ArgumentCaptor.forClass(String.class);
+        verify(geminiService, times(2)).sendAndReceiveRequest(eq("key"), prompts.capture(), eq(false), eq(1L));
+        for (String prompt : prompts.getAllValues()) {
+            assertTrue(PromptBuilder.estimateTokens(prompt) <= 3000);
+        }
+        String continuation = prompts.getAllValues().get(0);
+        assertTrue(continuation.contains("generate a new story continuation"));
+        assertTrue(continuation.contains("The dragon wakes."));
+        assertTrue(continuation.contains("Expected direction of the plot: \" The hero returns\""));
+        assertTrue(continuation.contains("lastName=Doe, firstName=John, background=A wandering knight."));
+        assertTrue(continuation.contains("...====="));
+    }
+
+    @Test
+    void testGenerateResult_ReadyParentDoesNotWait() {
+        User user = new User();
+        user.setRole("user");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node parentNode = new Node();
+        parentNode.setNodeId(2L);
+        parentNode.setSummary("Stored summary");
+        parentNode.setSummaryStatus(SummaryStatus.READY);
+
+        when(storyRepo.findById(1L)).thenReturn(Optional.of(story));
+        when(nodeRepo.findById(2L)).thenReturn(Optional.of(parentNode));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenReturn("Generated content");
+
+        nodeService.generateResult("key", 1L, 2L, "context", new ArrayList<>());
+
+        verify(nodeSummaryWorker, never()).awaitSummary(anyLong(), any());
+        verify(geminiService).sendAndReceiveRequest(eq("key"), contains("Plot synopsis: \"Stored summary\""),
+                eq(false), eq(1L));
+    }
+
     @Test
     void testCreateNode_UserInfoException() {
         String username = "testUser";
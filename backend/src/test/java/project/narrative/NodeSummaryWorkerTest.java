@@ -0,0 +1,195 @@
+package project.narrative;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import project.narrative.model.SummaryStatus;
+import project.narrative.model.entities.Node;
+import project.narrative.repository.NodeRepo;
+import project.narrative.repository.StoryRepo;
+import project.narrative.service.GeminiService;
+import project.narrative.service.NodeSummaryWorker;
+import project.narrative.service.StoryTreeCache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class NodeSummaryWorkerTest {
+
+    @Mock
+    private GeminiService geminiService;
+
+    @Mock
+    private NodeRepo nodeRepo;
+
+    @Mock
+    private StoryRepo storyRepo;
+
+    @Mock
+    private StoryTreeCache storyTreeCache;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private NodeSummaryWorker nodeSummaryWorker;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        nodeSummaryWorker = new NodeSummaryWorker(geminiService, nodeRepo, storyRepo, storyTreeCache,
+                transactionManager, 1, 10);
+        when(storyRepo.findVersionByStoryid(1L)).thenReturn(Optional.of(7L));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        nodeSummaryWorker.shutdown();
+    }
+
+    @Test
+    void testSubmit_StoresSummaryOnNode() {
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setSummaryStatus(SummaryStatus.PENDING);
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(geminiService.sendAndReceiveRequest("key", "prompt", false, 1L)).thenReturn("Summary");
+
+        nodeSummaryWorker.submit("key", 3L, 1L, "prompt");
+
+        assertEquals(Optional.of("Summary"), nodeSummaryWorker.awaitSummary(3L, Duration.ofSeconds(5)));
+        verify(nodeRepo, timeout(5000)).save(node);
+        assertEquals("Summary", node.getSummary());
+        assertEquals("Summary", node.getContext());
+        assertEquals(SummaryStatus.READY, node.getSummaryStatus());
+        assertEquals(7L, node.getVersion());
+        verify(storyTreeCache).invalidate(1L);
+    }
+
+    @Test
+    void testSubmit_MarksFailure() {
+        Node node = new Node();
+        node.setNodeId(3L);
+        node.setSummaryStatus(SummaryStatus.PENDING);
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(node));
+        when(geminiService.sendAndReceiveRequest(anyString(), anyString(), anyBoolean(), any()))
+                .thenThrow(new RuntimeException("Gemini unavailable"));
+
+        nodeSummaryWorker.submit("key", 3L, 1L, "prompt");
+
+        assertEquals(Optional.empty(), nodeSummaryWorker.awaitSummary(3L, Duration.ofSeconds(5)));
+        verify(nodeRepo, timeout(5000)).save(node);
+        assertEquals(SummaryStatus.FAILED, node.getSummaryStatus());
+        assertNull(node.getSummary());
+    }
+
+    @Test
+    void testAwaitSummary_WaitsForRunningSummary() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(new Node()));
+        when(geminiService.sendAndReceiveRequest("key", "prompt", false, 1L)).thenAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return "Summary";
+        });
+
+        nodeSummaryWorker.submit("key", 3L, 1L, "prompt");
+        assertEquals(Optional.empty(), nodeSummaryWorker.awaitSummary(3L, Duration.ofMillis(50)));
+
+        release.countDown();
+        assertEquals(Optional.of("Summary"), nodeSummaryWorker.awaitSummary(3L, Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void testSubmit_StoresInNewTransaction() {
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(new Node()));
+        when(geminiService.sendAndReceiveRequest("key", "prompt", false, 1L)).thenReturn("Summary");
+
+        nodeSummaryWorker.submit("key", 3L, 1L, "prompt");
+
+        verify(nodeRepo, timeout(5000)).save(any(Node.class));
+        ArgumentCaptor<TransactionDefinition> definition = ArgumentCaptor.forClass(TransactionDefinition.class);
+        verify(transactionManager).getTransaction(definition.capture());
+        assertEquals(TransactionDefinition.PROPAGATION_REQUIRES_NEW, definition.getValue().getPropagationBehavior());
+    }
+
+    @Test
+    void testSubmit_RefusesWhenQueueIsFull() throws Exception {
+        nodeSummaryWorker.shutdown();
+        nodeSummaryWorker = new NodeSummaryWorker(geminiService, nodeRepo, storyRepo, storyTreeCache,
+                transactionManager, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> prompts = new CopyOnWriteArrayList<>();
+        Node refused = new Node();
+        refused.setSummaryStatus(SummaryStatus.PENDING);
+        when(nodeRepo.findById(3L)).thenReturn(Optional.of(new Node()));
+        when(nodeRepo.findById(4L)).thenReturn(Optional.of(new Node()));
+        when(nodeRepo.findById(5L)).thenReturn(Optional.of(refused));
+        when(geminiService.sendAndReceiveRequest(eq("key"), anyString(), eq(false), eq(1L))).thenAnswer(invocation -> {
+            prompts.add(invocation.getArgument(1));
+            release.await(10, TimeUnit.SECONDS);
+            return "Summary of " + invocation.getArgument(1);
+        });
+
+        // One summary running and one queued fill the worker, so the third is
+        // refused instead of waiting without bound or running on this thread
+        nodeSummaryWorker.submit("key", 3L, 1L, "3");
+        nodeSummaryWorker.submit("key", 4L, 1L, "4");
+        nodeSummaryWorker.submit("key", 5L, 1L, "5");
+        assertEquals(SummaryStatus.FAILED, refused.getSummaryStatus());
+        assertEquals(Optional.empty(), nodeSummaryWorker.awaitSummary(5L, Duration.ofSeconds(5)));
+
+        release.countDown();
+        assertEquals(Optional.of("Summary of 3"), nodeSummaryWorker.awaitSummary(3L, Duration.ofSeconds(5)));
+        assertEquals(Optional.of("Summary of 4"), nodeSummaryWorker.awaitSummary(4L, Duration.ofSeconds(5)));
+        assertEquals(List.of("3", "4"), prompts);
+    }
+
+    @Test
+    void testResubmit_RunsOnCallerWhenQueueIsFull() throws Exception {
+        nodeSummaryWorker.shutdown();
+        nodeSummaryWorker = new NodeSummaryWorker(geminiService, nodeRepo, storyRepo, storyTreeCache,
+                transactionManager, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch onCaller = new CountDownLatch(1);
+        for (long nodeId = 3; nodeId <= 5; nodeId++) {
+            when(nodeRepo.findById(nodeId)).thenReturn(Optional.of(new Node()));
+        }
+        when(geminiService.sendAndReceiveRequest(eq("key"), anyString(), eq(false), eq(1L))).thenAnswer(invocation -> {
+            if (Thread.currentThread().getName().equals("startup")) {
+                onCaller.countDown();
+            }
+            release.await(10, TimeUnit.SECONDS);
+            return "Summary of " + invocation.getArgument(1);
+        });
+
+        nodeSummaryWorker.resubmit("key", 3L, 1L, () -> "3");
+        nodeSummaryWorker.resubmit("key", 4L, 1L, () -> "4");
+        // Nodes recovered on startup are not dropped; the caller makes the summary
+        Thread startup = new Thread(() -> nodeSummaryWorker.resubmit("key", 5L, 1L, () -> "5"), "startup");
+        startup.start();
+
+        assertTrue(onCaller.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        startup.join(5000);
+        assertEquals(Optional.of("Summary of 5"), nodeSummaryWorker.awaitSummary(5L, Duration.ofSeconds(5)));
+        assertEquals(Optional.of("Summary of 4"), nodeSummaryWorker.awaitSummary(4L, Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void testAwaitSummary_UnknownNode() {
+        assertEquals(Optional.empty(), nodeSummaryWorker.awaitSummary(9L, Duration.ofSeconds(5)));
+    }
+}
@@ -0,0 +1,46 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import project.narrative.repository.NodeTombstoneRepo;
+import project.narrative.service.NodeTombstoneCompactor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class NodeTombstoneCompactorTest {
+
+    @Mock
+    private NodeTombstoneRepo nodeTombstoneRepo;
+
+    private MeterRegistry meterRegistry;
+    private NodeTombstoneCompactor compactor;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        compactor = new NodeTombstoneCompactor(nodeTombstoneRepo, meterRegistry, 100);
+    }
+
+    @Test
+    void testOldestSyncableVersion() {
+        assertEquals(400L, compactor.oldestSyncableVersion(500L));
+        // Young stories still have all their tombstones
+        assertEquals(0L, compactor.oldestSyncableVersion(50L));
+    }
+
+    @Test
+    void testCompact_CountsRemovedTombstones() {
+        when(nodeTombstoneRepo.deleteOlderThanRetained(100L)).thenReturn(7);
+
+        compactor.compact();
+
+        verify(nodeTombstoneRepo, times(1)).deleteOlderThanRetained(100L);
+        assertEquals(7.0, meterRegistry.get("narrative.changes.tombstones.compacted").counter().count());
+    }
+}
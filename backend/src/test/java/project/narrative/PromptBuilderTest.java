@@ -0,0 +1,93 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import project.narrative.service.PromptBuilder;
+import project.narrative.service.PromptBuilder.Trim;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PromptBuilderTest {
+
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testEstimateTokens() {
+        assertEquals(0, PromptBuilder.estimateTokens(""));
+        assertEquals(1, PromptBuilder.estimateTokens("abcd"));
+        assertEquals(2, PromptBuilder.estimateTokens("abcde"));
+    }
+
+    @Test
+    void testBuild_EverythingFits() {
+        PromptBuilder builder = new PromptBuilder(meterRegistry, 1000);
+
+        String prompt = builder.newPrompt()
+                .required("Continue the story.\n")
+                .optional("Plot: \"", "The dragon wakes.", "\"\n", Trim.KEEP_END)
+                .optional("Direction: ", "The hero returns.", "\n", Trim.KEEP_START)
+                .build();
+
+        assertEquals("Continue the story.\nPlot: \"The dragon wakes.\"\nDirection: The hero returns.\n", prompt);
+        assertEquals(0.0, meterRegistry.get("narrative.prompt.trimmed").counter().count());
+        assertEquals(meterRegistry.get("narrative.prompt.tokens").tag("stage", "requested").summary().totalAmount(),
+                meterRegistry.get("narrative.prompt.tokens").tag("stage", "sent").summary().totalAmount());
+    }
+
+    @Test
+    void testBuild_EarlierPartsWin() {
+        // 10 tokens of instruction leave 90 for the rest
+        PromptBuilder builder = new PromptBuilder(meterRegistry, 100);
+        String plot = "word ".repeat(40);
+
+        String prompt = builder.newPrompt()
+                .required("x".repeat(40))
+                .optional("", plot, "", Trim.KEEP_END)
+                .optional("[", "direction ".repeat(30), "]", Trim.KEEP_START)
+                .optional("<", "character ".repeat(10), ">", Trim.KEEP_START)
+                .build();
+
+        // The plot fits whole; the direction is shortened and the character left out
+        assertTrue(prompt.startsWith("x".repeat(40) + plot + "[direction"));
+        assertTrue(prompt.endsWith("...]"));
+        assertFalse(prompt.contains("character"));
+        assertTrue(PromptBuilder.estimateTokens(prompt) <= 100);
+        assertEquals(1.0, meterRegistry.get("narrative.prompt.trimmed").counter().count());
+        assertTrue(meterRegistry.get("narrative.prompt.tokens").tag("stage", "sent").summary().totalAmount() <= 100);
+    }
+
+    @Test
+    void testBuild_KeepsEndOfPlot() {
+        PromptBuilder builder = new PromptBuilder(meterRegistry, 50);
+
+        String prompt = builder.newPrompt()
+                .optional("Plot: ", "Long ago. ".repeat(100) + "The dragon wakes.", "", Trim.KEEP_END)
+                .build();
+
+        assertTrue(prompt.startsWith("Plot: ..."));
+        assertTrue(prompt.endsWith("The dragon wakes."));
+        assertTrue(PromptBuilder.estimateTokens(prompt) <= 50);
+        // The cut falls between words
+        assertFalse(prompt.startsWith("Plot: ...ong"));
+    }
+
+    @Test
+    void testBuild_RequiredPartsAlwaysSent() {
+        PromptBuilder builder = new PromptBuilder(meterRegistry, 5);
+        String instruction = "Continue the story in the same style as before.";
+
+        String prompt = builder.newPrompt()
+                .required(instruction)
+                .optional("", "The dragon wakes.", "", Trim.KEEP_END)
+                .build();
+
+        assertEquals(instruction, prompt);
+    }
+}
@@ -8,12 +8,15 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import project.narrative.controller.StoryController;
 import project.narrative.dto.StoryDTO;
 import project.narrative.error.UserInfoException;
+import project.narrative.model.entities.Story;
 import project.narrative.service.StoryService;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -189,4 +192,38 @@ class StoryControllerTest {
 
         assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
     }
+
+    @Test
+    void testStreamStoriesWithNodeHierarchyForUser_Success() throws Exception {
+        String userId = "user1";
+        List<Long> storyIds = List.of(1L);
+        when(storyService.findStoryIdsForUser(userId)).thenReturn(storyIds);
+
+        ResponseEntity<StreamingResponseBody> response = storyController.streamStoriesWithNodeHierarchyForUser(userId);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        verify(storyService, times(1)).writeStoriesWithNodeHierarchy(storyIds, out);
+    }
+
+    @Test
+    void testStreamStoriesWithNodeHierarchyForUser_NotFound() {
+        String userId = "user1";
+        when(storyService.findStoryIdsForUser(userId)).thenReturn(Collections.emptyList());
+
+        ResponseEntity<StreamingResponseBody> response = storyController.streamStoriesWithNodeHierarchyForUser(userId);
+
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    void testStreamStoriesWithNodeHierarchyForUser_UserInfoException() {
+        String userId = "user1";
+        when(storyService.findStoryIdsForUser(userId)).thenThrow(new UserInfoException());
+
+        ResponseEntity<StreamingResponseBody> response = storyController.streamStoriesWithNodeHierarchyForUser(userId);
+
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
 }
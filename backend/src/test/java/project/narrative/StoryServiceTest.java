@@ -6,21 +6,29 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.persistence.EntityManager;
 import project.narrative.dto.StoryDTO;
 import project.narrative.error.UnfoundStoryException;
 import project.narrative.error.UserInfoException;
+import project.narrative.model.entities.Node;
 import project.narrative.model.entities.Story;
 import project.narrative.model.entities.User;
 import project.narrative.repository.*;
 import project.narrative.service.StoryService;
+import project.narrative.service.StoryTreeCache;
 import project.narrative.model.entities.Character;
 
+import java.io.ByteArrayOutputStream;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
@@ -43,6 +51,15 @@ public class StoryServiceTest {
     @Mock
     private CharacterRepo characterRepo;
 
+    @Mock
+    private NodeRepo nodeRepo;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @Mock
+    private StoryTreeCache storyTreeCache;
+
     @InjectMocks
     private StoryService storyService;
 
@@ -403,6 +420,7 @@ public class StoryServiceTest {
 
         verify(storyRepo, times(1)).findById(storyId);
         verify(storyRepo, times(1)).save(existingStory);
+        verify(storyTreeCache, times(1)).invalidate(storyId);
     }
 
     @Test
@@ -451,4 +469,152 @@ public class StoryServiceTest {
         verify(storyRepo, times(1)).save(existingStory);
     }
 
+    @Test
+    void testWriteStoriesWithNodeHierarchy_MatchesInMemoryTree() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        StoryService streamingService = new StoryService(storyRepo, userRepo, nodeRepo, characterRepo,
+                entityManager, objectMapper, storyTreeCache);
+
+        User user = new User();
+        user.setUsername("john_doe");
+        user.setEmail("xxx@gmail.com");
+
+        Story story1 = new Story();
+        story1.setStoryid(1L);
+        story1.setStoryname("First Story");
+        story1.setUser(user);
+
+        Story story2 = new Story();
+        story2.setStoryid(2L);
+        story2.setStoryname("Empty Story");
+        story2.setUser(user);
+
+        Node root1 = createNode(1L, null, "/1/", user, story1);
+        Node child2 = createNode(2L, 1L, "/1/2/", user, story1);
+        Node child3 = createNode(3L, 2L, "/1/2/3/", user, story1);
+        Node child5 = createNode(5L, 1L, "/1/5/", user, story1);
+        Node root4 = createNode(4L, null, "/4/", user, story1);
+
+        when(userRepo.findByEmail("xxx@gmail.com")).thenReturn(Optional.of(user));
+        when(storyRepo.findByUserUsername("john_doe")).thenReturn(Optional.of(Arrays.asList(story2, story1)));
+        when(storyRepo.findStoryidsByUserUsername("john_doe")).thenReturn(Arrays.asList(1L, 2L));
+        when(storyRepo.findAllById(Arrays.asList(1L, 2L))).thenReturn(Arrays.asList(story2, story1));
+        // No cached trees, so the in-memory tree is built from the same nodes
+        when(storyTreeCache.get(any())).thenReturn(null);
+        when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(any()))
+                .thenReturn(Optional.of(Arrays.asList(root1, child2, child3, root4, child5)));
+        // The cursor returns each story's nodes in path order
+        when(nodeRepo.streamByStoryIds(Arrays.asList(1L, 2L)))
+                .thenReturn(Stream.of(root1, child2, child3, child5, root4));
+
+        List<Long> storyIds = streamingService.findStoryIdsForUser("xxx@gmail.com");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        streamingService.writeStoriesWithNodeHierarchy(storyIds, out);
+
+        List<StoryDTO> inMemory = streamingService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
+        inMemory.sort((a, b) -> a.getStoryId().compareTo(b.getStoryId()));
+
+        JsonNode streamed = objectMapper.readTree(out.toByteArray());
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(inMemory)), streamed);
+        assertEquals(2, streamed.get(0).get("rootNodes").size());
+        assertEquals(3L, streamed.get(0).get("rootNodes").get(0).get("children").get(0).get("children").get(0)
+                .get("nodeId").asLong());
+        assertTrue(streamed.get(1).path("rootNodes").isMissingNode());
+        verify(entityManager, times(5)).detach(any(Node.class));
+    }
+
+    @Test
+    void testWriteStoriesWithNodeHierarchy_SiblingsWithCommonPrefix() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        StoryService streamingService = new StoryService(storyRepo, userRepo, nodeRepo, characterRepo,
+                entityManager, objectMapper, storyTreeCache);
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node root1 = createNode(1L, null, "/1/", user, story);
+        Node child2 = createNode(2L, 1L, "/1/2/", user, story);
+        Node child5 = createNode(5L, 2L, "/1/2/5/", user, story);
+        Node child20 = createNode(20L, 1L, "/1/20/", user, story);
+        // Ids compared as numbers keep the subtree of 2 together, before 20
+        when(storyRepo.findAllById(List.of(1L))).thenReturn(List.of(story));
+        when(nodeRepo.streamByStoryIds(List.of(1L))).thenReturn(Stream.of(root1, child2, child5, child20));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        streamingService.writeStoriesWithNodeHierarchy(List.of(1L), out);
+
+        JsonNode root = objectMapper.readTree(out.toByteArray()).get(0).get("rootNodes").get(0);
+        assertEquals(2, root.get("children").size());
+        assertEquals(2L, root.get("children").get(0).get("nodeId").asLong());
+        assertEquals(5L, root.get("children").get(0).get("children").get(0).get("nodeId").asLong());
+        assertEquals(20L, root.get("children").get(1).get("nodeId").asLong());
+        assertTrue(root.get("children").get(1).path("children").isEmpty());
+    }
+
+    @Test
+    void testWriteStoriesWithNodeHierarchy_RejectsTextOrder() {
+        StoryService streamingService = new StoryService(storyRepo, userRepo, nodeRepo, characterRepo,
+                entityManager, new ObjectMapper().findAndRegisterModules(), storyTreeCache);
+        User user = new User();
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        when(storyRepo.findAllById(List.of(1L))).thenReturn(List.of(story));
+        // The order of a collation ignoring '/', which puts 20 inside the subtree of 2
+        when(nodeRepo.streamByStoryIds(List.of(1L))).thenReturn(Stream.of(
+                createNode(1L, null, "/1/", user, story),
+                createNode(2L, 1L, "/1/2/", user, story),
+                createNode(20L, 1L, "/1/20/", user, story),
+                createNode(5L, 2L, "/1/2/5/", user, story)));
+
+        assertThrows(IllegalStateException.class,
+                () -> streamingService.writeStoriesWithNodeHierarchy(List.of(1L), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void testWriteStoriesWithNodeHierarchy_KeepsNodesWithoutPath() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+        StoryService streamingService = new StoryService(storyRepo, userRepo, nodeRepo, characterRepo,
+                entityManager, objectMapper, storyTreeCache);
+        User user = new User();
+        user.setUsername("john_doe");
+        user.setEmail("xxx@gmail.com");
+        Story story = new Story();
+        story.setStoryid(1L);
+        story.setUser(user);
+
+        Node root1 = createNode(1L, null, "/1/", user, story);
+        Node child2 = createNode(2L, 1L, "/1/2/", user, story);
+        Node unplaced = createNode(3L, 2L, null, user, story);
+        when(userRepo.findByEmail("xxx@gmail.com")).thenReturn(Optional.of(user));
+        when(storyRepo.findByUserUsername("john_doe")).thenReturn(Optional.of(List.of(story)));
+        when(storyRepo.findAllById(List.of(1L))).thenReturn(List.of(story));
+        when(storyTreeCache.get(any())).thenReturn(null);
+        when(nodeRepo.findByStoryStoryidInOrderByNodeIdAsc(any()))
+                .thenReturn(Optional.of(Arrays.asList(root1, child2, unplaced)));
+        // Nodes without a path come first
+        when(nodeRepo.streamByStoryIds(List.of(1L))).thenReturn(Stream.of(unplaced, root1, child2));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        streamingService.writeStoriesWithNodeHierarchy(List.of(1L), out);
+
+        JsonNode streamed = objectMapper.readTree(out.toByteArray());
+        List<StoryDTO> inMemory = streamingService.getStoriesWithNodeHierarchyForUser("xxx@gmail.com");
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(inMemory)), streamed);
+        assertEquals(3L, streamed.get(0).get("rootNodes").get(0).get("children").get(0).get("children").get(0)
+                .get("nodeId").asLong());
+    }
+
+    private Node createNode(Long nodeId, Long parentId, String path, User user, Story story) {
+        Node node = new Node();
+        node.setNodeId(nodeId);
+        node.setParentId(parentId);
+        node.setPath(path);
+        node.setUser(user);
+        node.setStory(story);
+        return node;
+    }
+
 }
@@ -0,0 +1,88 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import project.narrative.dto.NodeDTO;
+import project.narrative.service.StoryTreeCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StoryTreeCacheTest {
+
+    private MeterRegistry meterRegistry;
+    private StoryTreeCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new StoryTreeCache(meterRegistry, 10);
+    }
+
+    @Test
+    void testGet_HitAndMiss() {
+        List<NodeDTO> tree = new ArrayList<>();
+        cache.put(1L, tree, 3, cache.loadStamp());
+
+        assertSame(tree, cache.get(1L));
+        assertNull(cache.get(2L));
+
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("result", "miss").functionCounter().count());
+    }
+
+    @Test
+    void testPut_EvictsLeastRecentlyUsed() {
+        cache.put(1L, new ArrayList<>(), 4, cache.loadStamp());
+        cache.put(2L, new ArrayList<>(), 4, cache.loadStamp());
+        // Reading story 1 makes story 2 the least recently used
+        cache.get(1L);
+        cache.put(3L, new ArrayList<>(), 4, cache.loadStamp());
+
+        assertNotNull(cache.get(1L));
+        assertNull(cache.get(2L));
+        assertNotNull(cache.get(3L));
+        assertEquals(2, cache.size());
+        assertEquals(1.0, meterRegistry.get("cache.evictions").functionCounter().count());
+        assertEquals(2.0, meterRegistry.get("cache.size").gauge().value());
+    }
+
+    @Test
+    void testPut_SkipsTreesLargerThanBudget() {
+        cache.put(1L, new ArrayList<>(), 11, cache.loadStamp());
+
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testInvalidate() {
+        cache.put(1L, new ArrayList<>(), 4, cache.loadStamp());
+        cache.invalidate(1L);
+
+        assertNull(cache.get(1L));
+        // The freed budget can be used again without evicting anything
+        cache.put(2L, new ArrayList<>(), 10, cache.loadStamp());
+        assertNotNull(cache.get(2L));
+        assertEquals(0.0, meterRegistry.get("cache.evictions").functionCounter().count());
+    }
+
+    @Test
+    void testPut_SkipsTreeLoadedBeforeInvalidation() {
+        long before = cache.loadStamp();
+        // A change commits while the tree is being loaded
+        cache.invalidate(1L);
+        cache.put(1L, new ArrayList<>(), 4, before);
+        assertNull(cache.get(1L));
+
+        // Other stories and trees loaded after the change are still cached
+        cache.put(2L, new ArrayList<>(), 4, before);
+        cache.put(1L, new ArrayList<>(), 4, cache.loadStamp());
+        assertNotNull(cache.get(1L));
+        assertNotNull(cache.get(2L));
+    }
+}
@@ -0,0 +1,119 @@
+package project.narrative;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import project.narrative.model.LlmResponse;
+import project.narrative.service.PromptBuilder;
+import project.narrative.service.StubLlmProvider;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StubLlmProviderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testGenerate_DeterministicText() {
+        StubLlmProvider provider = new StubLlmProvider("fixed", 0, 0, 0, "", 20);
+
+        String first = provider.generate("key", "Once upon a time").text();
+        assertEquals(first, provider.generate("key", "Once upon a time").text());
+        assertEquals(first, new StubLlmProvider("fixed", 0, 0, 0, "", 20).generate("key", "Once upon a time").text());
+        assertNotEquals(first, provider.generate("key", "Another prompt").text());
+        assertEquals(20, first.split(" ").length);
+        assertEquals("stub", provider.model());
+    }
+
+    @Test
+    void testGenerate_WaitsForFixedLatency() {
+        StubLlmProvider provider = new StubLlmProvider("fixed", 100, 0, 0, "", 5);
+
+        long start = System.nanoTime();
+        provider.generate("key", "prompt");
+
+        assertTrue(System.nanoTime() - start >= 100_000_000L);
+    }
+
+    @Test
+    void testNextLatency_Lognormal() {
+        StubLlmProvider provider = new StubLlmProvider("lognormal", 0, 800, 0.5, "", 5);
+
+        long[] samples = new long[2001];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = provider.nextLatencyMs();
+            assertTrue(samples[i] > 0);
+        }
+        Arrays.sort(samples);
+        // The median of a lognormal distribution is its scale
+        assertEquals(800, samples[samples.length / 2], 100);
+    }
+
+    @Test
+    void testNextLatency_ReplaysSamples() throws Exception {
+        Path file = tempDir.resolve("latencies.txt");
+        Files.write(file, List.of("120", "", "450", "80"));
+        StubLlmProvider provider = new StubLlmProvider("replay", 0, 0, 0, file.toString(), 5);
+
+        assertEquals(120, provider.nextLatencyMs());
+        assertEquals(450, provider.nextLatencyMs());
+        assertEquals(80, provider.nextLatencyMs());
+        assertEquals(120, provider.nextLatencyMs());
+    }
+
+    @Test
+    void testConstructor_RejectsUnknownLatencyModel() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            new StubLlmProvider("uniform", 0, 0, 0, "", 5);
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            new StubLlmProvider("replay", 0, 0, 0, "", 5);
+        });
+    }
+
+    @Test
+    void testStream_SplitsTheSameText() {
+        StubLlmProvider provider = new StubLlmProvider("fixed", 10, 0, 0, "", 30);
+
+        List<LlmResponse> chunks = provider.stream("key", "prompt").collectList().block();
+
+        assertTrue(chunks.size() > 1);
+        StringBuilder text = new StringBuilder();
+        chunks.forEach(chunk -> text.append(chunk.text()));
+        assertEquals(provider.textFor("prompt"), text.toString());
+        // Only the last piece reports usage
+        assertFalse(chunks.get(0).hasUsage());
+        assertEquals(provider.generate("key", "prompt"), new LlmResponse(provider.textFor("prompt"),
+                chunks.get(chunks.size() - 1).promptTokens(), chunks.get(chunks.size() - 1).candidatesTokens(),
+                chunks.get(chunks.size() - 1).totalTokens()));
+    }
+
+    @Test
+    void testGenerate_DistinctCandidates() {
+        StubLlmProvider provider = new StubLlmProvider("fixed", 0, 0, 0, "", 20);
+
+        LlmResponse response = provider.generate("key", "prompt", 3);
+
+        assertEquals(3, response.candidates().size());
+        assertEquals(provider.textFor("prompt"), response.text());
+        assertEquals(response.text(), response.candidates().get(0));
+        assertEquals(3, response.candidates().stream().distinct().count());
+        assertEquals(provider.generate("key", "prompt", 3), response);
+    }
+
+    @Test
+    void testGenerate_EstimatesUsage() {
+        StubLlmProvider provider = new StubLlmProvider("fixed", 0, 0, 0, "", 20);
+
+        LlmResponse response = provider.generate("key", "12345678");
+
+        assertEquals(2, response.promptTokens());
+        assertEquals(PromptBuilder.estimateTokens(response.text()), response.candidatesTokens());
+        assertEquals(response.promptTokens() + response.candidatesTokens(), response.totalTokens());
+    }
+}
@@ -0,0 +1,225 @@
+package project.narrative;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.transaction.PlatformTransactionManager;
+import project.narrative.dto.UserUsageDTO;
+import project.narrative.error.UserInfoException;
+import project.narrative.model.LlmResponse;
+import project.narrative.model.entities.TokenUsage;
+import project.narrative.model.entities.User;
+import project.narrative.repository.TokenUsageRepo;
+import project.narrative.repository.UserRepo;
+import project.narrative.service.TokenUsageService;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class TokenUsageServiceTest {
+
+    @Mock
+    private TokenUsageRepo tokenUsageRepo;
+
+    @Mock
+    private UserRepo userRepo;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private MeterRegistry meterRegistry;
+    private TokenUsageService tokenUsageService;
+
+    // Rows bound in each batchUpdate call, as [storyId, prompt, candidates, total, calls]
+    private final List<List<List<Long>>> batches = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        tokenUsageService = new TokenUsageService(tokenUsageRepo, userRepo, jdbcTemplate, transactionManager,
+                meterRegistry);
+        doAnswer(this::recordBatch).when(jdbcTemplate).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+    }
+
+    @Test
+    void testRecord_PublishesHistograms() {
+        tokenUsageService.record("gemini-pro", null, new LlmResponse("text", 10, 20, 30));
+        tokenUsageService.record("gemini-pro", null, new LlmResponse("text", 5, 5, 10));
+
+        DistributionSummary total = meterRegistry.get("narrative.llm.tokens")
+                .tag("type", "total").tag("model", "gemini-pro").summary();
+        assertEquals(2, total.count());
+        assertEquals(40.0, total.totalAmount());
+        assertEquals(15.0, meterRegistry.get("narrative.llm.tokens").tag("type", "prompt").summary().totalAmount());
+
+        // Calls without a story are not stored
+        tokenUsageService.flush();
+        verifyNoInteractions(jdbcTemplate);
+    }
+
+    @Test
+    void testRecord_IgnoresCallsWithoutUsage() {
+        tokenUsageService.record("gemini-pro", 1L, LlmResponse.of("text"));
+
+        tokenUsageService.flush();
+
+        assertTrue(meterRegistry.find("narrative.llm.tokens").summaries().isEmpty());
+        verifyNoInteractions(jdbcTemplate);
+    }
+
+    @Test
+    void testFlush_WritesOneSumPerStoryInOneBatch() {
+        tokenUsageService.record("gemini-pro", 2L, new LlmResponse("c", 4, 5, 9));
+        tokenUsageService.record("gemini-pro", 1L, new LlmResponse("a", 10, 20, 30));
+        tokenUsageService.record("gemini-pro", 1L, new LlmResponse("b", 1, 2, 3));
+
+        tokenUsageService.flush();
+
+        // Every story goes in one batch, in storyid order
+        verify(jdbcTemplate, times(1)).batchUpdate(contains("ON CONFLICT (storyid)"), anyCollection(), eq(2), any());
+        assertEquals(List.of(List.of(List.of(1L, 11L, 22L, 33L, 2L), List.of(2L, 4L, 5L, 9L, 1L))), batches);
+        verify(transactionManager, times(1)).commit(any());
+
+        // Written usage is not written again
+        tokenUsageService.flush();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    void testFlush_KeepsUsageWhenWriteFails() {
+        tokenUsageService.record("gemini-pro", 1L, new LlmResponse("a", 10, 20, 30));
+        doThrow(new RuntimeException("Database unavailable"))
+                .doAnswer(this::recordBatch)
+                .when(jdbcTemplate).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+
+        assertThrows(RuntimeException.class, () -> tokenUsageService.flush());
+        tokenUsageService.record("gemini-pro", 1L, new LlmResponse("b", 1, 2, 3));
+        tokenUsageService.flush();
+
+        assertEquals(List.of(List.of(List.of(1L, 11L, 22L, 33L, 2L))), batches);
+    }
+
+    @Test
+    void testRecord_NoUsageLostWhileFlushing() throws Exception {
+        int threads = 8;
+        int callsPerThread = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> recorders = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long storyId = t % 2;
+                recorders.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < callsPerThread; i++) {
+                        tokenUsageService.record("gemini-pro", storyId, new LlmResponse("text", 1, 1, 2));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            while (recorders.stream().anyMatch(recorder -> !recorder.isDone())) {
+                tokenUsageService.flush();
+            }
+            for (Future<?> recorder : recorders) {
+                recorder.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        tokenUsageService.flush();
+
+        long written = batches.stream().flatMap(List::stream).mapToLong(row -> row.get(4)).sum();
+        assertEquals(threads * callsPerThread, written);
+    }
+
+    @Test
+    void testGetUserUsage_SumsStories() {
+        User user = new User();
+        user.setId(5L);
+        user.setUsername("alice");
+        user.setRole("premium");
+        when(userRepo.findByUsername("alice")).thenReturn(Optional.of(user));
+        when(tokenUsageRepo.findByUserId(5L)).thenReturn(List.of(usage(1L, 10, 20, 30, 2), usage(2L, 1, 2, 3, 1)));
+
+        UserUsageDTO result = tokenUsageService.getUserUsage("alice");
+
+        assertEquals("alice", result.getUsername());
+        assertEquals("premium", result.getRole());
+        assertEquals(11, result.getPromptTokens());
+        assertEquals(22, result.getCandidatesTokens());
+        assertEquals(33, result.getTotalTokens());
+        assertEquals(3, result.getCalls());
+        assertEquals(2, result.getStories().size());
+        assertEquals(1L, result.getStories().get(0).getStoryId());
+    }
+
+    @Test
+    void testGetUserUsage_UnknownUser() {
+        when(userRepo.findByUsername("nobody")).thenReturn(Optional.empty());
+
+        assertThrows(UserInfoException.class, () -> tokenUsageService.getUserUsage("nobody"));
+    }
+
+    private int[][] recordBatch(InvocationOnMock invocation) throws SQLException {
+        ParameterizedPreparedStatementSetter<Object> setter = invocation.getArgument(3);
+        List<List<Long>> rows = new ArrayList<>();
+        for (Object item : invocation.<Collection<?>>getArgument(1)) {
+            rows.add(bind(setter, item));
+        }
+        batches.add(rows);
+        return new int[0][];
+    }
+
+    // Values the setter binds for one row, storyid first
+    private static List<Long> bind(ParameterizedPreparedStatementSetter<Object> setter, Object item)
+            throws SQLException {
+        long[] values = new long[5];
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("setLong")) {
+                        values[(int) args[0] - 1] = (long) args[1];
+                    }
+                    return null;
+                });
+        setter.setValues(statement, item);
+        return List.of(values[4], values[0], values[1], values[2], values[3]);
+    }
+
+    private static TokenUsage usage(Long storyId, long prompt, long candidates, long total, long calls) {
+        TokenUsage usage = new TokenUsage();
+        usage.setStoryid(storyId);
+        usage.setUserId(5L);
+        usage.setPromptTokens(prompt);
+        usage.setCandidatesTokens(candidates);
+        usage.setTotalTokens(total);
+        usage.setCalls(calls);
+        return usage;
+    }
+}
@@ -15,6 +15,8 @@ import project.narrative.dto.UserDTO;
 import project.narrative.error.UserInfoException;
 import project.narrative.model.entities.User;
 import project.narrative.repository.UserRepo;
+import project.narrative.dto.UserUsageDTO;
+import project.narrative.service.TokenUsageService;
 import project.narrative.service.UserService;
 import project.narrative.controller.UserController;
 import project.narrative.controller.UserController.UserInfo;
@@ -28,6 +30,9 @@ public class UserControllerTest {
     @Mock
     private UserService userService;
 
+    @Mock
+    private TokenUsageService tokenUsageService;
+
     @InjectMocks
     private UserController userController;
     @Mock
@@ -153,4 +158,18 @@ public class UserControllerTest {
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertEquals("user123", response.getBody());
     }
+
+    // Test case for reading a user's token usage
+    @Test
+    void testGetUsage_Success() {
+        UserUsageDTO usage = new UserUsageDTO();
+        usage.setUsername("user123");
+        usage.setTotalTokens(42);
+        when(tokenUsageService.getUserUsage("user123")).thenReturn(usage);
+
+        ResponseEntity<?> response = userController.getUsage("user123");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertSame(usage, response.getBody());
+    }
 }